@@ -8,7 +8,6 @@
  * as the r/w pin, it could relay that information back to a user program.
  * 
  * The next goals are:
- *   Full programming of laptop ROM into device ROM
  *   Switch between laptop RAM and device RAM
  *   When in device RAM and ROM mode, run 6502 at full speed.
  *
@@ -21,6 +20,7 @@
  *   Add inhibit pin to allow use of device or laptop ROM.
  *   Add support programming pins to program device ROM: ROM OE, WE and 6502 BE
  *   Added serial data error checking, tested stable at 2 Mbps.
+ *   Full programming of laptop ROM into device ROM, page by page with CRC read back.
  */
 #include <EEPROM.h>
 
@@ -175,6 +175,46 @@ int bufferIndex = 0;
 int dataLengthStart = -1, dataLengthEnd = -1, dataLen, dataStart = -1;
 boolean reading = false, bangSet = false, questSet = false;
 
+//Binary Frame Vars, frames are [opcode][varint length][payload][crc lo][crc hi]
+//Opcodes have the high bit set so they never collide with '!' or '?', bit 6 marks a request
+#define CAP_BINARY 'B'
+#define MAX_PAYLOAD 500
+#define OP_ERROR   0x80
+#define OP_ROM     0x81
+#define OP_RAM     0x82
+#define OP_RAMR    0x83
+#define OP_6502    0x84
+#define OP_ROM_BURST 0x85
+#define OP_EEPROM_PAGE 0x88
+#define OP_EEPROM_PAGE_ACK 0x89
+#define OP_REQ_ROM 0xC1
+#define OP_REQ_EEPROM_CRC 0xC2
+
+boolean binaryFrames = false, binReading = false;
+int binLen = 0, binShift = 0, binRemaining = -1, binPayloadStart = 0;
+static byte frameOut[72];
+static byte framePayload[8];
+static byte errorPayload[33];
+
+//ROM Prefetch Cache, the host pushes the bytes it expects to be fetched next after answering a ROM request.
+//Each burst lands in its own segment, oldest segment is replaced first. Hits are reported with the next request.
+#define CAP_PREFETCH 'P'
+#define ROM_CACHE_SEGMENTS 4
+#define ROM_CACHE_SEGMENT_SIZE 64
+boolean romPrefetch = false;
+
+//Device EEPROM programming, pages arrive as binary frames and are acked with the CRC read back from the chip.
+//The 28C256 takes at most 64 bytes per write cycle so each page is written in sub pages with data polling.
+#define CAP_EEPROM 'E'
+#define EEPROM_SUB_PAGE 64
+#define EEPROM_WRITE_TIMEOUT 15
+boolean eepromPaging = false;
+unsigned int cacheBase[ROM_CACHE_SEGMENTS];
+int cacheLength[ROM_CACHE_SEGMENTS];
+byte cacheData[ROM_CACHE_SEGMENTS][ROM_CACHE_SEGMENT_SIZE];
+int cacheNext = 0;
+unsigned int cacheHits = 0;
+
 //Tick Vars
 boolean clock_running = false;
 unsigned long lastCounted = 0;
@@ -350,8 +390,38 @@ void requestDataROM(unsigned int address){
   obtainedRequestedAddress = false;
   romAddressRequested = true;
 
+  if(romPrefetch){
+    for(int i = 0; i < ROM_CACHE_SEGMENTS; i++){
+      unsigned int index = address - cacheBase[i];
+      if(address < cacheBase[i] || index >= (unsigned int)cacheLength[i]) continue;
+      if(cacheHits < 0xFFFF) cacheHits++;
+      obtainedData = cacheData[i][index];
+      obtainedRequestedAddress = true;
+      return;
+    }
+  }
+
   Serial.flush();
 
+  if(romPrefetch){
+    framePayload[0] = address & 0xFF;
+    framePayload[1] = (address >> 8) & 0xFF;
+    framePayload[2] = cacheHits & 0xFF;
+    framePayload[3] = (cacheHits >> 8) & 0xFF;
+    cacheHits = 0;
+    sendFrame(OP_REQ_ROM, framePayload, 4);
+    Serial.flush();
+    return;
+  }
+
+  if(binaryFrames){
+    framePayload[0] = address & 0xFF;
+    framePayload[1] = (address >> 8) & 0xFF;
+    sendFrame(OP_REQ_ROM, framePayload, 2);
+    Serial.flush();
+    return;
+  }
+
   Serial.print(F("?{ROM,4}"));
   if(address < 0x1000)Serial.print('0');
   if(address < 0x100)Serial.print('0');
@@ -377,6 +447,14 @@ void sendReadROM(unsigned int address, byte data){
 
 void sendWriteRAM(unsigned int address, byte data){
   Serial.flush();
+  if(binaryFrames){
+    framePayload[0] = address & 0xFF;
+    framePayload[1] = (address >> 8) & 0xFF;
+    framePayload[2] = data;
+    sendFrame(OP_RAM, framePayload, 3);
+    Serial.flush();
+    return;
+  }
   Serial.print(F("!{RAM,7}"));
   if(address < 0x1000)Serial.print('0');
   if(address < 0x100)Serial.print('0');
@@ -390,6 +468,13 @@ void sendWriteRAM(unsigned int address, byte data){
 
 void sendReadRAM(unsigned int address){
   Serial.flush();
+  if(binaryFrames){
+    framePayload[0] = address & 0xFF;
+    framePayload[1] = (address >> 8) & 0xFF;
+    sendFrame(OP_RAMR, framePayload, 2);
+    Serial.flush();
+    return;
+  }
   Serial.print(F("!{RAMR,4}"));
   if(address < 0x1000)Serial.print('0');
   if(address < 0x100)Serial.print('0');
@@ -406,6 +491,16 @@ void send6502Status(){
   boolean rw = get6502RW();
   boolean reset = digitalRead(PIN_6502_RESET);
 
+  if(binaryFrames){
+    framePayload[0] = address & 0xFF;
+    framePayload[1] = (address >> 8) & 0xFF;
+    framePayload[2] = data;
+    framePayload[3] = (rw ? 1 : 0) | (reset ? 2 : 0);
+    sendFrame(OP_6502, framePayload, 4);
+    Serial.flush();
+    return;
+  }
+
   Serial.print(F("!{6502,10}"));
   if(address < 0x1000)Serial.print('0');
   if(address < 0x100)Serial.print('0');
@@ -430,6 +525,17 @@ void sendMessage(String message){
 }
 
 void sendError(int code, String message){
+  if(binaryFrames){
+    int len = min((int)message.length(), (int)sizeof(errorPayload) - 1);
+    errorPayload[0] = (byte)code;
+    for(int i = 0; i < len; i++){
+      errorPayload[i + 1] = message.charAt(i);
+    }
+    sendFrame(OP_ERROR, errorPayload, len + 1);
+    Serial.flush();
+    return;
+  }
+
   Serial.print(F("!{ERROR,"));
   int len = message.length();
   len++;
@@ -443,6 +549,77 @@ void sendError(int code, String message){
   Serial.flush();
 }
 
+void sendEepromAck(unsigned int address, uint16_t crc){
+  framePayload[0] = address & 0xFF;
+  framePayload[1] = (address >> 8) & 0xFF;
+  framePayload[2] = crc & 0xFF;
+  framePayload[3] = (crc >> 8) & 0xFF;
+  sendFrame(OP_EEPROM_PAGE_ACK, framePayload, 4);
+}
+
+//Takes the bus from the 6502 once for a whole page instead of once per byte
+boolean beginEEPROMAccess(){
+  digitalWrite(PIN_6502_BE, 0); //Disable 6502 bus
+  boolean mode = setting_emulatedROM;
+  digitalWrite(PIN_6502_ROM_WE, 1); //Disable EEPROM writing
+  digitalWrite(PIN_6502_ROM_OE, 1); //Disable EEPROM output
+  setEmulatedROM(false);
+  DDRF = 0xFF;
+  DDRK = 0xFF;
+  DDRA = 0;
+  return mode;
+}
+
+void endEEPROMAccess(boolean mode){
+  digitalWrite(PIN_6502_ROM_OE, 1); //Disable EEPROM output
+  setEmulatedROM(mode);
+  handlePorts();
+  digitalWrite(PIN_6502_BE, 1); //Enable 6502 bus
+  DDRF = 0;
+  DDRK = 0;
+  DDRA = 0;
+}
+
+void readPageEEPROM(unsigned int address, byte data[], int len){
+  boolean mode = beginEEPROMAccess();
+  digitalWrite(PIN_6502_ROM_OE, 0); //Enable EEPROM output
+  for(int i = 0; i < len; i++){
+    PORTK = ((address + i) >> 8) & 0xFF; //Upper Word
+    PORTF = (address + i) & 0xFF;        //Lower Word
+    delayMicroseconds(1);
+    data[i] = PINA;
+  }
+  endEEPROMAccess(mode);
+}
+
+//Loads each sub page in one write cycle, then polls bit 7 of the last byte until the chip is done
+void writePageEEPROM(unsigned int address, byte data[], int len){
+  boolean mode = beginEEPROMAccess();
+  int i = 0;
+  while(i < len){
+    int subEnd = min(len, i + EEPROM_SUB_PAGE - ((address + i) % EEPROM_SUB_PAGE));
+    DDRA = 0xFF;
+    for(; i < subEnd; i++){
+      PORTK = ((address + i) >> 8) & 0xFF; //Upper Word
+      PORTF = (address + i) & 0xFF;        //Lower Word
+      PORTA = data[i];
+      digitalWrite(PIN_6502_ROM_WE, 0); //Latch addresses
+      digitalWrite(PIN_6502_ROM_WE, 1); //Latch data
+    }
+
+    DDRA = 0;
+    byte last = data[i - 1];
+    unsigned long started = millis();
+    digitalWrite(PIN_6502_ROM_OE, 0); //Enable EEPROM output
+    while(((PINA ^ last) & 0x80) && millis() - started < EEPROM_WRITE_TIMEOUT){
+      digitalWrite(PIN_6502_ROM_OE, 1);
+      digitalWrite(PIN_6502_ROM_OE, 0);
+    }
+    digitalWrite(PIN_6502_ROM_OE, 1); //Disable EEPROM output
+  }
+  endEEPROMAccess(mode);
+}
+
 byte readDataEEPROM(unsigned int address){
   digitalWrite(PIN_6502_BE, 0); //Disable 6502 bus
   boolean mode = setting_emulatedROM;
@@ -628,7 +805,19 @@ void processRequest(int len){
   firstComma = command.indexOf(',');
   action = command.substring(command.indexOf('{') + 1, firstComma);
   if(action == F("AWAKE")){
-    Serial.println(F("!{AWAKE,0}"));
+    //Hosts that understand binary frames list CAP_BINARY in the payload, old hosts send nothing
+    binaryFrames = command.indexOf(CAP_BINARY, command.indexOf('}') + 1) != -1;
+    romPrefetch = binaryFrames && command.indexOf(CAP_PREFETCH, command.indexOf('}') + 1) != -1;
+    eepromPaging = binaryFrames && command.indexOf(CAP_EEPROM, command.indexOf('}') + 1) != -1;
+    clearRomCache();
+    int capCount = (binaryFrames ? 1 : 0) + (romPrefetch ? 1 : 0) + (eepromPaging ? 1 : 0);
+    Serial.print(F("!{AWAKE,"));
+    Serial.print(capCount);
+    Serial.print('}');
+    if(binaryFrames) Serial.print(CAP_BINARY);
+    if(romPrefetch) Serial.print(CAP_PREFETCH);
+    if(eepromPaging) Serial.print(CAP_EEPROM);
+    Serial.println();
     Serial.flush();
     sendAllSettings();
     return;
@@ -673,6 +862,7 @@ void processRequest(int len){
   if(action == F("RESET")){
     needsReset = true;
     reset_step = 0;
+    clearRomCache();
     return;
   }
   if(action == F("RAMCL")){
@@ -733,30 +923,6 @@ void processRequest(int len){
 
     return;
   }
-  if(action == F("EEWP")){
-    secondComma = command.indexOf(',', firstComma + 1);
-    key = command.substring(command.indexOf('}') + 1, secondComma);
-    int dataIndex = secondComma + 1;
-
-    unsigned int addr = hexToInt(key);
-
-    unsigned int realCRC = readBuffer[dataIndex + 256] + ((readBuffer[dataIndex + 257]) << 8);
-    unsigned int crc = calculateCRC(readBuffer, dataIndex, 256);
-
-    Serial.print(F("!{EEWP,10}"));
-    Serial.print(key);
-    Serial.print(',');
-    Serial.print((char)(realCRC));
-    Serial.println((char)(realCRC >> 8));
-    Serial.print(',');
-    Serial.print((char)(crc));
-    Serial.println((char)(crc >> 8));
-
-    Serial.flush();
-
-    return;
-  }
-
   sendError(-1, "");
   Serial.flush();
 }
@@ -766,6 +932,19 @@ void readSerial(){
   boolean cont = true;
   while(Serial.available() && cont){
     char c = (char)Serial.read();
+    if(binReading){
+      if(readBinary((byte)c)) cont = false;
+      continue;
+    }
+    if(!reading && !bangSet && !questSet && ((byte)c & 0x80)){ //Binary frame opcode
+      binReading = true;
+      readBuffer[0] = c;
+      bufferIndex = 1;
+      binLen = 0;
+      binShift = 0;
+      binRemaining = -1;
+      continue;
+    }
     if(c == '!') {
       reading = false;
       bangSet = true;
@@ -834,6 +1013,119 @@ void readSerial(){
   }
 }
 
+//Returns true once a whole frame has been consumed
+boolean readBinary(byte b){
+  readBuffer[bufferIndex++] = b;
+
+  if(binRemaining < 0){ //Still reading the varint length
+    binLen |= (b & 0x7F) << binShift;
+    binShift += 7;
+    if(b & 0x80){
+      if(binShift >= 14) binReading = false;
+      return false;
+    }
+    if(binLen > MAX_PAYLOAD){
+      binReading = false;
+      sendError(-2, "");
+      return false;
+    }
+    binPayloadStart = bufferIndex;
+    binRemaining = binLen + 2;
+    return false;
+  }
+
+  if(--binRemaining > 0) return false;
+
+  binReading = false;
+  uint16_t crc = calculateCRC((byte*)readBuffer, 0, bufferIndex - 2);
+  uint16_t received = (byte)readBuffer[bufferIndex - 2] | ((uint16_t)(byte)readBuffer[bufferIndex - 1] << 8);
+  bufferIndex = 0;
+  if(crc != received){
+    if(romAddressRequested && !obtainedRequestedAddress){
+      requestDataROM(lastRequestedAddress);
+    }
+    sendError(-3, F("CRC"));
+    return true;
+  }
+
+  processFrame((byte)readBuffer[0], (byte*)readBuffer + binPayloadStart, binLen);
+  return true;
+}
+
+void processFrame(byte op, byte payload[], int len){
+  if(op == OP_ROM && len == 3){
+    unsigned int addr = payload[0] | (payload[1] << 8);
+    if(addr == lastRequestedAddress){
+      obtainedData = payload[2];
+      obtainedRequestedAddress = true;
+    } else {
+      requestDataROM(lastRequestedAddress);
+      sendError(-4, String(addr, 16));
+    }
+    return;
+  }
+  if(op == OP_ROM_BURST){
+    if(len < 2){
+      clearRomCache();
+      return;
+    }
+    int segment = cacheNext;
+    cacheNext = (cacheNext + 1) % ROM_CACHE_SEGMENTS;
+    cacheBase[segment] = payload[0] | (payload[1] << 8);
+    cacheLength[segment] = min(len - 2, ROM_CACHE_SEGMENT_SIZE);
+    for(int i = 0; i < cacheLength[segment]; i++){
+      cacheData[segment][i] = payload[i + 2];
+    }
+    return;
+  }
+  if(op == OP_EEPROM_PAGE && eepromPaging && len > 2){
+    unsigned int addr = payload[0] | (payload[1] << 8);
+    len -= 2;
+    writePageEEPROM(addr, payload + 2, len);
+    readPageEEPROM(addr, payload + 2, len);
+    sendEepromAck(addr, calculateCRC(payload + 2, 0, len));
+    return;
+  }
+  if(op == OP_REQ_EEPROM_CRC && eepromPaging && len == 4){
+    unsigned int addr = payload[0] | (payload[1] << 8);
+    int count = min(payload[2] | (payload[3] << 8), MAX_PAYLOAD);
+    readPageEEPROM(addr, payload, count);
+    sendEepromAck(addr, calculateCRC(payload, 0, count));
+    return;
+  }
+
+  sendError(-1, "");
+}
+
+void clearRomCache(){
+  for(int i = 0; i < ROM_CACHE_SEGMENTS; i++){
+    cacheLength[i] = 0;
+  }
+  cacheNext = 0;
+  cacheHits = 0;
+}
+
+void sendFrame(byte op, byte payload[], int len){
+  if(len > 64) len = 64;
+
+  int pos = 0;
+  frameOut[pos++] = op;
+  int value = len;
+  while(value > 0x7F){
+    frameOut[pos++] = (value & 0x7F) | 0x80;
+    value >>= 7;
+  }
+  frameOut[pos++] = value;
+  for(int i = 0; i < len; i++){
+    frameOut[pos++] = payload[i];
+  }
+
+  uint16_t crc = calculateCRC(frameOut, 0, pos);
+  frameOut[pos++] = crc & 0xFF;
+  frameOut[pos++] = (crc >> 8) & 0xFF;
+  Serial.write(frameOut, pos);
+}
+
 byte hexToByte(String arr, int off){
   byte ret = (cHexToInt(arr.charAt(off + 1)) & 0x0F) ;
   ret += (cHexToInt(arr.charAt(off)) & 0x0F) << 4;
@@ -865,20 +1157,49 @@ unsigned int cHexToInt(char c){
   return ret;
 }
 
-#define POLYNOMIAL 0x1021
 #define INITIAL_VALUE 0xFFFF
 
-uint16_t calculateCRC(byte data[], int off, uint16_t len) {
+//CRC-16/CCITT-FALSE (polynomial 0x1021), one table lookup per byte instead of eight shifts
+const uint16_t crcTable[256] PROGMEM = {
+  0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50A5, 0x60C6, 0x70E7,
+  0x8108, 0x9129, 0xA14A, 0xB16B, 0xC18C, 0xD1AD, 0xE1CE, 0xF1EF,
+  0x1231, 0x0210, 0x3273, 0x2252, 0x52B5, 0x4294, 0x72F7, 0x62D6,
+  0x9339, 0x8318, 0xB37B, 0xA35A, 0xD3BD, 0xC39C, 0xF3FF, 0xE3DE,
+  0x2462, 0x3443, 0x0420, 0x1401, 0x64E6, 0x74C7, 0x44A4, 0x5485,
+  0xA56A, 0xB54B, 0x8528, 0x9509, 0xE5EE, 0xF5CF, 0xC5AC, 0xD58D,
+  0x3653, 0x2672, 0x1611, 0x0630, 0x76D7, 0x66F6, 0x5695, 0x46B4,
+  0xB75B, 0xA77A, 0x9719, 0x8738, 0xF7DF, 0xE7FE, 0xD79D, 0xC7BC,
+  0x48C4, 0x58E5, 0x6886, 0x78A7, 0x0840, 0x1861, 0x2802, 0x3823,
+  0xC9CC, 0xD9ED, 0xE98E, 0xF9AF, 0x8948, 0x9969, 0xA90A, 0xB92B,
+  0x5AF5, 0x4AD4, 0x7AB7, 0x6A96, 0x1A71, 0x0A50, 0x3A33, 0x2A12,
+  0xDBFD, 0xCBDC, 0xFBBF, 0xEB9E, 0x9B79, 0x8B58, 0xBB3B, 0xAB1A,
+  0x6CA6, 0x7C87, 0x4CE4, 0x5CC5, 0x2C22, 0x3C03, 0x0C60, 0x1C41,
+  0xEDAE, 0xFD8F, 0xCDEC, 0xDDCD, 0xAD2A, 0xBD0B, 0x8D68, 0x9D49,
+  0x7E97, 0x6EB6, 0x5ED5, 0x4EF4, 0x3E13, 0x2E32, 0x1E51, 0x0E70,
+  0xFF9F, 0xEFBE, 0xDFDD, 0xCFFC, 0xBF1B, 0xAF3A, 0x9F59, 0x8F78,
+  0x9188, 0x81A9, 0xB1CA, 0xA1EB, 0xD10C, 0xC12D, 0xF14E, 0xE16F,
+  0x1080, 0x00A1, 0x30C2, 0x20E3, 0x5004, 0x4025, 0x7046, 0x6067,
+  0x83B9, 0x9398, 0xA3FB, 0xB3DA, 0xC33D, 0xD31C, 0xE37F, 0xF35E,
+  0x02B1, 0x1290, 0x22F3, 0x32D2, 0x4235, 0x5214, 0x6277, 0x7256,
+  0xB5EA, 0xA5CB, 0x95A8, 0x8589, 0xF56E, 0xE54F, 0xD52C, 0xC50D,
+  0x34E2, 0x24C3, 0x14A0, 0x0481, 0x7466, 0x6447, 0x5424, 0x4405,
+  0xA7DB, 0xB7FA, 0x8799, 0x97B8, 0xE75F, 0xF77E, 0xC71D, 0xD73C,
+  0x26D3, 0x36F2, 0x0691, 0x16B0, 0x6657, 0x7676, 0x4615, 0x5634,
+  0xD94C, 0xC96D, 0xF90E, 0xE92F, 0x99C8, 0x89E9, 0xB98A, 0xA9AB,
+  0x5844, 0x4865, 0x7806, 0x6827, 0x18C0, 0x08E1, 0x3882, 0x28A3,
+  0xCB7D, 0xDB5C, 0xEB3F, 0xFB1E, 0x8BF9, 0x9BD8, 0xABBB, 0xBB9A,
+  0x4A75, 0x5A54, 0x6A37, 0x7A16, 0x0AF1, 0x1AD0, 0x2AB3, 0x3A92,
+  0xFD2E, 0xED0F, 0xDD6C, 0xCD4D, 0xBDAA, 0xAD8B, 0x9DE8, 0x8DC9,
+  0x7C26, 0x6C07, 0x5C64, 0x4C45, 0x3CA2, 0x2C83, 0x1CE0, 0x0CC1,
+  0xEF1F, 0xFF3E, 0xCF5D, 0xDF7C, 0xAF9B, 0xBFBA, 0x8FD9, 0x9FF8,
+  0x6E17, 0x7E36, 0x4E55, 0x5E74, 0x2E93, 0x3EB2, 0x0ED1, 0x1EF0
+};
+
+//CRC of len bytes starting at off
+uint16_t calculateCRC(byte data[], unsigned int off, uint16_t len) {
     uint16_t crc = INITIAL_VALUE;
-    for (uint16_t i = off; i < len; i++) {
-        crc ^= (data[i] << 8);
-        for (uint8_t j = 0; j < 8; j++) {
-            if (crc & 0x8000) {
-                crc = (crc << 1) ^ POLYNOMIAL;
-            } else {
-                crc <<= 1;
-            }
-        }
+    for (unsigned int i = off; i < off + len; i++) {
+        crc = (crc << 8) ^ pgm_read_word(&crcTable[((crc >> 8) ^ data[i]) & 0xFF]);
     }
     return crc;
 }
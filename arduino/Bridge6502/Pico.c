@@ -12,7 +12,7 @@
 #define PIN_ADDR2_OE   1 << 12
 
 #define PINS_ALWAYS_OUTPUT  (PIN_CLK | PIN_RST | PIN_DATA_OE | PIN_ADDR1_OE | PIN_ADDR2_OE)
-byte rom[0xFFFF];
+byte rom[0x10000];
 byte ram[0x800];
 
 void setup(){
@@ -62,6 +62,31 @@ int serialBufferIndex = 0;
 int bufferLengthStart = -1, bufferLengthEnd = -1, bufferLen, bufferStart = -1;
 boolean bufferReading = false, bangSet = false, questSet = false;
 
+//Binary Frame Vars, frames are [opcode][varint length][payload][crc lo][crc hi], same as the Mega sketch.
+//The Pico keeps the whole ROM image, the host streams it in with OP_ROM_IMAGE and every page is acked with
+//the CRC of what was stored so it can resend anything that got mangled. To verify, the host asks for the CRC of
+//every 256 byte block and reads back only the blocks whose CRC differs from its own.
+#define CAP_BINARY 'B'
+#define CAP_ROM_IMAGE 'I'
+#define CAP_VERIFY 'V'
+#define MAX_PAYLOAD 500
+#define OP_ERROR         0x80
+#define OP_ROM_IMAGE     0x86
+#define OP_ROM_IMAGE_ACK 0x87
+#define OP_BLOCK_HASHES  0x8A
+#define OP_BLOCK_DATA    0x8B
+#define OP_REQ_BLOCK_HASHES 0xC3
+#define OP_REQ_BLOCK_READ   0xC4
+#define BLOCK_SIZE 256
+#define MAX_BLOCK_HASHES 32
+#define SPACE_ROM 0
+#define SPACE_RAM 1
+
+boolean binaryFrames = false, binReading = false;
+int binLen = 0, binShift = 0, binRemaining = -1, binPayloadStart = 0;
+static byte frameOut[MAX_PAYLOAD + 5];
+static byte framePayload[3 + BLOCK_SIZE];
+
 //Tick Vars
 boolean clock_running = false;
 unsigned long lastCounted = 0;
@@ -305,7 +330,18 @@ void processRequest(int len){
   firstComma = command.indexOf(',');
   action = command.substring(command.indexOf('{') + 1, firstComma);
   if(action == F("AWAKE")){
-    Serial.println(F("!{AWAKE,0}"));
+    //Hosts that understand binary frames list CAP_BINARY in the payload, old hosts send nothing
+    binaryFrames = command.indexOf(CAP_BINARY, command.indexOf('}') + 1) != -1;
+    boolean image = binaryFrames && command.indexOf(CAP_ROM_IMAGE, command.indexOf('}') + 1) != -1;
+    if(image && command.indexOf(CAP_VERIFY, command.indexOf('}') + 1) != -1){
+      Serial.println(F("!{AWAKE,3}BIV"));
+    } else if(image){
+      Serial.println(F("!{AWAKE,2}BI"));
+    } else if(binaryFrames){
+      Serial.println(F("!{AWAKE,1}B"));
+    } else {
+      Serial.println(F("!{AWAKE,0}"));
+    }
     Serial.flush();
     return;
   }
@@ -361,12 +397,14 @@ void processRequest(int len){
     int len = dataRaw.toInt();
 
     byte d = 0;
+    if(addr >= sizeof(ram)) len = 0;
+    else if(addr + len > sizeof(ram)) len = sizeof(ram) - addr;
     Serial.print(F("!{RAMLR,"));
     Serial.print(len << 1);
     Serial.print('}');
     for(int i = 0; i < len; i++){
-      if(ram[address + i] < 10) Serial.print('0');
-      Serial.print(String(rom[address + i], 16));
+      if(ram[addr + i] < 0x10) Serial.print('0');
+      Serial.print(String(ram[addr + i], 16));
     }
     Serial.println();
     Serial.flush();
@@ -382,12 +420,13 @@ void processRequest(int len){
     int len = dataRaw.toInt();
 
     byte d = 0;
+    if(addr + len > 0x10000) len = 0x10000 - addr;
     Serial.print(F("!{ROMLR,"));
     Serial.print(len << 1);
     Serial.print('}');
     for(int i = 0; i < len; i++){
-      if(rom[address + i] < 10) Serial.print('0');
-      Serial.print(String(rom[address + i], 16));
+      if(rom[addr + i] < 0x10) Serial.print('0');
+      Serial.print(String(rom[addr + i], 16));
     }
     Serial.println();
     Serial.flush();
@@ -404,6 +443,19 @@ void readSerial(){
   boolean cont = true;
   while(Serial.available() && cont){
     char c = (char)Serial.read();
+    if(binReading){
+      if(readBinary((byte)c)) cont = false;
+      continue;
+    }
+    if(!bufferReading && !bangSet && !questSet && ((byte)c & 0x80)){ //Binary frame opcode
+      binReading = true;
+      serialBuffer[0] = c;
+      serialBufferIndex = 1;
+      binLen = 0;
+      binShift = 0;
+      binRemaining = -1;
+      continue;
+    }
     if(c == '!') {
       bufferReading = false;
       bangSet = true;
@@ -471,6 +523,126 @@ void readSerial(){
   }
 }
 
+//Returns true once a whole frame has been consumed
+boolean readBinary(byte b){
+  serialBuffer[serialBufferIndex++] = b;
+
+  if(binRemaining < 0){ //Still reading the varint length
+    binLen |= (b & 0x7F) << binShift;
+    binShift += 7;
+    if(b & 0x80){
+      if(binShift >= 14) binReading = false;
+      return false;
+    }
+    if(binLen > MAX_PAYLOAD){
+      binReading = false;
+      Serial.println(F("!{ERROR,2}-2"));
+      return false;
+    }
+    binPayloadStart = serialBufferIndex;
+    binRemaining = binLen + 2;
+    return false;
+  }
+
+  if(--binRemaining > 0) return false;
+
+  binReading = false;
+  uint16_t crc = calculateCRC((byte*)serialBuffer, 0, serialBufferIndex - 2);
+  uint16_t received = (byte)serialBuffer[serialBufferIndex - 2] | ((uint16_t)(byte)serialBuffer[serialBufferIndex - 1] << 8);
+  serialBufferIndex = 0;
+  if(crc != received){ //No ack, the host resends the page once it times out
+    Serial.println(F("!{ERROR,3}-6,"));
+    return true;
+  }
+
+  processFrame((byte)serialBuffer[0], (byte*)serialBuffer + binPayloadStart, binLen);
+  return true;
+}
+
+void processFrame(byte op, byte payload[], int len){
+  if(op == OP_ROM_IMAGE && len >= 2){
+    unsigned int addr = payload[0] | (payload[1] << 8);
+    unsigned int count = len - 2;
+    if(addr + count > 0x10000) count = 0x10000 - addr;
+
+    boolean status = status_clockOff;
+    status_clockOff = true;
+    for(unsigned int i = 0; i < count; i++){
+      rom[addr + i] = payload[i + 2];
+    }
+    status_clockOff = status;
+
+    uint16_t crc = calculateCRC(rom, addr, count);
+    framePayload[0] = addr & 0xFF;
+    framePayload[1] = (addr >> 8) & 0xFF;
+    framePayload[2] = crc & 0xFF;
+    framePayload[3] = (crc >> 8) & 0xFF;
+    sendFrame(OP_ROM_IMAGE_ACK, framePayload, 4);
+    return;
+  }
+  if(op == OP_REQ_BLOCK_HASHES && len == 4){
+    unsigned int addr = payload[0] | (payload[1] << 8);
+    unsigned int blocks = payload[2];
+    byte space = payload[3];
+    unsigned int size = space == SPACE_RAM ? sizeof(ram) : 0x10000;
+    if(blocks > MAX_BLOCK_HASHES) blocks = MAX_BLOCK_HASHES;
+    if(addr >= size) blocks = 0;
+    else if(blocks > (size - addr) / BLOCK_SIZE) blocks = (size - addr) / BLOCK_SIZE;
+
+    framePayload[0] = payload[0];
+    framePayload[1] = payload[1];
+    framePayload[2] = space;
+    for(unsigned int i = 0; i < blocks; i++){
+      uint16_t crc = calculateCRC(space == SPACE_RAM ? ram : rom, addr + i * BLOCK_SIZE, BLOCK_SIZE);
+      framePayload[3 + (i << 1)] = crc & 0xFF;
+      framePayload[4 + (i << 1)] = (crc >> 8) & 0xFF;
+    }
+    sendFrame(OP_BLOCK_HASHES, framePayload, 3 + (blocks << 1));
+    return;
+  }
+  if(op == OP_REQ_BLOCK_READ && len == 5){
+    unsigned int addr = payload[0] | (payload[1] << 8);
+    unsigned int count = payload[2] | (payload[3] << 8);
+    byte space = payload[4];
+    unsigned int size = space == SPACE_RAM ? sizeof(ram) : 0x10000;
+    if(count > BLOCK_SIZE) count = BLOCK_SIZE;
+    if(addr >= size) count = 0;
+    else if(addr + count > size) count = size - addr;
+
+    framePayload[0] = payload[0];
+    framePayload[1] = payload[1];
+    framePayload[2] = space;
+    for(unsigned int i = 0; i < count; i++){
+      framePayload[3 + i] = space == SPACE_RAM ? ram[addr + i] : rom[addr + i];
+    }
+    sendFrame(OP_BLOCK_DATA, framePayload, 3 + count);
+    return;
+  }
+
+  Serial.println(F("!{ERROR,2}-1"));
+}
+
+void sendFrame(byte op, byte payload[], int len){
+  if(len > MAX_PAYLOAD) len = MAX_PAYLOAD;
+
+  int pos = 0;
+  frameOut[pos++] = op;
+  if(len > 0x7F){ //Varint length, low seven bits first
+    frameOut[pos++] = (len & 0x7F) | 0x80;
+    frameOut[pos++] = len >> 7;
+  } else {
+    frameOut[pos++] = len;
+  }
+  for(int i = 0; i < len; i++){
+    frameOut[pos++] = payload[i];
+  }
+
+  uint16_t crc = calculateCRC(frameOut, 0, pos);
+  frameOut[pos++] = crc & 0xFF;
+  frameOut[pos++] = (crc >> 8) & 0xFF;
+  Serial.write(frameOut, pos);
+}
+
 volatile boolean status_clockOff = true, status_singleStep = false;
 volatile long status_loopDelay = 0, loopWaitTime = 0;
 
@@ -566,3 +738,50 @@ unsigned int cHexToInt(char c){
   if(ret > 15) ret -= 32;
   return ret;
 }
+
+#define INITIAL_VALUE 0xFFFF
+
+//CRC-16/CCITT-FALSE (polynomial 0x1021), one table lookup per byte instead of eight shifts
+const uint16_t crcTable[256] = {
+  0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50A5, 0x60C6, 0x70E7,
+  0x8108, 0x9129, 0xA14A, 0xB16B, 0xC18C, 0xD1AD, 0xE1CE, 0xF1EF,
+  0x1231, 0x0210, 0x3273, 0x2252, 0x52B5, 0x4294, 0x72F7, 0x62D6,
+  0x9339, 0x8318, 0xB37B, 0xA35A, 0xD3BD, 0xC39C, 0xF3FF, 0xE3DE,
+  0x2462, 0x3443, 0x0420, 0x1401, 0x64E6, 0x74C7, 0x44A4, 0x5485,
+  0xA56A, 0xB54B, 0x8528, 0x9509, 0xE5EE, 0xF5CF, 0xC5AC, 0xD58D,
+  0x3653, 0x2672, 0x1611, 0x0630, 0x76D7, 0x66F6, 0x5695, 0x46B4,
+  0xB75B, 0xA77A, 0x9719, 0x8738, 0xF7DF, 0xE7FE, 0xD79D, 0xC7BC,
+  0x48C4, 0x58E5, 0x6886, 0x78A7, 0x0840, 0x1861, 0x2802, 0x3823,
+  0xC9CC, 0xD9ED, 0xE98E, 0xF9AF, 0x8948, 0x9969, 0xA90A, 0xB92B,
+  0x5AF5, 0x4AD4, 0x7AB7, 0x6A96, 0x1A71, 0x0A50, 0x3A33, 0x2A12,
+  0xDBFD, 0xCBDC, 0xFBBF, 0xEB9E, 0x9B79, 0x8B58, 0xBB3B, 0xAB1A,
+  0x6CA6, 0x7C87, 0x4CE4, 0x5CC5, 0x2C22, 0x3C03, 0x0C60, 0x1C41,
+  0xEDAE, 0xFD8F, 0xCDEC, 0xDDCD, 0xAD2A, 0xBD0B, 0x8D68, 0x9D49,
+  0x7E97, 0x6EB6, 0x5ED5, 0x4EF4, 0x3E13, 0x2E32, 0x1E51, 0x0E70,
+  0xFF9F, 0xEFBE, 0xDFDD, 0xCFFC, 0xBF1B, 0xAF3A, 0x9F59, 0x8F78,
+  0x9188, 0x81A9, 0xB1CA, 0xA1EB, 0xD10C, 0xC12D, 0xF14E, 0xE16F,
+  0x1080, 0x00A1, 0x30C2, 0x20E3, 0x5004, 0x4025, 0x7046, 0x6067,
+  0x83B9, 0x9398, 0xA3FB, 0xB3DA, 0xC33D, 0xD31C, 0xE37F, 0xF35E,
+  0x02B1, 0x1290, 0x22F3, 0x32D2, 0x4235, 0x5214, 0x6277, 0x7256,
+  0xB5EA, 0xA5CB, 0x95A8, 0x8589, 0xF56E, 0xE54F, 0xD52C, 0xC50D,
+  0x34E2, 0x24C3, 0x14A0, 0x0481, 0x7466, 0x6447, 0x5424, 0x4405,
+  0xA7DB, 0xB7FA, 0x8799, 0x97B8, 0xE75F, 0xF77E, 0xC71D, 0xD73C,
+  0x26D3, 0x36F2, 0x0691, 0x16B0, 0x6657, 0x7676, 0x4615, 0x5634,
+  0xD94C, 0xC96D, 0xF90E, 0xE92F, 0x99C8, 0x89E9, 0xB98A, 0xA9AB,
+  0x5844, 0x4865, 0x7806, 0x6827, 0x18C0, 0x08E1, 0x3882, 0x28A3,
+  0xCB7D, 0xDB5C, 0xEB3F, 0xFB1E, 0x8BF9, 0x9BD8, 0xABBB, 0xBB9A,
+  0x4A75, 0x5A54, 0x6A37, 0x7A16, 0x0AF1, 0x1AD0, 0x2AB3, 0x3A92,
+  0xFD2E, 0xED0F, 0xDD6C, 0xCD4D, 0xBDAA, 0xAD8B, 0x9DE8, 0x8DC9,
+  0x7C26, 0x6C07, 0x5C64, 0x4C45, 0x3CA2, 0x2C83, 0x1CE0, 0x0CC1,
+  0xEF1F, 0xFF3E, 0xCF5D, 0xDF7C, 0xAF9B, 0xBFBA, 0x8FD9, 0x9FF8,
+  0x6E17, 0x7E36, 0x4E55, 0x5E74, 0x2E93, 0x3EB2, 0x0ED1, 0x1EF0
+};
+
+//CRC of len bytes starting at off
+uint16_t calculateCRC(byte data[], unsigned int off, unsigned int len) {
+    uint16_t crc = INITIAL_VALUE;
+    for (unsigned int i = off; i < off + len; i++) {
+        crc = (crc << 8) ^ crcTable[((crc >> 8) ^ data[i]) & 0xFF];
+    }
+    return crc;
+}
@@ -0,0 +1,172 @@
+; Every documented NMOS opcode in every addressing mode it has
+    .org $8000
+zp = $80
+start:
+    adc #$42
+    adc $42
+    adc $42,x
+    adc $1234
+    adc $1234,x
+    adc $1234,y
+    adc ($42,x)
+    adc ($42),y
+    and #$42
+    and $42
+    and $42,x
+    and $1234
+    and $1234,x
+    and $1234,y
+    and ($42,x)
+    and ($42),y
+    asl $42
+    asl $42,x
+    asl $1234
+    asl $1234,x
+    asl a
+    bit $42
+    bit $1234
+    cmp #$42
+    cmp $42
+    cmp $42,x
+    cmp $1234
+    cmp $1234,x
+    cmp $1234,y
+    cmp ($42,x)
+    cmp ($42),y
+    cpx #$42
+    cpx $42
+    cpx $1234
+    cpy #$42
+    cpy $42
+    cpy $1234
+    dec $42
+    dec $42,x
+    dec $1234
+    dec $1234,x
+    eor #$42
+    eor $42
+    eor $42,x
+    eor $1234
+    eor $1234,x
+    eor $1234,y
+    eor ($42,x)
+    eor ($42),y
+    inc $42
+    inc $42,x
+    inc $1234
+    inc $1234,x
+    jmp $1234
+    jmp ($1234)
+    jsr $1234
+    lda #$42
+    lda $42
+    lda $42,x
+    lda $1234
+    lda $1234,x
+    lda $1234,y
+    lda ($42,x)
+    lda ($42),y
+    ldx #$42
+    ldx $42
+    ldx $42,y
+    ldx $1234
+    ldx $1234,y
+    ldy #$42
+    ldy $42
+    ldy $42,x
+    ldy $1234
+    ldy $1234,x
+    lsr $42
+    lsr $42,x
+    lsr $1234
+    lsr $1234,x
+    lsr a
+    ora #$42
+    ora $42
+    ora $42,x
+    ora $1234
+    ora $1234,x
+    ora $1234,y
+    ora ($42,x)
+    ora ($42),y
+    rol $42
+    rol $42,x
+    rol $1234
+    rol $1234,x
+    rol a
+    ror $42
+    ror $42,x
+    ror $1234
+    ror $1234,x
+    ror a
+    sbc #$42
+    sbc $42
+    sbc $42,x
+    sbc $1234
+    sbc $1234,x
+    sbc $1234,y
+    sbc ($42,x)
+    sbc ($42),y
+    sta $42
+    sta $42,x
+    sta $1234
+    sta $1234,x
+    sta $1234,y
+    sta ($42,x)
+    sta ($42),y
+    stx $42
+    stx $42,y
+    stx $1234
+    sty $42
+    sty $42,x
+    sty $1234
+; Implied
+    brk
+    clc
+    cld
+    cli
+    clv
+    dex
+    dey
+    inx
+    iny
+    nop
+    pha
+    php
+    pla
+    plp
+    rti
+    rts
+    sec
+    sed
+    sei
+    tax
+    tay
+    tsx
+    txa
+    txs
+    tya
+; Branches, backwards and forwards
+behind:
+    bpl behind
+    bpl ahead
+    bmi behind
+    bmi ahead
+    bvc behind
+    bvc ahead
+    bvs behind
+    bvs ahead
+    bcc behind
+    bcc ahead
+    bcs behind
+    bcs ahead
+    bne behind
+    bne ahead
+    beq behind
+    beq ahead
+ahead:
+; Absolute forced by a label defined later, zero page by one defined earlier
+    lda later
+    lda zp
+    .org $9000
+later: .byte 0
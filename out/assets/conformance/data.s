@@ -0,0 +1,23 @@
+; Data directives and expressions
+base = $C000
+size equ 16
+flags set %00000101
+flags set flags | $80
+    .org base
+table:
+    .byte 1, 2, 3, -1, $FF, %1010, @17, 'A', 'z'-'a'
+    .byte "text", 0, "mixed", 13, 10
+    .byte <table, >table, <(table+size), >(table+$100)
+    .word table, end, $1234, -2
+    .asciiz "zero"
+    .byte size*2+1, size/3, size%5, size<<2, size>>1
+    .byte (1+2)*3, 7&3, 5|8, 6^3, ~0&$FF, flags
+    .byte 1<2, 2<=2, 3>4, 4>=4, 5==5, 6!=6
+    .blk 4, $EA
+    .ds 3
+    .align 4
+aligned:
+    .byte *-table
+    .even
+    .word *
+end:
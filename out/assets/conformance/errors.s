@@ -0,0 +1,11 @@
+; Each line after the first org has an error both assemblers should report
+    .org $8000
+start:
+    lda #300
+    foo $12
+    jmp nowhere
+    beq far
+    .ds 200
+far:
+start:
+    nop
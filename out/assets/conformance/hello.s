@@ -0,0 +1,26 @@
+; Prints a string through the output port at $6000
+ptr = $10
+out = $6000
+    .org $8000
+reset:
+    ldx #$FF
+    txs
+    lda #<message
+    sta ptr
+    lda #>message
+    sta ptr+1
+    ldy #0
+.loop:
+    lda (ptr),y
+    beq done
+    sta out
+    iny
+    bne .loop
+done:
+    jmp (vector)
+idle:
+    jmp idle
+message: .asciiz "Hello, 6502!"
+vector: .word idle
+    .org $FFFA
+    .word reset, reset, reset
@@ -0,0 +1,105 @@
+package com.xemplarsoft.bridge.serial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//MessageDecoder against the String path it replaced, over a mix of the high rate messages. Run with
+//gradle jmh --args="MessageDecoder -prof gc" to see the allocation rate next to the throughput.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecoderBenchmark {
+    static final String[] MIX = {
+            "!{6502,9}E000,EA,10", "!{RAM,6}0200,A9", "!{RAMR,4}01FF", "?{ROM,4}FFFC",
+            "!{6502,9}E001,A9,10", "!{ROM,7}FFFC,00", "!{ERROR,7}2,hello", "!{6502,9}0200,A9,00"
+    };
+
+    byte[][] frames;
+    int[] lengths;
+    MessageDecoder decoder;
+    Blackhole sink;
+
+    @Setup
+    public void setUp(Blackhole bh){
+        sink = bh;
+        frames = new byte[MIX.length][];
+        lengths = new int[MIX.length];
+        for(int i = 0; i < MIX.length; i++){
+            frames[i] = MIX[i].getBytes(StandardCharsets.US_ASCII);
+            lengths[i] = frames[i].length;
+        }
+        decoder = new MessageDecoder();
+        decoder.setRomEchoHandler((a, d) -> sink.consume(a + d));
+        decoder.setRamWriteHandler((a, d) -> sink.consume(a + d));
+        decoder.setRamReadHandler(a -> sink.consume(a));
+        decoder.setCpuStatusHandler((a, d, rw, rst) -> sink.consume(rw ? a : d));
+        decoder.setErrorHandler((code, buffer, offset, length) -> sink.consume(code + length));
+        decoder.setRomRequestHandler(a -> sink.consume(a));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void decoder(){
+        for(int i = 0; i < frames.length; i++) decoder.decode(frames[i], lengths[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void strings(){
+        for(int i = 0; i < frames.length; i++){
+            String message = new String(frames[i], 0, lengths[i], StandardCharsets.ISO_8859_1);
+            if(message.charAt(0) == '!') processMessage(message);
+            else processRequest(message);
+        }
+    }
+
+    //The parsing Main did before MessageDecoder, logging left out
+    void processMessage(String message){
+        int firstComma = message.indexOf(",");
+        String command = message.substring(message.indexOf("{") + 1, firstComma).trim();
+        int secondComma, thirdComma;
+        if(command.equals("ROM") || command.equals("RAM")){
+            secondComma = message.indexOf(",", firstComma + 1);
+            int a = Integer.parseInt(message.substring(message.indexOf("}") + 1, secondComma), 16) & 0xFFFF;
+            int d = Integer.parseInt(message.substring(secondComma + 1), 16) & 0xFF;
+            sink.consume(a + d);
+        } else if(command.equals("RAMR")){
+            sink.consume(Integer.parseInt(message.substring(message.indexOf("}") + 1), 16) & 0xFFFF);
+        } else if(command.equals("6502")){
+            secondComma = message.indexOf(",", firstComma + 1);
+            thirdComma = message.indexOf(",", secondComma + 1);
+            int a = Integer.parseInt(message.substring(message.indexOf("}") + 1, secondComma), 16) & 0xFFFF;
+            int d = Integer.parseInt(message.substring(secondComma + 1, thirdComma), 16) & 0xFF;
+            boolean rw = message.substring(thirdComma + 1, thirdComma + 2).equals("1");
+            boolean rst = message.substring(thirdComma + 2).equals("1");
+            sink.consume(rw ? a : d);
+            sink.consume(rst);
+        } else if(command.equals("ERROR")){
+            secondComma = message.indexOf(",", firstComma + 1);
+            int code = Integer.parseInt(message.substring(message.indexOf("}") + 1, secondComma));
+            String msg = message.length() > secondComma + 1 ? message.substring(secondComma + 1) : "";
+            sink.consume(code + msg.length());
+        }
+    }
+
+    void processRequest(String message){
+        String command = message.substring(message.indexOf("{") + 1, message.indexOf(",")).trim();
+        if(command.equals("ROM")) sink.consume(Integer.parseInt(message.substring(message.indexOf("}") + 1), 16));
+    }
+}
@@ -0,0 +1,73 @@
+package com.xemplarsoft.bridge.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Table driven DataCRC against the bit loop it replaced, over one programmer page and a whole 32K ROM image.
+//Run with gradle jmh.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataCRCBenchmark {
+    @Param({"256", "32768"})
+    public int size;
+
+    byte[] data;
+    ByteBuffer direct;
+
+    @Setup
+    public void setUp(){
+        data = new byte[size];
+        new Random(6502).nextBytes(data);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(data).flip();
+    }
+
+    @Benchmark
+    public int table(){
+        return DataCRC.calculateCRC(data, 0, data.length);
+    }
+
+    @Benchmark
+    public int directBuffer(){
+        direct.rewind();
+        return DataCRC.update(DataCRC.INITIAL_VALUE, direct);
+    }
+
+    @Benchmark
+    public int bitLoop(){
+        return bitLoop(data, 0, data.length);
+    }
+
+    //DataCRC before it was table driven
+    static int bitLoop(byte[] bytes, int offset, int len){
+        int crc = DataCRC.INITIAL_VALUE;
+        for(int j = offset; j < offset + len; j++){
+            crc ^= (bytes[j] & 0xFF) << 8;
+            for(int i = 0; i < 8; i++){
+                if((crc & 0x8000) != 0){
+                    crc = (crc << 1) ^ 0x1021;
+                } else {
+                    crc <<= 1;
+                }
+            }
+        }
+        return crc & 0xFFFF;
+    }
+}
@@ -1,33 +1,43 @@
 package com.xemplarsoft.bridge;
 
 import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortDataListener;
-import com.fazecast.jSerialComm.SerialPortEvent;
+import com.xemplarsoft.bridge.assy.Assembler6502;
+import com.xemplarsoft.bridge.assy.AssemblyCache;
+import com.xemplarsoft.bridge.assy.BackgroundChecker;
+import com.xemplarsoft.bridge.assy.ToolProcess;
+import com.xemplarsoft.bridge.assy.VasmDiagnosticParser;
 import com.xemplarsoft.bridge.assy.AssemblyError;
 import com.xemplarsoft.bridge.comp.*;
 import com.xemplarsoft.bridge.emu.VRAM;
-import com.xemplarsoft.bridge.util.DataCRC;
+import com.xemplarsoft.bridge.io.*;
+import com.xemplarsoft.bridge.serial.*;
+import com.xemplarsoft.bridge.util.ByteDeltaBuffer;
+import com.xemplarsoft.bridge.util.BytePattern;
+import com.xemplarsoft.bridge.util.ImageFiles;
 import com.xemplarsoft.bridge.util.OSValidator;
+import com.xemplarsoft.bridge.util.SnapshotPool;
 import com.xemplarsoft.bridge.comp.*;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
-import javax.swing.text.Style;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-public class Main extends JFrame implements ModifiedListener, SerialPortDataListener {
+public class Main extends JFrame implements ModifiedListener, FrameListener, RomImageUploader.Listener, ImageVerifier.Listener, BackgroundChecker.Listener {
     //UI Vars
     protected ScheduledExecutorService scheduler;
     protected Dimension pin_visualizer_size = new Dimension(450, 50);
@@ -37,15 +47,16 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     protected JMenuItem comms_comPort, comms_connected, comms_baudRate;
     protected JButton button_connectDev, button_playPause;
     protected JToolBar tools;
+    protected JTextField searchField;
+    protected JByteViewer searchView; //Whichever view last had focus, Enter in the search field steps through it
 
     protected JTabbedPane romPane, ramPane, outputPane;
     protected volatile JByteViewer RAM_VIEW, ROM_VIEW;
     protected PinVisualizer pinVisualizer;
     protected JSyntaxPane assyCode;
     protected JTextArea assemblyOutput;
-    protected JTextPane serialOutput;
+    protected JLogPane serialOutput;
     protected StatusBar statusBar;
-    protected Style textStyle;
     protected JPanel content;
 
     protected JTextField command_input;
@@ -56,25 +67,44 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     public static SerialPort[] comm_ports;
 
     protected volatile SerialPort SELECTED_COM;
+    protected volatile SerialLink SELECTED_LINK;
+    protected volatile SerialTransport transport;
     protected String SELECTED_COM_NAME;
     protected int SELECTED_BAUD = baud_rates[0];
     protected boolean CONNECTED = false, DEVICE_RESPONSIVE = false, CLOCK_RUNNING = false;
+    protected volatile boolean BINARY_FRAMES = false, ROM_PREFETCH = false, ROM_IMAGE = false, DEVICE_EEPROM = false, DEVICE_VERIFY = false;
 
     // Assemble and Thread Vars
     protected long ASSEMBLE_COUNT = 0;
     private String TOOLCHAIN_EXECUTABLE;
     private Thread compileThread;
-    private boolean runCompile = false, assembled = false;
+    private volatile boolean runCompile = false;
+    private boolean assembled = false;
+    private volatile boolean BUILT_IN_ASSEMBLER = false; //vasm stays the default until the goldens are confirmed against it
+    public static final int ASSEMBLE_TIMEOUT = 30000; //ms vasm gets before it is killed
+    private volatile ToolProcess toolProcess;
+    private BatchedTextSink assemblySink;
+    public static final int DEFAULT_CHECK_DELAY = 750;
+    private int CHECK_DELAY = DEFAULT_CHECK_DELAY; //ms of no typing before the background check, 0 turns it off
+    private final BackgroundChecker checker = new BackgroundChecker(this);
+    private Timer checkTimer;
+    protected JCheckBoxMenuItem assemble_builtIn;
+    private final Assembler6502 assembler = new Assembler6502();
+    private byte[] assembledImage; //Output of the built-in assembler, sent to the ROM in place of the .bin
+    private File assembledFile;
+    private final AssemblyCache assemblyCache = new AssemblyCache(new File(System.getProperty("user.dir") + File.separator + "assets" + File.separator + "asmcache.bin"));
 
     //Logging Vars
     protected boolean LOG_DATA_ERROR, LOG_ADDR_ERROR, LOG_MESSAGES, LOG_DECODE_ERROR;
-    protected JCheckBoxMenuItem logs_messages, logs_data_error, logs_addr_error, logs_decode_error;
-    protected long dataErrorCount, addrErrorCount;
+    protected JCheckBoxMenuItem logs_messages, logs_data_error, logs_addr_error, logs_decode_error, logs_spill;
+    protected volatile long dataErrorCount, addrErrorCount;
 
     public Main(){
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
                 runCompile = false;
+                ToolProcess tool = toolProcess;
+                if(tool != null) tool.cancel();
                 flushSettings();
                 super.windowClosing(e);
             }
@@ -82,8 +112,14 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
 
         scheduler = Executors.newSingleThreadScheduledExecutor();
 
+        initMessages();
         initUI();
 
+        scheduler.scheduleAtFixedRate(() -> SwingUtilities.invokeLater(() -> {
+            updateTransportStatus();
+            syncRomImage();
+        }), 250, 250, TimeUnit.MILLISECONDS);
+
         obtainComPorts();
 
         initProperties();
@@ -143,6 +179,26 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
                 }
 
                 ASSEMBLE_COUNT = Long.parseLong((String)settings.get("stats.assembleCount"));
+
+                assemblyCache.load();
+
+                String checkDelay = (String)settings.get("asm.checkDelay");
+                if(checkDelay != null) setCheckDelay(Integer.parseInt(checkDelay));
+
+                BUILT_IN_ASSEMBLER = Boolean.parseBoolean((String)settings.get("asm.builtIn")); //Off when missing
+                assemble_builtIn.setState(BUILT_IN_ASSEMBLER);
+
+                String depth = (String)settings.get("rom.prefetchDepth");
+                if(depth != null) prefetcher.setDepth(Integer.parseInt(depth));
+
+                String logLines = (String)settings.get("log.maxLines");
+                if(logLines != null) serialOutput.setMaxLines(Integer.parseInt(logLines));
+
+                String logSpill = (String)settings.get("log.spillFile");
+                if(logSpill != null && logSpill.length() > 0) {
+                    serialOutput.setSpillFile(new File(logSpill));
+                    logs_spill.setState(true);
+                }
             }
         } catch (Exception e){
             JOptionPane.showMessageDialog(this, "An error occurred: " + e.getMessage(), "Config File Read Failed", JOptionPane.WARNING_MESSAGE);
@@ -161,6 +217,11 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
             settings.put("rom.lastFile", (loadedRomFile != null && loadedRomFile.exists()) ? loadedRomFile.getAbsolutePath() : "");
             settings.put("asm.lastFile", (assemblySaveFile != null && assemblySaveFile.exists()) ? assemblySaveFile.getAbsolutePath() : "");
             settings.put("stats.assembleCount", Long.toString(ASSEMBLE_COUNT));
+            settings.put("asm.builtIn", Boolean.toString(BUILT_IN_ASSEMBLER));
+            settings.put("asm.checkDelay", Integer.toString(CHECK_DELAY));
+            settings.put("rom.prefetchDepth", Integer.toString(prefetcher.getDepth()));
+            settings.put("log.maxLines", Integer.toString(serialOutput.getMaxLines()));
+            settings.put("log.spillFile", serialOutput.getSpillFile() == null ? "" : serialOutput.getSpillFile().getAbsolutePath());
 
             settings.store(new FileWriter(settingsFile), "Bridge6502 v0.01 Settings");
         } catch (Exception e){
@@ -215,10 +276,20 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
 
         RAM_VIEW = new JByteViewer();
         RAM_VIEW.setTitle("RAM");
-        RAM_VIEW.setFixedSize(0x800);
+        RAM_VIEW.setFixedSize(RAM_SIZE);
         RAM_VIEW.addHighlightRegion(new Color(1F, 1F, 0F, 0.25F), 0x0100, 0x017F, "Stack", "The 6502 uses these addresses for the stack.");
         RAM_VIEW.addHighlightRegion(new Color(0.9F, 0.6F, 1F, 0.325F), 0x0000, 0x00FF, "Zero Page", "The Zero Page can be accessed quicker than the rest of the address space.");
+        RAM_VIEW.addPropertyChangeListener("searchMatches", (e) -> updateSearchStatus());
+        RAM_VIEW.addFocusListener(new FocusAdapter() {
+            public void focusGained(FocusEvent e) {
+                searchView = RAM_VIEW;
+            }
+        });
         ramPane.addTab("RAM View", RAM_VIEW);
+        new Timer(1000 / RAM_FRAME_RATE, (e) -> {
+            applyRamDeltas();
+            applyDeviceState();
+        }).start();
         content.add(ramPane, gbc_ramTabs);
 
         GridBagConstraints gbc_romTabs = new GridBagConstraints();
@@ -234,16 +305,37 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         ROM_VIEW.setFixedSize(0x8000);
         ROM_VIEW.setOffset(0x8000);
         ROM_VIEW.addModifyListener(this);
+        ROM_VIEW.addDataListener((v, start, end) -> invalidateRomCache(start, end));
 
         ROM_VIEW.addHighlightRegion(new Color(0.0F, 0.0F, 1F, 0.325F), 0xFFFA, 0xFFFB, "NMI Vector", "When the non-maskable interrupt is triggered, the CPU loads the value in these addresses to the program counter.");
         ROM_VIEW.addHighlightRegion(new Color(0.9F, 0.6F, 0.3F, 0.325F), 0xFFFC, 0xFFFD, "Restart Vector", "After Reset, the CPU loads the value in these addresses to the program counter.");
         ROM_VIEW.addHighlightRegion(new Color(0.9F, 0.0F, 0F, 0.325F), 0xFFFE, 0xFFFF, "BRK/IRQ Vector", "When the maskable interrupt is triggered, or the BRK command is executed, the CPU loads the value in these addresses to the program counter.");
+        ROM_VIEW.addPropertyChangeListener("searchMatches", (e) -> updateSearchStatus());
+        ROM_VIEW.addFocusListener(new FocusAdapter() {
+            public void focusGained(FocusEvent e) {
+                searchView = ROM_VIEW;
+            }
+        });
+        searchView = ROM_VIEW;
         romPane.addTab("ROM View", ROM_VIEW);
 
         assyCode = new JSyntaxPane();
         assyCode.addModifyListener(this);
         JScrollPane scrollPane = new JScrollPane(assyCode);
         assyCode.init();
+        checkTimer = new Timer(CHECK_DELAY, (e) -> checkInBackground());
+        checkTimer.setRepeats(false);
+        assyCode.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                assemblyEdited();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                assemblyEdited();
+            }
+
+            public void changedUpdate(DocumentEvent e) {} //Only styling
+        });
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         romPane.addTab("Assembly View", scrollPane);
         content.add(romPane, gbc_romTabs);
@@ -254,13 +346,13 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         gbc_outPane.insets = new Insets(0, 5, 5, 5); gbc_outPane.fill = GridBagConstraints.BOTH;
         outputPane = new JTabbedPane();
 
-        serialOutput = new JTextPane();
-        serialOutput.setEditable(false);
-        textStyle = serialOutput.addStyle("Name", null);
+        serialOutput = new JLogPane();
+        serialOutput.setFlushListener(() -> outputPane.setSelectedIndex(0));
         JScrollPane serScroll = new JScrollPane(serialOutput);
 
         assemblyOutput = new JTextArea();
         assemblyOutput.setEditable(false);
+        assemblySink = new BatchedTextSink(assemblyOutput);
         JScrollPane assyScroll = new JScrollPane(assemblyOutput);
 
         outputPane.setMinimumSize(new Dimension(-1, 150));
@@ -304,6 +396,16 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         statusBar.setPreferredSize(new Dimension(-1, 16));
         statusBar.addItem("data_errors", "Data Errors", 0, false);
         statusBar.addItem("addr_errors", "Address Errors", 0, false);
+        statusBar.addItem("rx_queue", "RX Queue", "0/0", true);
+        statusBar.addItem("rx_stalls", "RX Stalls", 0, true);
+        statusBar.addItem("rx_dropped", "RX Dropped", 0, true);
+        statusBar.addItem("tx_batch", "TX Bytes per Write / Queued", "-", true);
+        statusBar.addItem("prefetch", "Prefetch Hits / Wasted", "-", true);
+        statusBar.addItem("rom_image", "ROM Image", "-", true);
+        statusBar.addItem("eeprom", "EEPROM", "-", true);
+        statusBar.addItem("verify", "Device ROM Verify", "-", true);
+        statusBar.addItem("search", "Matches ROM / RAM", "-", true);
+        statusBar.addItem("asm_cache", "Assembly Cache Hits / Misses", "0 / 0", true);
         content.add(statusBar, gbc_status);
 
         content.setMinimumSize(min_size);
@@ -344,13 +446,58 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         tools.add(createToolButton("run_on_device.png", "Reset Device and run ROM", (e) -> runCodeOnROM()));
         tools.add(createToolButton("assemble_and_run.png", "Assemble Code, Send to ROM, Reset device and run ROM", (e) -> assembleRunOnROM()));
 
-        tools.add(createToolButton("pulse.png", "Test Button", (e) -> {
-            sendPageWrite(0x8000);
-        }));
+        tools.add(createToolButton("pulse.png", "Program Device EEPROM", (e) -> programEeprom(false)));
+        tools.addSeparator();
+
+        searchField = new JTextField(14);
+        searchField.setMaximumSize(new Dimension(180, 28));
+        searchField.setToolTipText("<html>Find in ROM and RAM<br>A9 ?? 8D - hex bytes, ?? matches any byte<br>\"TEXT - ASCII text<br>$FFFA - 16 bit words<br>Enter finds the next match, Shift+Enter the previous one</html>");
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                runSearch();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                runSearch();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                runSearch();
+            }
+        });
+        searchField.addActionListener((e) -> searchView.findNext());
+        searchField.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, InputEvent.SHIFT_DOWN_MASK), "findPrevious");
+        searchField.getActionMap().put("findPrevious", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                searchView.findPrevious();
+            }
+        });
+        tools.add(searchField);
 
 
         content.add(tools, gbc_toolbar);
     }
+    //Every keystroke in the search field re-runs the search on both views
+    private void runSearch(){
+        String query = searchField.getText();
+        BytePattern pattern = null;
+        if(!query.trim().isEmpty()){
+            try {
+                pattern = BytePattern.parse(query);
+            } catch (IllegalArgumentException e){
+                searchField.setForeground(Color.RED);
+                statusBar.putValue("search", e.getMessage());
+                return;
+            }
+        }
+        searchField.setForeground(Color.BLACK);
+        ROM_VIEW.find(pattern);
+        RAM_VIEW.find(pattern);
+    }
+    private void updateSearchStatus(){
+        if(!ROM_VIEW.isSearchDone() || !RAM_VIEW.isSearchDone()) return;
+        statusBar.putValue("search", searchField.getText().trim().isEmpty() ? "-" : ROM_VIEW.getMatchCount() + " / " + RAM_VIEW.getMatchCount());
+    }
     private void initMenuBar() {
         JMenuBar menu = new JMenuBar();
         JMenu menu_file = new JMenu("File");
@@ -385,6 +532,20 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         file_ram_save.addActionListener((e) -> saveRam());
         menu_file.add(file_ram_save);
 
+        menu_file.add(new JSeparator(JSeparator.HORIZONTAL));
+
+        JMenuItem file_snapshot_take = new JMenuItem("Take RAM Snapshot");
+        file_snapshot_take.addActionListener((e) -> takeRamSnapshot());
+        menu_file.add(file_snapshot_take);
+
+        JMenuItem file_snapshot_restore = new JMenuItem("Restore RAM Snapshot");
+        file_snapshot_restore.addActionListener((e) -> restoreRamSnapshot());
+        menu_file.add(file_snapshot_restore);
+
+        JMenuItem file_snapshot_diff = new JMenuItem("Diff RAM Snapshots");
+        file_snapshot_diff.addActionListener((e) -> diffRamSnapshots());
+        menu_file.add(file_snapshot_diff);
+
         JMenu menu_comms = new JMenu("Device");
         comms_connected = new JMenuItem("Connected: false");
         comms_connected.addActionListener((e) -> connectToDevice());
@@ -409,9 +570,29 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         JMenu menu_commands = new JMenu("Commands");
 
         JMenuItem command_awake = new JMenuItem("Awake");
-        command_awake.addActionListener((e) -> sendRequest("AWAKE"));
+        command_awake.addActionListener((e) -> sendRequest("AWAKE", Protocol.CAPABILITIES));
         menu_commands.add(command_awake);
 
+        JMenuItem command_prefetch = new JMenuItem("ROM Prefetch Depth");
+        command_prefetch.addActionListener((e) -> adjustPrefetchDepth());
+        menu_commands.add(command_prefetch);
+
+        JMenuItem command_program = new JMenuItem("Program Device EEPROM");
+        command_program.addActionListener((e) -> programEeprom(false));
+        menu_commands.add(command_program);
+
+        JMenuItem command_program_full = new JMenuItem("Program Device EEPROM (All Pages)");
+        command_program_full.addActionListener((e) -> programEeprom(true));
+        menu_commands.add(command_program_full);
+
+        JMenuItem command_push_rom = new JMenuItem("Push ROM Image");
+        command_push_rom.addActionListener((e) -> pushRomImage(true));
+        menu_commands.add(command_push_rom);
+
+        JMenuItem command_verify_rom = new JMenuItem("Verify Device ROM");
+        command_verify_rom.addActionListener((e) -> verifyDeviceRom());
+        menu_commands.add(command_verify_rom);
+
         JMenuItem request_number = new JMenuItem("Save Settings");
         request_number.addActionListener((e) -> sendRequest("SAVE"));
         menu_commands.add(request_number);
@@ -434,6 +615,15 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         JMenuItem assemble_run_dev = new JMenuItem("Run on Device ROM");
         assemble_run_dev.addActionListener((e) -> runCodeOnDev());
         menu_assemble.add(assemble_run_dev);
+        menu_assemble.addSeparator();
+
+        assemble_builtIn = new JCheckBoxMenuItem("Use Built-in Assembler", BUILT_IN_ASSEMBLER);
+        assemble_builtIn.addActionListener((e) -> BUILT_IN_ASSEMBLER = assemble_builtIn.getState());
+        menu_assemble.add(assemble_builtIn);
+
+        JMenuItem assemble_checkDelay = new JMenuItem("Background Check Delay");
+        assemble_checkDelay.addActionListener((e) -> adjustCheckDelay());
+        menu_assemble.add(assemble_checkDelay);
 
 
         JMenu menu_logs = new JMenu("Log Settings");
@@ -457,6 +647,15 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         logs_decode_error.setActionCommand(3 + "");
         logs_decode_error.addActionListener((e) -> handleLogSetting(logs_decode_error));
         menu_logs.add(logs_decode_error);
+        menu_logs.addSeparator();
+
+        JMenuItem logs_max_lines = new JMenuItem("Maximum Lines");
+        logs_max_lines.addActionListener((e) -> adjustLogLines());
+        menu_logs.add(logs_max_lines);
+
+        logs_spill = new JCheckBoxMenuItem("Spill to File");
+        logs_spill.addActionListener((e) -> selectLogSpill(logs_spill.getState()));
+        menu_logs.add(logs_spill);
 
         menu.add(menu_file);
         menu.add(menu_comms);
@@ -466,6 +665,30 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         this.setJMenuBar(menu);
     }
 
+    public void adjustLogLines(){
+        String lines = JOptionPane.showInputDialog(this, "Lines to keep in the Device Communications log", serialOutput.getMaxLines());
+        if(lines == null) return;
+        try{
+            serialOutput.setMaxLines(Integer.parseInt(lines.trim()));
+        } catch (Exception e){
+            JOptionPane.showMessageDialog(this, "Line Count Invalid", "Invalid Input", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    public void selectLogSpill(boolean enable){
+        File file = null;
+        if(enable){
+            JFileChooser chooser = new JFileChooser();
+            chooser.setDialogTitle("Spill Log to File");
+            if(chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) file = chooser.getSelectedFile();
+        }
+        try {
+            serialOutput.setSpillFile(file);
+        } catch (IOException e){
+            JOptionPane.showMessageDialog(this, "An error occurred: " + e.getMessage(), "Log File Open Failed", JOptionPane.ERROR_MESSAGE);
+            file = null;
+        }
+        logs_spill.setState(file != null);
+    }
     public void handleLogSetting(JCheckBoxMenuItem item){
         boolean state = item.getState();
         int logState = Integer.parseInt(item.getActionCommand());
@@ -538,15 +761,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         jfc.setCurrentDirectory(new File(System.getProperty("user.dir")));
         jfc.addChoosableFileFilter(new FileFilter() {
             public boolean accept(File file) {
-                int periodIndex = file.getName().lastIndexOf(".");
-                if(periodIndex == -1) return file.isDirectory();
-
-                String ext = file.getName().substring(periodIndex + 1);
-                return ext.equals("bin");
+                if(file.isDirectory()) return true;
+                return ImageFormat.accepts(file);
             }
 
             public String getDescription() {
-                return "Binaries (*.bin)";
+                return ImageFormat.DESCRIPTION;
             }
         });
 
@@ -572,15 +792,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         jfc.setCurrentDirectory(new File(System.getProperty("user.dir")));
         jfc.addChoosableFileFilter(new FileFilter() {
             public boolean accept(File file) {
-                int periodIndex = file.getName().lastIndexOf(".");
-                if(periodIndex == -1) return file.isDirectory();
-
-                String ext = file.getName().substring(periodIndex + 1);
-                return ext.equals("bin");
+                if(file.isDirectory()) return true;
+                return ImageFormat.accepts(file);
             }
 
             public String getDescription() {
-                return "Binaries (*.bin)";
+                return ImageFormat.DESCRIPTION;
             }
         });
 
@@ -598,9 +815,7 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         return JFileChooser.CANCEL_OPTION;
     }
     private void clearRam(){
-        for(int i = 0; i < RAM_VIEW.getDataLength(); i++){
-            RAM_VIEW.setDataAt(i, 0);
-        }
+        RAM_VIEW.clearData();
     }
     private void loadRom(){
         JFileChooser jfc = new JFileChooser();
@@ -611,15 +826,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         jfc.removeChoosableFileFilter(jfc.getChoosableFileFilters()[0]);
         jfc.addChoosableFileFilter(new FileFilter() {
             public boolean accept(File file) {
-                int periodIndex = file.getName().lastIndexOf(".");
-                if(periodIndex == -1) return file.isDirectory();
-
-                String ext = file.getName().substring(periodIndex + 1);
-                return ext.equals("bin") || ext.equals("hex");
+                if(file.isDirectory()) return true;
+                return ImageFormat.accepts(file);
             }
 
             public String getDescription() {
-                return "Binaries (*.bin, *.hex)";
+                return ImageFormat.DESCRIPTION;
             }
         });
 
@@ -639,15 +851,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         jfc.removeChoosableFileFilter(jfc.getChoosableFileFilters()[0]);
         jfc.addChoosableFileFilter(new FileFilter() {
             public boolean accept(File file) {
-                int periodIndex = file.getName().lastIndexOf(".");
-                if(periodIndex == -1) return file.isDirectory();
-
-                String ext = file.getName().substring(periodIndex + 1);
-                return ext.equals("bin") || ext.equals("hex");
+                if(file.isDirectory()) return true;
+                return ImageFormat.accepts(file);
             }
 
             public String getDescription() {
-                return "Binaries (*.bin, *.hex)";
+                return ImageFormat.DESCRIPTION;
             }
         });
 
@@ -658,9 +867,60 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         }
     }
     private void clearRom(){
-        for(int i = 0; i < ROM_VIEW.getDataLength(); i++){
-            ROM_VIEW.setDataAt(i, 0);
+        ROM_VIEW.clearData(); //One undo step rather than one per byte
+    }
+    private void takeRamSnapshot(){
+        String name = JOptionPane.showInputDialog(this, "Snapshot Name", "Snapshot " + (ramSnapshots.size() + 1));
+        if(name == null || name.trim().isEmpty()) return;
+        long start = System.nanoTime();
+        SnapshotPool.Snapshot s = ramSnapshots.take(name.trim(), RAM_VIEW.getData());
+        long us = (System.nanoTime() - start) / 1000;
+        log("RAM SNAPSHOT \"" + s.name + "\" TAKEN IN " + us + " us, " + ramSnapshots.getCopiedPages() + " PAGES COPIED, "
+                + ramSnapshots.getSharedPages() + " SHARED, " + ramSnapshots.size() + " HELD IN " + ramSnapshots.getBytes() + " BYTES", LOG_REQUEST_COMMAND);
+    }
+    private SnapshotPool.Snapshot chooseRamSnapshot(String title, String message){
+        List<String> names = ramSnapshots.getNames();
+        if(names.isEmpty()){
+            JOptionPane.showMessageDialog(this, "No RAM snapshots have been taken.", title, JOptionPane.INFORMATION_MESSAGE);
+            return null;
+        }
+        Collections.reverse(names); //Most recently used first
+        Object name = JOptionPane.showInputDialog(this, message, title, JOptionPane.QUESTION_MESSAGE, null, names.toArray(), names.get(0));
+        return name == null ? null : ramSnapshots.get((String) name);
+    }
+    private void restoreRamSnapshot(){
+        SnapshotPool.Snapshot s = chooseRamSnapshot("Restore RAM Snapshot", "Snapshot to restore into the RAM view");
+        if(s == null) return;
+        byte[] data = ramSnapshots.read(s, 0);
+        RAM_VIEW.setDataAt(RAM_VIEW.getOffset(), data, 0, data.length); //One undo step
+        log("RAM SNAPSHOT \"" + s.name + "\" RESTORED", LOG_REQUEST_COMMAND);
+    }
+    private void diffRamSnapshots(){
+        SnapshotPool.Snapshot a = chooseRamSnapshot("Diff RAM Snapshots", "First snapshot");
+        if(a == null) return;
+        SnapshotPool.Snapshot b = chooseRamSnapshot("Diff RAM Snapshots", "Second snapshot");
+        if(b == null) return;
+
+        int[] count = new int[1];
+        int[] ranges = ramSnapshots.diff(a, b, 0, new int[32], count);
+        byte[] da = ramSnapshots.read(a, 0), db = ramSnapshots.read(b, 0);
+        int offset = RAM_VIEW.getOffset(), bytes = 0;
+        RAM_VIEW.clearSnapshotDiffRegions();
+        for(int i = 0; i < count[0]; i++){
+            int start = ranges[i << 1], end = ranges[(i << 1) + 1];
+            bytes += end - start;
+            RAM_VIEW.addSnapshotDiffRegion(offset + start, offset + end - 1, "Differs Between Snapshots",
+                    a.name + ":" + snapshotBytes(da, start, end) + "<br>" + b.name + ":" + snapshotBytes(db, start, end));
+        }
+        log("RAM SNAPSHOTS \"" + a.name + "\" AND \"" + b.name + "\" " + (bytes == 0 ? "MATCH" : "DIFFER IN " + bytes + " BYTES"), LOG_REQUEST_COMMAND);
+    }
+    private static String snapshotBytes(byte[] data, int start, int end){
+        StringBuilder builder = new StringBuilder();
+        for(int i = start; i < Math.min(end, start + 16); i++){
+            builder.append(' ').append(i < data.length ? JByteViewer.pad2HexNum(data[i] & 0xFF) : "--");
         }
+        if(end - start > 16) builder.append(" ...");
+        return builder.toString();
     }
     private int saveAssembly(boolean saveAs){
         if(!saveAs && assemblySaveFile != null){
@@ -733,12 +993,7 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     }
     private boolean saveFileFromROM(File f){
         try {
-            FileOutputStream writer = new FileOutputStream(f);
-            byte[] data = ROM_VIEW.getData();
-
-            writer.write(data);
-            writer.flush();
-            writer.close();
+            saveImage(ROM_VIEW, f);
             setTabModified(0, false);
             ROM_VIEW.resetModified();
             return true;
@@ -750,12 +1005,7 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     }
     private boolean saveFileFromRAM(File f){
         try {
-            FileOutputStream writer = new FileOutputStream(f);
-            byte[] data = RAM_VIEW.getData();
-
-            writer.write(data);
-            writer.flush();
-            writer.close();
+            saveImage(RAM_VIEW, f);
             RAM_VIEW.resetModified();
             return true;
         } catch (Exception e){
@@ -780,19 +1030,46 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
             return false;
         }
     }
+    //Record formats keep their addresses, anything else is written out raw
+    private void saveImage(JByteViewer view, File f) throws IOException {
+        ImageFormat format = ImageFormat.forSave(f);
+        if(!format.isRecords()){
+            ImageFiles.write(f, view.getStore().view(0, view.getDataLength()));
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(view.getDataLength() * 3);
+        try(RecordWriter writer = format.openWriter(out)){
+            writer.write(view.getOffset(), view.getData(), 0, view.getDataLength());
+        }
+        ImageFiles.write(f, out.toByteArray(), 0, out.size());
+    }
+    //Streams a record file into the view, only the ranges it holds are written and so only they are marked dirty.
+    //Addresses inside the view's range are taken as CPU addresses, lower ones as offsets into the image.
+    //Returns how many bytes fell outside the view. Like a binary load it cannot be undone, the history is cleared.
+    private long loadRecords(JByteViewer view, File f, ImageFormat format) throws IOException {
+        int base = view.getOffset(), size = view.getDataLength();
+        long[] skipped = new long[1];
+        try(RecordReader reader = format.openReader(f)){
+            reader.readAll((address, data, offset, length) -> {
+                int start = address >= base ? address - base : address;
+                int count = start < 0 || start >= size ? 0 : Math.min(length, size - start);
+                if(count > 0) view.setDataAt(base + start, data, offset, count);
+                skipped[0] += length - count;
+            });
+        } finally {
+            view.clearHistory(); //Also when the file broke off part way, what did load stays
+        }
+        return skipped[0];
+    }
     private void loadFileIntoROM(File f){
         try {
-            FileInputStream reader = new FileInputStream(f);
-            ArrayList<Byte> data = new ArrayList<>();
-            int read;
-            while((read = reader.read()) != -1){
-                data.add((byte) (read & 0xFF));
-            }
-            byte[] dat = new byte[data.size()];
-            for(int i = 0; i < dat.length; i++){
-                dat[i] = data.get(i);
+            ImageFormat format = ImageFormat.forLoad(f);
+            if(format.isRecords()){
+                long skipped = loadRecords(ROM_VIEW, f, format);
+                if(skipped > 0) JOptionPane.showMessageDialog(this, skipped + " bytes lie outside the ROM and were not loaded.", "ROM image partly loaded", JOptionPane.WARNING_MESSAGE);
+                return;
             }
-            ROM_VIEW.setData(dat);
+            ROM_VIEW.setData(ImageFiles.read(f));
         } catch (Exception e){
             JOptionPane.showMessageDialog(this, "Error loading file: " + e.getMessage(), "Error loading ROM image!", JOptionPane.ERROR_MESSAGE);
             e.printStackTrace();
@@ -800,16 +1077,13 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     }
     private void loadFileIntoRAM(File f){
         try {
-            FileInputStream reader = new FileInputStream(f);
-            ArrayList<Byte> data = new ArrayList<>();
-            int read;
-            while((read = reader.read()) != -1){
-                data.add((byte) (read & 0xFF));
-            }
-            byte[] dat = new byte[data.size()];
-            for(int i = 0; i < dat.length; i++){
-                dat[i] = data.get(i);
+            ImageFormat format = ImageFormat.forLoad(f);
+            if(format.isRecords()){
+                long skipped = loadRecords(RAM_VIEW, f, format);
+                if(skipped > 0) JOptionPane.showMessageDialog(this, skipped + " bytes lie outside simulated RAM and were not loaded.", "RAM state partly loaded", JOptionPane.WARNING_MESSAGE);
+                return;
             }
+            byte[] dat = ImageFiles.read(f);
             if(dat.length > RAM_VIEW.getDataLength()){
                 JOptionPane.showMessageDialog(this, "RAM file is larger than simulated RAM!", "Error loading RAM state!", JOptionPane.ERROR_MESSAGE);
                 return;
@@ -840,17 +1114,7 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
 
     private void loadFileIntoVRAM(VRAM vram, File f){
         try {
-            FileInputStream reader = new FileInputStream(f);
-            ArrayList<Byte> data = new ArrayList<>();
-            int read;
-            while((read = reader.read()) != -1){
-                data.add((byte) (read & 0xFF));
-            }
-            byte[] dat = new byte[data.size()];
-            for(int i = 0; i < dat.length; i++){
-                dat[i] = data.get(i);
-            }
-            vram.setMemory(dat);
+            ImageFiles.read(f, vram.memory, 0, vram.memory.length);
         } catch (Exception e){
             e.printStackTrace();
         }
@@ -858,83 +1122,133 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
 
     //Assembly Methods
     private int ROR_COUNTER = -1;
-    private Runnable compileCode = () -> {
-        String toolchain_path = System.getProperty("user.dir") + File.separator + "assets" +
-                File.separator + "toolchain" + File.separator + TOOLCHAIN_EXECUTABLE;
-        String inputFilePath = assemblySaveFile.getAbsolutePath();
+    private String toolchainPath(){
+        return System.getProperty("user.dir") + File.separator + "assets" + File.separator + "toolchain" + File.separator + TOOLCHAIN_EXECUTABLE;
+    }
+    //Everything about the toolchain that changes its output, part of the assembly cache key
+    private String toolchainId(boolean builtIn){
+        if(builtIn) return "builtin|" + Assembler6502.MAX_PASSES;
+        File vasm = new File(toolchainPath());
+        return vasm.getAbsolutePath() + "|" + vasm.length() + "|" + vasm.lastModified() + "|-Fbin -dotdir";
+    }
+    private void compileCode(File file, String key){
+        String toolchain_path = toolchainPath();
+        String inputFilePath = file.getAbsolutePath();
         String outputFilePath = inputFilePath.substring(0, Math.min(inputFilePath.lastIndexOf("."), inputFilePath.length()));
         outputFilePath += ".bin";
 
         try {
             ASSEMBLE_COUNT++;
 
-            Process process = new ProcessBuilder(toolchain_path, "-Fbin", "-dotdir", "-o", outputFilePath, inputFilePath).start();
-            InputStream nis = process.getInputStream();
-            InputStream eis = process.getErrorStream();
-            InputStreamReader nisr = new InputStreamReader(nis);
-            InputStreamReader eisr = new InputStreamReader(eis);
-            int c;
-            StringBuilder errorStream = new StringBuilder();
-
-            while(runCompile && (process.isAlive())){
-                if(((c = nisr.read()) != -1)){
-                    assemblyOutput.append((char)c + "");
-                }
-                if(((c = eisr.read()) != -1)){
-                    assemblyOutput.append((char)c + "");
-                    errorStream.append((char)c);
-                }
-                assemblyOutput.setCaretPosition(assemblyOutput.getText().length());
-            }
-            while(runCompile && (((c = nisr.read()) != -1))){
-                assemblyOutput.append((char)c + "");
-                assemblyOutput.setCaretPosition(assemblyOutput.getText().length());
-            }
-            while(runCompile && (((c = eisr.read()) != -1))){
-                assemblyOutput.append((char)c + "");
-                errorStream.append((char)c);
-                assemblyOutput.setCaretPosition(assemblyOutput.getText().length());
-            }
-            nisr.close();
-            eisr.close();
-
-            String errors = errorStream.toString();
-            int lastIndex = -1;
-            final ArrayList<AssemblyError> errorList = new ArrayList<>();
-
-            while((lastIndex = errors.indexOf("warning", lastIndex + 1)) != -1){
-                String errorLine = errors.substring(lastIndex, errors.indexOf("\n", lastIndex));
-                int lineIndex = errorLine.indexOf("line ") + 5;
-                int lineNumber = Integer.parseInt(errorLine.substring(lineIndex, errorLine.indexOf(" of ", lineIndex)));
-                lineIndex = errorLine.indexOf("\": ", lineIndex);
-                String fileName = errorLine.substring(errorLine.indexOf("of \"") + 4, lineIndex);
-                String errorMessage = errorLine.substring(lineIndex + 3);
-                errorList.add(new AssemblyError(lineNumber, fileName, errorMessage, AssemblyError.Type.WARNING));
-            }
-
-            while((lastIndex = errors.indexOf("error", lastIndex + 1)) != -1){
-                String errorLine = errors.substring(lastIndex, errors.indexOf("\n", lastIndex));
-                int lineIndex = errorLine.indexOf("line ") + 5;
-                int lineNumber = Integer.parseInt(errorLine.substring(lineIndex, errorLine.indexOf(" of ", lineIndex)));
-                lineIndex = errorLine.indexOf("\": ", lineIndex);
-                String fileName = errorLine.substring(errorLine.indexOf("of \"") + 4, lineIndex);
-                String errorMessage = errorLine.substring(lineIndex + 3);
-                errorList.add(new AssemblyError(lineNumber, fileName, errorMessage, AssemblyError.Type.ERROR));
+            //Diagnostics are marked in the editor as vasm reports them, postAssemble redoes the lot at the end
+            SwingUtilities.invokeLater(assyCode::clearErrors);
+            VasmDiagnosticParser parser = new VasmDiagnosticParser((error) -> SwingUtilities.invokeLater(() -> assyCode.addError(error.outermost())));
+            ToolProcess tool = new ToolProcess(assemblySink::append, parser::line, toolchain_path, "-Fbin", "-dotdir", "-o", outputFilePath, inputFilePath);
+            toolProcess = tool;
+            if(!runCompile) tool.cancel(); //Cancelled before it had started
+            int exit = tool.waitFor(ASSEMBLE_TIMEOUT);
+            toolProcess = null;
+            if(tool.isTimedOut()) assemblySink.append("Assembler timed out after " + (ASSEMBLE_TIMEOUT / 1000) + " s\n");
+            parser.finish();
+            final ArrayList<AssemblyError> errorList = new ArrayList<>(parser.getDiagnostics());
+
+            //Only a run that was not cut short is worth keeping
+            if(exit >= 0){
+                boolean failed = exit != 0;
+                for(AssemblyError error : errorList) failed |= error.type == AssemblyError.Type.ERROR;
+                File bin = new File(outputFilePath);
+                byte[] image = !failed && bin.exists() ? ImageFiles.read(bin) : null;
+                cacheResult(key, new AssemblyCache.Result(image, -1, tool.getOutput(), errorList));
             }
+            if(tool.isCancelled()) return;
+            if(tool.isTimedOut()) errorList.add(new AssemblyError(0, inputFilePath, "assembler timed out", AssemblyError.Type.ERROR));
             SwingUtilities.invokeLater(() -> {
+                assemblySink.flush();
                 postAssemble(errorList);
             });
 
             runCompile = false;
-            process.destroyForcibly();
         } catch (Exception e){
             e.printStackTrace();
         }
-    };
+    }
+
+    private void assembleInProcess(String source, File file, String key){
+        ASSEMBLE_COUNT++;
+        long start = System.nanoTime();
+        boolean success = assembler.assemble(source, file);
+        long us = (System.nanoTime() - start) / 1000;
+        final ArrayList<AssemblyError> errorList = new ArrayList<>(assembler.getErrors());
+        final byte[] image = success ? assembler.getImage() : null;
+        final int origin = assembler.getOrigin(), passes = assembler.getPasses();
+
+        StringBuilder output = new StringBuilder();
+        for(AssemblyError error : errorList) output.append(error).append("\n");
+        if(success) output.append("Assembled ").append(image.length).append(" bytes at $").append(JByteViewer.pad4HexNum(origin)).append(" in ").append(passes).append(" passes\n");
+        else output.append(errorList.size()).append(" errors\n");
+        cacheResult(key, new AssemblyCache.Result(image, origin, output.toString(), errorList));
+
+        SwingUtilities.invokeLater(() -> {
+            assemblyOutput.append(output + "Took " + us + " us\n");
+            if(success){
+                assembledImage = image;
+                assembledFile = file;
+            }
+            postAssemble(errorList);
+        });
+    }
+    //Replays an earlier assemble of the same source, the .bin is put back if it has gone missing or no longer holds
+    //the cached image
+    private void assembleFromCache(AssemblyCache.Result cached, File file, boolean builtIn){
+        if(!builtIn && cached.image != null){
+            String path = file.getAbsolutePath();
+            File bin = new File(path.substring(0, Math.min(path.lastIndexOf("."), path.length())) + ".bin");
+            try {
+                if(!bin.isFile() || bin.length() != cached.image.length || !Arrays.equals(ImageFiles.read(bin), cached.image)){
+                    ImageFiles.write(bin, cached.image, 0, cached.image.length);
+                }
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
 
+        final ArrayList<AssemblyError> errorList = new ArrayList<>(cached.errors);
+        SwingUtilities.invokeLater(() -> {
+            assemblyOutput.append(cached.output + "Source unchanged, cached result used\n");
+            if(cached.image != null){
+                assembledImage = cached.image;
+                assembledFile = file;
+            }
+            postAssemble(errorList);
+        });
+    }
+    private void cacheResult(String key, AssemblyCache.Result result){
+        assemblyCache.put(key, result);
+        try {
+            assemblyCache.save();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+    //Every edit makes a running check stale, the next one starts once typing has stopped for CHECK_DELAY
+    private void assemblyEdited(){
+        checker.edited();
+        if(CHECK_DELAY > 0) checkTimer.restart();
+    }
+    private void checkInBackground(){
+        File file = assemblySaveFile != null ? assemblySaveFile : new File(System.getProperty("user.dir"), "untitled.s");
+        checker.submit(assyCode.getText(), file);
+    }
+    public void checked(BackgroundChecker source, long generation, List<AssemblyError> errors){
+        SwingUtilities.invokeLater(() -> {
+            if(!checker.isCurrent(generation)) return;
+            assyCode.clearErrors();
+            assyCode.addErrors(errors);
+        });
+    }
     private void postAssemble(ArrayList<AssemblyError> errorList){
         assyCode.clearErrors();
-        assyCode.addErrors(errorList);
+        for(AssemblyError error : errorList) assyCode.addError(error.outermost()); //Errors inside includes mark the include line
 
         if(errorList.size() == 0 && ROR_COUNTER == 0){
             sendBinToROM();
@@ -968,6 +1282,8 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
 
         if(compileThread != null && compileThread.isAlive()){
             runCompile = false;
+            ToolProcess tool = toolProcess;
+            if(tool != null) tool.cancel();
             try {
                 compileThread.join();
             } catch (Exception e){
@@ -976,10 +1292,22 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         }
 
         outputPane.setSelectedIndex(1);
+        assemblySink.clear();
         assemblyOutput.setText(""); //Clear prev output
 
         runCompile = true;
-        compileThread = new Thread(compileCode);
+        assembledImage = null;
+        String source = assyCode.getText();
+        File file = assemblySaveFile;
+        boolean builtIn = BUILT_IN_ASSEMBLER;
+        compileThread = new Thread(() -> {
+            String key = assemblyCache.key(toolchainId(builtIn), source, file);
+            AssemblyCache.Result cached = assemblyCache.get(key);
+            SwingUtilities.invokeLater(() -> statusBar.putValue("asm_cache", assemblyCache.getHits() + " / " + assemblyCache.getMisses()));
+            if(cached != null) assembleFromCache(cached, file, builtIn);
+            else if(builtIn) assembleInProcess(source, file, key);
+            else compileCode(file, key);
+        }, "Assembler");
         compileThread.start();
     }
     private void sendBinToROM(){
@@ -991,6 +1319,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
             return;
         }
 
+        if(assembledImage != null && assemblySaveFile.equals(assembledFile)){ //Straight from memory, no .bin involved
+            if(!romHolds(assembledImage)) ROM_VIEW.setData(assembledImage); //Left alone when unchanged, nothing to upload again
+            romPane.setSelectedIndex(0);
+            return;
+        }
+
         String inputFilePath = assemblySaveFile.getAbsolutePath();
         String outputFilePath = inputFilePath.substring(0, Math.min(inputFilePath.lastIndexOf("."), inputFilePath.length()));
         outputFilePath += ".bin";
@@ -1008,6 +1342,10 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         loadFileIntoROM(loadedRomFile);
         romPane.setSelectedIndex(0);
     }
+    private boolean romHolds(byte[] image){
+        byte[] rom = ROM_VIEW.getData();
+        return rom.length >= image.length && Arrays.equals(rom, Arrays.copyOf(image, rom.length));
+    }
     private void runCodeOnROM(){
         if(!CONNECTED){
             ROR_COUNTER = -1;
@@ -1016,6 +1354,14 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         }
 
         ROR_COUNTER = 0;
+        invalidateRomCache();
+        if(ROM_IMAGE){ //Make sure the device has the current image before the clock starts
+            syncRomImage();
+            if(romImage.isBusy()){
+                runAfterUpload = true;
+                return;
+            }
+        }
         sendRequest("INHROM", "1");
         sendRequest("CLOCK", "1");
     }
@@ -1051,6 +1397,30 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
             JOptionPane.showMessageDialog(this, "Clock Interval Invalid", "Invalid Input", JOptionPane.ERROR_MESSAGE);
         }
     }
+    public void adjustPrefetchDepth(){
+        String depth = JOptionPane.showInputDialog(this, "ROM bytes to push ahead of each fetch (0 - " + RomPrefetcher.MAX_DEPTH + ", 0 disables)", prefetcher.getDepth());
+        if(depth == null) return;
+        try{
+            prefetcher.setDepth(Integer.parseInt(depth.trim()));
+            invalidateRomCache();
+        } catch (Exception e){
+            JOptionPane.showMessageDialog(this, "Prefetch Depth Invalid", "Invalid Input", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    public void adjustCheckDelay(){
+        String delay = JOptionPane.showInputDialog(this, "ms without typing before the code is checked for errors (0 disables)", CHECK_DELAY);
+        if(delay == null) return;
+        try{
+            setCheckDelay(Integer.parseInt(delay.trim()));
+        } catch (Exception e){
+            JOptionPane.showMessageDialog(this, "Check Delay Invalid", "Invalid Input", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    private void setCheckDelay(int delay){
+        CHECK_DELAY = Math.max(0, delay);
+        checkTimer.stop();
+        if(CHECK_DELAY > 0) checkTimer.setInitialDelay(CHECK_DELAY);
+    }
     public void toggleClock(){
         boolean toggle = !CLOCK_RUNNING;
         sendRequest("CLOCK", toggle ? "1" : "0");
@@ -1071,9 +1441,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
             }
         }
         if(SELECTED_COM.openPort()){
+            SELECTED_LINK = new PortLink(SELECTED_COM);
+            transport = new SerialTransport(SELECTED_LINK, this);
+            transport.start();
             Runnable r = new Runnable() {
                 public void run() {
-                    sendRequest("AWAKE");
+                    sendRequest("AWAKE", Protocol.CAPABILITIES);
                 }
             };
             scheduler.schedule(r, 1, TimeUnit.SECONDS);
@@ -1082,6 +1455,12 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     public void disconnectFromDevice(){
         CONNECTED = false;
         DEVICE_RESPONSIVE = false;
+        BINARY_FRAMES = false;
+        ROM_PREFETCH = false;
+        ROM_IMAGE = false;
+        DEVICE_EEPROM = false;
+        DEVICE_VERIFY = false;
+        if(transport != null) transport.stop();
         SELECTED_COM.closePort();
         ((JImageButton)button_connectDev).setImage(loadImageAsset("disconnected.png"));
     }
@@ -1132,7 +1511,6 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
 
         if(sp == null) return;
         SELECTED_COM = sp;
-        SELECTED_COM.addDataListener(this);
         SELECTED_COM.setBaudRate(SELECTED_BAUD);
         SELECTED_COM_NAME = SELECTED_COM.getSystemPortName();
         comms_comPort.setText("COM Port: " + SELECTED_COM_NAME);
@@ -1147,43 +1525,53 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
     }
 
     //Serial Comm Methods
-    protected int dataLengthStart = -1, dataLengthEnd = -1, dataLen, dataStart = -1, bufferIndex = 0;
-    protected boolean bangSet = false, questSet = false, reading = false;
-    protected char[] readBuffer = new char[4096];
-
-    private static byte[] pageData = new byte[256];
-    public void sendPageWrite(int addrStart){
-        String dat = "?{EEWP,263}";
-        if(addrStart < 0x1000) dat += '0';
-        if(addrStart < 0x100) dat += '0';
-        if(addrStart < 0x10) dat += '0';
-        dat += Integer.toHexString(addrStart);
-        dat += ',';
-
-        byte[] header = dat.getBytes(StandardCharsets.US_ASCII);
-        byte[] data = ROM_VIEW.getDataPageAt(addrStart, 256);
-        int crcI = DataCRC.calculateCRC(data, 0, 256);
-        byte[] crc = DataCRC.toBytes(crcI);
-
-        System.arraycopy(data, 0, pageData, 0, data.length);
-
-        byte[] total = new byte[header.length + pageData.length + crc.length];
-        System.arraycopy(header, 0, total, 0, header.length);
-        System.arraycopy(pageData, 0, total, header.length, pageData.length);
-        System.arraycopy(crc, 0, total, header.length + pageData.length, crc.length);
-
-        sendCommandRaw(total);
-
-        System.out.println("Send CRC: ");
-        System.out.println(Integer.toHexString(crcI));
+    protected final byte[] frameOut = new byte[Protocol.MAX_FRAME];
+    protected final byte[] romReply = new byte[3];
+    protected final byte[] burstPayload = new byte[2 + RomPrefetcher.MAX_DEPTH];
+    protected final RomPrefetcher prefetcher = new RomPrefetcher(0x8000, 0x10000);
+    protected final RomImageUploader romImage = new RomImageUploader(0x8000, 0x8000, this::sendFrame, this);
+    protected final EepromProgrammer eeprom = new EepromProgrammer(0x8000, 0x8000, this::sendFrame, this);
+    protected final ImageVerifier verifier = new ImageVerifier(this::sendFrame, this);
+    protected boolean runAfterUpload = false;
+    protected final MessageDecoder messages = new MessageDecoder();
+
+    public static final int RAM_SIZE = 0x800;
+    public static final int RAM_FRAME_RATE = 30;
+    protected final ByteDeltaBuffer ramDeltas = new ByteDeltaBuffer(RAM_SIZE);
+    protected final SnapshotPool ramSnapshots = new SnapshotPool();
+    protected final int[] ramDeltaAddresses = new int[RAM_SIZE];
+    protected final int[] ramDeltaData = new int[RAM_SIZE];
+
+    private void initMessages(){
+        messages.setRomEchoHandler(this::romEcho);
+        messages.setRamWriteHandler(this::ramWritten);
+        messages.setRamReadHandler(this::ramRead);
+        messages.setCpuStatusHandler(this::cpuStatus);
+        messages.setErrorHandler(this::deviceError);
+        messages.setRomRequestHandler(this::serveRom);
+        messages.setFallbackHandler(this::messageUnhandled);
     }
 
     public void sendCommandRaw(byte[] bytes){
-        if(CONNECTED){
-            SELECTED_COM.writeBytes(bytes, bytes.length);
-            SELECTED_COM.flushIOBuffers();
+        sendCommandRaw(bytes, bytes.length);
+    }
+    public void sendCommandRaw(byte[] bytes, int length){
+        sendCommandRaw(bytes, length, false);
+    }
+    public void sendCommandRaw(byte[] bytes, int length, boolean urgent){
+        SerialTransport t = transport;
+        if(CONNECTED && t != null){
+            if(urgent) t.writeUrgent(bytes, 0, length);
+            else t.write(bytes, 0, length);
         }
     }
+    public void sendFrame(int op, byte[] payload, int length){
+        sendFrame(op, payload, length, false);
+    }
+    public synchronized void sendFrame(int op, byte[] payload, int length, boolean urgent){
+        int len = FrameEncoder.encode(op, payload, 0, length, frameOut, 0);
+        sendCommandRaw(frameOut, len, urgent);
+    }
     public void sendCommand(String method, String... params){
         StringBuilder builder = new StringBuilder();
         for(int i = 0; i < params.length; i++){
@@ -1195,8 +1583,10 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         builder.append("!{").append(method).append(",").append(p.length()).append("}").append(p);
         String command = builder.toString();
 
-        if(!method.equals("ROM")) log("SENDING COMMAND: " + command, LOG_REQUEST_COMMAND);
-        sendCommandRaw(command.getBytes(StandardCharsets.US_ASCII));
+        boolean rom = method.equals("ROM");
+        if(!rom) log("SENDING COMMAND: " + command, LOG_REQUEST_COMMAND);
+        byte[] data = command.getBytes(StandardCharsets.US_ASCII);
+        sendCommandRaw(data, data.length, rom);
     }
     public void sendRequest(String method, String... params){
         StringBuilder builder = new StringBuilder();
@@ -1210,21 +1600,21 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
         String command = builder.toString();
 
         log("SENDING REQUEST: " + command, LOG_REQUEST_COMMAND);
-        if(CONNECTED || method.equals("AWAKE")){
+        SerialTransport t = transport;
+        if((CONNECTED || method.equals("AWAKE")) && t != null){
             byte[] data = command.getBytes(StandardCharsets.US_ASCII);
-            SELECTED_COM.writeBytes(data, data.length);
-            SELECTED_COM.flushIOBuffers();
+            t.write(data, 0, data.length);
         }
     }
     public void processMessage(String message){
-        int firstComma, secondComma, thirdComma;
+        int firstComma, secondComma;
         firstComma = message.indexOf(",");
         String command = message.substring(message.indexOf("{") + 1, firstComma).trim();
         int len = Integer.parseInt(message.substring(firstComma + 1, message.indexOf("}"))) + message.indexOf("}") + 1;
         if(command.equals("RESET")){
             if(ROR_COUNTER == 1){
                 ROR_COUNTER = -1;
-                romPane.setSelectedIndex(0);
+                SwingUtilities.invokeLater(() -> romPane.setSelectedIndex(0));
                 CLOCK_RUNNING = true;
                 dataErrorCount = 0;
                 addrErrorCount = 0;
@@ -1236,10 +1626,21 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
             if(!DEVICE_RESPONSIVE){
                 DEVICE_RESPONSIVE = true;
                 CONNECTED = true;
-                comms_connected.setText("Connected: TRUE");
-                ((JImageButton)button_connectDev).setImage(loadImageAsset("connected.png"));
+                SwingUtilities.invokeLater(() -> {
+                    comms_connected.setText("Connected: TRUE");
+                    ((JImageButton)button_connectDev).setImage(loadImageAsset("connected.png"));
+                });
             }
-            log("DEVICE RETURNED AWAKE", LOG_DEVICE_RESPONSE);
+            String caps = message.substring(message.indexOf("}") + 1);
+            BINARY_FRAMES = Protocol.hasCapability(caps, Protocol.CAP_BINARY);
+            ROM_PREFETCH = BINARY_FRAMES && Protocol.hasCapability(caps, Protocol.CAP_PREFETCH);
+            ROM_IMAGE = BINARY_FRAMES && Protocol.hasCapability(caps, Protocol.CAP_ROM_IMAGE);
+            DEVICE_EEPROM = BINARY_FRAMES && Protocol.hasCapability(caps, Protocol.CAP_EEPROM);
+            DEVICE_VERIFY = BINARY_FRAMES && Protocol.hasCapability(caps, Protocol.CAP_VERIFY);
+            eeprom.invalidate();
+            prefetcher.reset();
+            if(ROM_IMAGE) SwingUtilities.invokeLater(() -> pushRomImage(true));
+            log("DEVICE RETURNED AWAKE" + (BINARY_FRAMES ? ", USING BINARY FRAMES" : "") + (ROM_PREFETCH ? ", ROM PREFETCH " + prefetcher.getDepth() : "") + (ROM_IMAGE ? ", ROM IMAGE" : "") + (DEVICE_VERIFY ? ", VERIFY" : ""), LOG_DEVICE_RESPONSE);
             return;
         }
         if(command.equals("MESSAGE")){
@@ -1257,7 +1658,7 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
                 value = message.substring(secondComma + 1, len);
             }
 
-            processDeviceSetting(key, value);
+            SwingUtilities.invokeLater(() -> processDeviceSetting(key, value));
 
             log("DEVICE SETTING: " + key + " -> " + value, LOG_DEVICE_RESPONSE);
             return;
@@ -1268,248 +1669,302 @@ public class Main extends JFrame implements ModifiedListener, SerialPortDataList
                 sendRequest("RESET");
             }
             CLOCK_RUNNING = message.charAt(message.indexOf("}") + 1) == '1';
-            ((JImageButton)button_playPause).setImage(loadImageAsset(CLOCK_RUNNING ? "pause.png" : "play.png"));
+            final boolean running = CLOCK_RUNNING;
+            SwingUtilities.invokeLater(() -> ((JImageButton)button_playPause).setImage(loadImageAsset(running ? "pause.png" : "play.png")));
             log("DEVICE CLOCK " + (CLOCK_RUNNING ? "STARTED" : "STOPPED"), LOG_DEVICE_RESPONSE);
             return;
         }
-        if(command.equals("ROM")){
-            secondComma = message.indexOf(",", firstComma + 1);
-            if(secondComma == -1){
-                if(LOG_DECODE_ERROR) log("ERROR DECODING: " + message, LOG_DEVICE_ERROR);
-                return;
-            }
-            String address = message.substring(message.indexOf("}") + 1, secondComma);
-            String data = message.substring(secondComma + 1);
-
-            int a = Integer.parseInt(address, 16) & 0xFFFF;
-            int d = Integer.parseInt(data, 16) & 0xFF;
-
-            String req = "";
-
-            if(a < 0x1000) req += "0";
-            if(a < 0x100) req += "0";
-            if(a < 0x10) req += "0";
-            req += Integer.toHexString(a);
-            req += " -> ";
-            if(d < 0x10) req += "0";
-            req += Integer.toHexString(d);
-            log(req, Color.GRAY);
+        if(command.equals("RAMCL")){ //Through the delta buffer so writes queued before the clear cannot land after it
+            for(int i = 0; i < RAM_SIZE; i++) ramDeltas.put(i, 0);
+            log("DEVICE RAM CLEARED", LOG_DEVICE_RESPONSE);
             return;
         }
-        if(command.equals("RAM")){
-            secondComma = message.indexOf(",", firstComma + 1);
-            String address = message.substring(message.indexOf("}") + 1, secondComma);
-            String data = message.substring(secondComma + 1);
-
-            int a = Integer.parseInt(address, 16) & 0xFFFF;
-            int d = Integer.parseInt(data, 16) & 0xFF;
+        log("UNKNOWN COMMAND: " + message, LOG_DEVICE_ERROR);
+        return;
+    }
+    public void romEcho(int a, int d){
+        log(JByteViewer.pad4HexNum(a).toLowerCase() + " -> " + JByteViewer.pad2HexNum(d).toLowerCase(), Color.GRAY);
+    }
+    public void ramWritten(int a, int d){
+        ramDeltas.put(a, d);
+    }
+    //Runs on the EDT once per frame, every RAM write since the last frame lands in one update
+    private void applyRamDeltas(){
+        int count = ramDeltas.drain(ramDeltaAddresses, ramDeltaData);
+        if(count > 0) RAM_VIEW.setDataAt(ramDeltaAddresses, ramDeltaData, count, ramDeltas.getLast());
+    }
+    public void ramRead(int a){
+        ramReadAddress = a;
+    }
+    //Pin names built once, status messages arrive at the clock rate and must not allocate
+    private static final String[] ADDRESS_PINS = new String[16], DATA_PINS = new String[8];
+    static {
+        for(int i = 0; i < ADDRESS_PINS.length; i++) ADDRESS_PINS[i] = "A" + i;
+        for(int i = 0; i < DATA_PINS.length; i++) DATA_PINS[i] = "D" + i;
+    }
+    public void cpuStatus(int a, int d, boolean rw, boolean rst){
+        cpuState = (a & 0xFFFF) | (d & 0xFF) << 16 | (rw ? 1 << 24 : 0) | (rst ? 1 << 25 : 0);
+    }
 
-            RAM_VIEW.setWriterToAddress(a);
-            RAM_VIEW.setDataAt(a, d);
-            return;
+    //The dispatcher thread only leaves the latest reads, CPU status and error counts here, the RAM frame timer shows
+    //them on the EDT so a burst of messages costs one update per frame
+    protected volatile int romReadAddress = -1, ramReadAddress = -1, cpuState = -1;
+    private int shownRomRead = -1, shownRamRead = -1, shownCpuState = -1;
+    private long shownDataErrors, shownAddrErrors;
+    private void applyDeviceState(){
+        int rom = romReadAddress, ram = ramReadAddress, cpu = cpuState;
+        if(rom != shownRomRead){
+            shownRomRead = rom;
+            ROM_VIEW.setReaderToAddress(rom);
         }
-        if(command.equals("RAMCL")){
-            RAM_VIEW.clearData();
-            log("DEVICE RAM CLEARED", LOG_DEVICE_RESPONSE);
-            return;
+        if(ram != shownRamRead){
+            shownRamRead = ram;
+            RAM_VIEW.setReaderToAddress(ram);
         }
-        if(command.equals("RAMR")){
-            String address = message.substring(message.indexOf("}") + 1);
-            int a = Integer.parseInt(address, 16) & 0xFFFF;
+        if(cpu != shownCpuState){
+            shownCpuState = cpu;
+            for(int i = 0; i < 16; i++){
+                int addressBit = (cpu >> i) & 1;
+                pinVisualizer.setPinState(ADDRESS_PINS[i], addressBit == 1);
+            }
 
-            RAM_VIEW.setReaderToAddress(a);
-            return;
+            for(int i = 0; i < 8; i++){
+                int dataBit = (cpu >> (16 + i)) & 1;
+                pinVisualizer.setPinState(DATA_PINS[i], dataBit == 1);
+            }
+            pinVisualizer.setPinState("RW", (cpu & 1 << 24) != 0);
+            pinVisualizer.setPinState("Rst", (cpu & 1 << 25) != 0);
         }
-        if(command.equals("EEWP")){
-            secondComma = message.indexOf(",", firstComma + 1);
-            String address = message.substring(message.indexOf("}") + 1, secondComma);
-            System.out.println("Address: " + address);
-
-            return;
+        if(dataErrorCount != shownDataErrors){
+            shownDataErrors = dataErrorCount;
+            statusBar.putValue("data_errors", shownDataErrors);
         }
-        if(command.equals("6502")){
-            secondComma = message.indexOf(",", firstComma + 1);
-            thirdComma = message.indexOf(",", secondComma + 1);
-
-            if(secondComma == -1 || thirdComma == -1){
-                if(LOG_DECODE_ERROR) log("ERROR DECODING: " + message, LOG_DEVICE_ERROR);
-                return;
+        if(addrErrorCount != shownAddrErrors){
+            shownAddrErrors = addrErrorCount;
+            statusBar.putValue("addr_errors", shownAddrErrors);
+        }
+    }
+    public void deviceError(int errorMessage, byte[] buffer, int offset, int length){
+        switch (errorMessage){
+            case -1: log("DEVICE ERROR: Unknown Command", LOG_DEVICE_ERROR); break;
+            case -2: log("DEVICE ERROR: Read Buffer Overflow", LOG_DEVICE_ERROR); break;
+            case -3: {
+                dataErrorCount++;
+                if(LOG_DATA_ERROR) log("DEVICE ERROR: Invalid Data Received " + new String(buffer, offset, length, StandardCharsets.ISO_8859_1), LOG_DEVICE_ERROR);
+                break;
             }
-
-            String address = message.substring(message.indexOf("}") + 1, secondComma);
-            String data = message.substring(secondComma + 1, thirdComma);
-            String rw_s = message.substring(thirdComma + 1, thirdComma + 2);
-            String rst_s = message.substring(thirdComma + 2);
-
-            int a = Integer.parseInt(address, 16) & 0xFFFF;
-            int d = Integer.parseInt(data, 16) & 0xFF;
-            boolean rw = rw_s.equals("1");
-            boolean rst = rst_s.equals("1");
-
-            for(int i = 0; i < 16; i++){
-                int addressBit = (a >> i) & 1;
-                pinVisualizer.setPinState("A" + i, addressBit == 1);
+            case -4: {
+                addrErrorCount++;
+                if(LOG_ADDR_ERROR) log("DEVICE ERROR: Invalid Address Received " + new String(buffer, offset, length, StandardCharsets.ISO_8859_1), LOG_DEVICE_ERROR);
+                break;
             }
+            default: log("DEVICE ERROR: Unknown Error", LOG_DEVICE_ERROR); break;
+        }
+    }
+    public void serveRom(int a){
+        serveRom(a, 0);
+    }
+    public void serveRom(int a, int cacheHits){
+        int data = ROM_VIEW.getDataAt(a);
+        romReadAddress = a;
+
+        if(BINARY_FRAMES){ //Frame CRC replaces the complement and xor check bytes
+            synchronized (romReply) {
+                FrameEncoder.putAddress(romReply, 0, a);
+                romReply[2] = (byte) data;
+                sendFrame(Protocol.OP_ROM, romReply, 3, true);
+            }
+            if(ROM_PREFETCH) pushPrefetch(a, cacheHits);
+            return;
+        }
 
-            for(int i = 0; i < 8; i++){
-                int dataBit = (d >> i) & 1;
-                pinVisualizer.setPinState("D" + i, dataBit == 1);
+        int comp = 255 - data;
+        int xor = data ^ 'k';
+        String dcx = JByteViewer.pad2HexNum(data) + JByteViewer.pad2HexNum(comp) + JByteViewer.pad2HexNum(xor);
+        sendCommand("ROM", JByteViewer.pad4HexNum(a), dcx);
+    }
+
+    private void pushPrefetch(int a, int cacheHits){
+        int ranges = prefetcher.miss(a, cacheHits);
+        synchronized (burstPayload) {
+            for(int i = 0; i < ranges; i++){
+                int start = prefetcher.getRangeStart(i);
+                int len = prefetcher.getRangeLength(i);
+                FrameEncoder.putAddress(burstPayload, 0, start);
+                ROM_VIEW.getDataView(start, len).get(burstPayload, 2, len);
+                sendFrame(Protocol.OP_ROM_BURST, burstPayload, 2 + len, true);
+                burstLow = Math.min(burstLow, start);
+                burstHigh = Math.max(burstHigh, start + len);
             }
-            pinVisualizer.setPinState("RW", rw);
-            pinVisualizer.setPinState("Rst", rst);
+        }
+    }
+    //Addresses pushed since the device last cleared its cache, guarded by burstPayload
+    private int burstLow = Integer.MAX_VALUE, burstHigh = -1;
+    public void invalidateRomCache(){
+        if(!ROM_PREFETCH) return;
+        synchronized (burstPayload) {
+            burstLow = Integer.MAX_VALUE;
+            burstHigh = -1;
+            sendFrame(Protocol.OP_ROM_BURST, burstPayload, 0, true); //Same lane as the bursts so it cannot overtake them
+        }
+    }
+    //Called from the ROM view as it changes, loads, undo and snapshots included. A burst being pushed either goes out
+    //before the clear or reads the new bytes, so the device never keeps a stale one.
+    public void invalidateRomCache(int start, int end){
+        if(!ROM_PREFETCH) return;
+        synchronized (burstPayload) {
+            if(end <= burstLow || start >= burstHigh) return;
+            invalidateRomCache();
+        }
+    }
 
+    public void pushRomImage(boolean full){
+        if(!ROM_IMAGE) return;
+        ROM_VIEW.getStore().clearDirty();
+        romImage.sync(ROM_VIEW.getData(), full);
+    }
+    public void syncRomImage(){
+        if(ROM_IMAGE && ROM_VIEW.getStore().isDirty()) pushRomImage(false);
+    }
+    public void programEeprom(boolean full){
+        if(!DEVICE_EEPROM){
+            JOptionPane.showMessageDialog(this, "The connected device does not support EEPROM programming.", "EEPROM Programming Unavailable", JOptionPane.ERROR_MESSAGE);
             return;
         }
-        if(command.equals("ERROR")){
-            secondComma = message.indexOf(",", firstComma + 1);
-            if(secondComma == -1) {
-                //System.out.println("Error decoding error: " + message);
+        if(eeprom.isBusy()) return;
+        log("PROGRAMMING DEVICE EEPROM", LOG_REQUEST_COMMAND);
+        eeprom.sync(ROM_VIEW.getData(), full);
+    }
+    public void verifyDeviceRom(){
+        if(!DEVICE_VERIFY){
+            JOptionPane.showMessageDialog(this, "The connected device does not support verifying its ROM image.", "Verify Unavailable", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if(romImage.isBusy()){
+            log("ROM IMAGE UPLOAD STILL RUNNING, VERIFY AFTER IT IS SYNCED", LOG_DEVICE_ERROR);
+            return;
+        }
+        ROM_VIEW.clearDiffRegions();
+        if(verifier.verify(Protocol.SPACE_ROM, 0x8000, ROM_VIEW.getData())) log("VERIFYING DEVICE ROM", LOG_REQUEST_COMMAND);
+    }
+    public void verifyProgress(ImageVerifier source, boolean reading, int done, int total){
+        SwingUtilities.invokeLater(() -> statusBar.putValue("verify", (reading ? "Reading " : "Hashing ") + done + "/" + total));
+    }
+    public void verifyFinished(ImageVerifier source, boolean success){
+        if(success && source.getDiffCount() > 0) romImage.invalidate(); //The device is not holding what the uploader thinks it is
+        SwingUtilities.invokeLater(() -> {
+            if(!success){
+                statusBar.putValue("verify", "Failed");
+                log("DEVICE ROM VERIFY FAILED, NO ANSWER AFTER " + source.getRequestsSent() + " REQUESTS", LOG_DEVICE_ERROR);
                 return;
             }
-
-            int errorMessage = Integer.parseInt(message.substring(message.indexOf("}") + 1, secondComma));
-            String msg = message.length() > secondComma + 1 ? message.substring(secondComma + 1) : "";
-            switch (errorMessage){
-                case -1: log("DEVICE ERROR: Unknown Command", LOG_DEVICE_ERROR); break;
-                case -2: log("DEVICE ERROR: Read Buffer Overflow", LOG_DEVICE_ERROR); break;
-                case -3: {
-                    dataErrorCount++;
-                    statusBar.putValue("data_errors", dataErrorCount);
-                    if(LOG_DATA_ERROR) log("DEVICE ERROR: Invalid Data Received " + msg, LOG_DEVICE_ERROR);
-                    break;
-                }
-                case -4: {
-                    addrErrorCount++;
-                    statusBar.putValue("addr_errors", dataErrorCount);
-                    if(LOG_ADDR_ERROR) log("DEVICE ERROR: Invalid Address Received " + msg, LOG_DEVICE_ERROR);
-                    break;
-                }
-                default: log("DEVICE ERROR: Unknown Error", LOG_DEVICE_ERROR); break;
+            for(int i = 0; i < source.getDiffCount(); i++){
+                int start = source.getDiffStart(i), end = source.getDiffEnd(i);
+                StringBuilder desc = new StringBuilder("Device holds");
+                for(int a = start; a < Math.min(end, start + 16); a++) desc.append(' ').append(JByteViewer.pad2HexNum(source.getDeviceAt(a)));
+                if(end - start > 16) desc.append(" ...");
+                ROM_VIEW.addDiffRegion(start, end - 1, "Differs on Device", desc.toString());
             }
+            int bytes = source.getDifferingBytes(), blocks = source.getDifferingBlocks();
+            statusBar.putValue("verify", bytes == 0 ? "Match" : bytes + " bytes differ");
+            log("DEVICE ROM " + (bytes == 0 ? "MATCHES" : "DIFFERS, " + bytes + " BYTES IN " + blocks + " OF " + source.getBlockCount() + " BLOCKS")
+                    + ", " + source.getRequestsSent() + " REQUESTS", bytes == 0 ? LOG_DEVICE_RESPONSE : LOG_DEVICE_ERROR);
+        });
+    }
+    public void uploadProgress(RomImageUploader source, int pagesDone, int pagesTotal){
+        if(source == eeprom){
+            SwingUtilities.invokeLater(() -> statusBar.putValue("eeprom", pagesDone + "/" + pagesTotal + ", " + eeprom.getThroughput() + " B/s"));
             return;
         }
-
-        log("UNKNOWN COMMAND: " + message, LOG_DEVICE_ERROR);
-        return;
+        SwingUtilities.invokeLater(() -> statusBar.putValue("rom_image", pagesDone + "/" + pagesTotal));
     }
-    public void processRequest(String message){
-        String command = message.substring(message.indexOf("{") + 1, message.indexOf(",")).trim();
-        if(command.equals("ROM")) {
-            String address = message.substring(message.indexOf("}") + 1);
-            int a;
-            try {
-                a = Integer.parseInt(address, 16);
-            } catch (Exception e){
-                return;
-            }
-            address = JByteViewer.pad4HexNum(a);
-            int data = ROM_VIEW.getDataAt(a);
-            int comp = 255 - data;
-            int xor = data ^ 'k';
-            String dcx = JByteViewer.pad2HexNum(data) + JByteViewer.pad2HexNum(comp) + JByteViewer.pad2HexNum(xor);
-            ROM_VIEW.setReaderToAddress(a);
-
-            sendCommand("ROM", address, dcx);
+    public void uploadFinished(RomImageUploader source, boolean success, int pagesSent, int retries){
+        if(source == eeprom){
+            int skipped = eeprom.getSkippedPages();
+            long rate = eeprom.getThroughput();
+            SwingUtilities.invokeLater(() -> {
+                statusBar.putValue("eeprom", success ? "Done, " + rate + " B/s" : "Failed");
+                log("EEPROM " + (success ? "PROGRAMMED" : "PROGRAMMING FAILED") + ", " + pagesSent + " PAGES WRITTEN, " + skipped + " UNCHANGED, " + retries + " RESENT", success ? LOG_DEVICE_RESPONSE : LOG_DEVICE_ERROR);
+            });
             return;
         }
+        SwingUtilities.invokeLater(() -> {
+            statusBar.putValue("rom_image", success ? "Synced" : "Failed");
+            log("ROM IMAGE " + (success ? "SYNCED" : "UPLOAD FAILED") + ", " + pagesSent + " PAGES SENT, " + retries + " RESENT", success ? LOG_DEVICE_RESPONSE : LOG_DEVICE_ERROR);
+            if(runAfterUpload){
+                runAfterUpload = false;
+                if(success) runCodeOnROM();
+            }
+        });
     }
 
-    public void serialEvent(SerialPortEvent event) {
-        try {
-            int count = SELECTED_COM.bytesAvailable();
-            byte[] dat = new byte[count];
-            SELECTED_COM.readBytes(dat, count);
-            char c;
-
-            for(int i = 0; i < count; i++) {
-                c = (char)dat[i];
-                System.out.print(c);
-                if(c == '\n') {
-                    reading = false;
-                }
-                if(c == '!') {
-                    bangSet = true;
-                    questSet = false;
-                    reading = false;
-                }
-                else if(c == '?'){
-                    bangSet = false;
-                    questSet = true;
-                    reading = false;
-                }
-                else if(c == '{' && bangSet) { //Message data start
-                    reading = true;
-                    readBuffer[0] = '!';
-                    bangSet = false;
-                    bufferIndex = 1;
-                    dataLengthStart = -1;
-                    dataLengthEnd = -1;
-                }
-                else if(c == '{' && questSet) { //Request data start
-                    reading = true;
-                    readBuffer[0] = '?';
-                    questSet = false;
-                    bufferIndex = 1;
-                    dataLengthStart = -1;
-                    dataLengthEnd = -1;
-                }
-                else if(reading && c == ','){
-                    dataLengthStart = bufferIndex + 1;
-                }
-                else if(dataLengthStart > -1 && reading && c == '}'){
-                    dataLengthEnd = bufferIndex;
-                    String length = new String(readBuffer, dataLengthStart, dataLengthEnd - dataLengthStart);
-                    try {
-                        dataLen = Integer.parseInt(length);
-                    } catch (Exception e){
-                        reading = false;
-                    }
-                    //System.out.println("Command Len: " + dataLen);
-                    dataStart = bufferIndex;
-                }
-
-                if(reading) {
-                    bangSet = false;
-                    questSet = false;
-                    readBuffer[bufferIndex] = c;
-                    bufferIndex++;
-                }
-
-                if(reading && (dataStart + dataLen + 1) - bufferIndex == 0){
-                    String command = new String(readBuffer, 0, bufferIndex);
-                    if(command.charAt(0) == '!'){
-                        processMessage(command);
-                    } else if(command.charAt(0) == '?'){
-                        processRequest(command);
-                    }
-
-                    dataLen = 0;
-                    dataStart = -1;
-                    bufferIndex = 0;
-                    reading = false;
-                }
-            }
-        } catch (Exception e){
-            e.printStackTrace();
-        }}
-    public int getListeningEvents() {
-        return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+    public void asciiFrame(byte[] buffer, int length){
+        if(!messages.decode(buffer, length)) decodeError(0, buffer, length);
+    }
+    public void messageUnhandled(int id, byte[] buffer, int length){
+        if(buffer[0] == '!') processMessage(new String(buffer, 0, length, StandardCharsets.ISO_8859_1));
+    }
+    public void binaryFrame(int op, byte[] buffer, int offset, int length){
+        switch (op){
+            case Protocol.OP_REQ_ROM:
+                if(length < 2) break;
+                serveRom(FrameEncoder.getAddress(buffer, offset), length >= 4 ? FrameEncoder.getAddress(buffer, offset + 2) : 0);
+                return;
+            case Protocol.OP_RAM:
+                if(length < 3) break;
+                ramWritten(FrameEncoder.getAddress(buffer, offset), buffer[offset + 2] & 0xFF);
+                return;
+            case Protocol.OP_RAMR:
+                if(length < 2) break;
+                ramRead(FrameEncoder.getAddress(buffer, offset));
+                return;
+            case Protocol.OP_6502:
+                if(length < 4) break;
+                int flags = buffer[offset + 3];
+                cpuStatus(FrameEncoder.getAddress(buffer, offset), buffer[offset + 2] & 0xFF, (flags & 1) != 0, (flags & 2) != 0);
+                return;
+            case Protocol.OP_ROM_IMAGE_ACK:
+                if(length < 4) break;
+                romImage.ackReceived(FrameEncoder.getAddress(buffer, offset), FrameEncoder.getAddress(buffer, offset + 2));
+                return;
+            case Protocol.OP_EEPROM_PAGE_ACK:
+                if(length < 4) break;
+                eeprom.ackReceived(FrameEncoder.getAddress(buffer, offset), FrameEncoder.getAddress(buffer, offset + 2));
+                return;
+            case Protocol.OP_BLOCK_HASHES:
+                if(length < 3) break;
+                verifier.hashesReceived(buffer, offset, length);
+                return;
+            case Protocol.OP_BLOCK_DATA:
+                if(length < 3) break;
+                verifier.blockReceived(buffer, offset, length);
+                return;
+            case Protocol.OP_ERROR:
+                if(length < 1) break;
+                deviceError(buffer[offset], buffer, offset + 1, length - 1);
+                return;
+        }
+        if(LOG_DECODE_ERROR) log("ERROR DECODING FRAME: " + JByteViewer.pad2HexNum(op) + " (" + length + " bytes)", LOG_DEVICE_ERROR);
+    }
+    public void decodeError(int error, byte[] buffer, int length){
+        if(LOG_DECODE_ERROR) log("ERROR DECODING: " + new String(buffer, 0, length, StandardCharsets.ISO_8859_1), LOG_DEVICE_ERROR);
+    }
+    public void updateTransportStatus(){
+        SerialTransport t = transport;
+        if(t == null) return;
+        statusBar.putValue("rx_queue", t.getQueueDepth() + "/" + t.getQueueHighWater());
+        statusBar.putValue("rx_stalls", t.getQueueStalls() + t.getRingStalls());
+        statusBar.putValue("rx_dropped", t.getFramesDropped());
+        OutboundWriter w = t.getWriter();
+        statusBar.putValue("tx_batch", Math.round(w.getBytesPerWrite()) + " / " + w.getQueuedBytes() + " (max " + w.getQueuedHighWater() + ")");
+        if(ROM_PREFETCH) statusBar.putValue("prefetch", Math.round(prefetcher.getHitRate() * 100) + "% / " + prefetcher.getWasted());
     }
 
     public static final Color LOG_DEVICE_RESPONSE = new Color(0.2F, 0.8F, 0.2F, 1F);
     public static final Color LOG_DEVICE_ERROR = new Color(1.0F, 0.2F, 0.2F, 1F);
     public static final Color LOG_REQUEST_COMMAND = new Color(0.2F, 0.2F, 1.0F, 1F);
     public void log(String message, Color color){
-        outputPane.setSelectedIndex(0);
-
-        StyleConstants.setForeground(textStyle, color);
-        StyledDocument doc = serialOutput.getStyledDocument();
-        try {
-            doc.insertString(doc.getLength(), message + "\n", textStyle);
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-        serialOutput.setCaretPosition(doc.getLength());
+        serialOutput.append(message, color);
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,839 @@
+package com.xemplarsoft.bridge.assy;
+
+import com.xemplarsoft.bridge.util.ImageFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+//In-process assembler for the vasm oldstyle syntax the editor is written in, so assembling does not fork vasm and
+//round trip a .bin through the disk. The first pass sizes every line and collects the labels, the next one redoes
+//it with every label known, and passes repeat while a label still moves, which is how a forward reference to a zero
+//page label ends up using the short addressing modes. A final pass writes the bytes and reports errors. The image
+//matches vasm -Fbin: from the lowest address written to the highest, gaps filled with zeros.
+public class Assembler6502 {
+    public static final int MAX_PASSES = 12;
+    public static final int MAX_INCLUDE_DEPTH = 16;
+
+    //Addressing modes, index into the opcode table rows
+    protected static final int IMM = 0, ZP = 1, ZPX = 2, ZPY = 3, ABS = 4, ABX = 5, ABY = 6, IND = 7, IZX = 8, IZY = 9, ACC = 10, IMP = 11, REL = 12;
+
+    protected static final HashMap<String, int[]> OPCODES = new HashMap<>();
+    static {
+        //           IMM   ZP    ZPX   ZPY   ABS   ABX   ABY   IND   IZX   IZY   ACC   IMP   REL
+        op("ADC",    0x69, 0x65, 0x75,   -1, 0x6D, 0x7D, 0x79,   -1, 0x61, 0x71,   -1,   -1,   -1);
+        op("AND",    0x29, 0x25, 0x35,   -1, 0x2D, 0x3D, 0x39,   -1, 0x21, 0x31,   -1,   -1,   -1);
+        op("ASL",      -1, 0x06, 0x16,   -1, 0x0E, 0x1E,   -1,   -1,   -1,   -1, 0x0A,   -1,   -1);
+        op("BIT",      -1, 0x24,   -1,   -1, 0x2C,   -1,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("CMP",    0xC9, 0xC5, 0xD5,   -1, 0xCD, 0xDD, 0xD9,   -1, 0xC1, 0xD1,   -1,   -1,   -1);
+        op("CPX",    0xE0, 0xE4,   -1,   -1, 0xEC,   -1,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("CPY",    0xC0, 0xC4,   -1,   -1, 0xCC,   -1,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("DEC",      -1, 0xC6, 0xD6,   -1, 0xCE, 0xDE,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("EOR",    0x49, 0x45, 0x55,   -1, 0x4D, 0x5D, 0x59,   -1, 0x41, 0x51,   -1,   -1,   -1);
+        op("INC",      -1, 0xE6, 0xF6,   -1, 0xEE, 0xFE,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("JMP",      -1,   -1,   -1,   -1, 0x4C,   -1,   -1, 0x6C,   -1,   -1,   -1,   -1,   -1);
+        op("JSR",      -1,   -1,   -1,   -1, 0x20,   -1,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("LDA",    0xA9, 0xA5, 0xB5,   -1, 0xAD, 0xBD, 0xB9,   -1, 0xA1, 0xB1,   -1,   -1,   -1);
+        op("LDX",    0xA2, 0xA6,   -1, 0xB6, 0xAE,   -1, 0xBE,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("LDY",    0xA0, 0xA4, 0xB4,   -1, 0xAC, 0xBC,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("LSR",      -1, 0x46, 0x56,   -1, 0x4E, 0x5E,   -1,   -1,   -1,   -1, 0x4A,   -1,   -1);
+        op("ORA",    0x09, 0x05, 0x15,   -1, 0x0D, 0x1D, 0x19,   -1, 0x01, 0x11,   -1,   -1,   -1);
+        op("ROL",      -1, 0x26, 0x36,   -1, 0x2E, 0x3E,   -1,   -1,   -1,   -1, 0x2A,   -1,   -1);
+        op("ROR",      -1, 0x66, 0x76,   -1, 0x6E, 0x7E,   -1,   -1,   -1,   -1, 0x6A,   -1,   -1);
+        op("SBC",    0xE9, 0xE5, 0xF5,   -1, 0xED, 0xFD, 0xF9,   -1, 0xE1, 0xF1,   -1,   -1,   -1);
+        op("STA",      -1, 0x85, 0x95,   -1, 0x8D, 0x9D, 0x99,   -1, 0x81, 0x91,   -1,   -1,   -1);
+        op("STX",      -1, 0x86,   -1, 0x96, 0x8E,   -1,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+        op("STY",      -1, 0x84, 0x94,   -1, 0x8C,   -1,   -1,   -1,   -1,   -1,   -1,   -1,   -1);
+
+        String[] branches = {"BPL", "BMI", "BVC", "BVS", "BCC", "BCS", "BNE", "BEQ"};
+        for(int i = 0; i < branches.length; i++) single(branches[i], REL, 0x10 + (i << 5));
+
+        String[] implied = {"BRK", "CLC", "CLD", "CLI", "CLV", "DEX", "DEY", "INX", "INY", "NOP", "PHA", "PHP", "PLA", "PLP",
+                "RTI", "RTS", "SEC", "SED", "SEI", "TAX", "TAY", "TSX", "TXA", "TXS", "TYA"};
+        int[] codes = {0x00, 0x18, 0xD8, 0x58, 0xB8, 0xCA, 0x88, 0xE8, 0xC8, 0xEA, 0x48, 0x08, 0x68, 0x28,
+                0x40, 0x60, 0x38, 0xF8, 0x78, 0xAA, 0xA8, 0xBA, 0x8A, 0x9A, 0x98};
+        for(int i = 0; i < implied.length; i++) single(implied[i], IMP, codes[i]);
+    }
+
+    private static void op(String name, int... codes){
+        OPCODES.put(name, codes);
+    }
+
+    private static void single(String name, int mode, int code){
+        int[] codes = new int[13];
+        Arrays.fill(codes, -1);
+        codes[mode] = code;
+        OPCODES.put(name, codes);
+    }
+
+    protected static final HashSet<String> BYTE_DIRECTIVES = set("byte", "db", "dc.b", "defb", "dfb", "fcb", "text", "ascii", "asc");
+    protected static final HashSet<String> STRING_DIRECTIVES = set("asciiz", "string");
+    protected static final HashSet<String> WORD_DIRECTIVES = set("word", "dw", "dc.w", "defw", "fdb", "addr");
+    protected static final HashSet<String> LONG_DIRECTIVES = set("long", "dd", "dc.l", "defl");
+    protected static final HashSet<String> SPACE_DIRECTIVES = set("blk", "ds", "dsb", "fill", "res", "spc", "ds.b");
+    protected static final HashSet<String> DIRECTIVES = set("org", "align", "even", "include", "incbin", "end", "equ", "set");
+    static {
+        DIRECTIVES.addAll(BYTE_DIRECTIVES);
+        DIRECTIVES.addAll(STRING_DIRECTIVES);
+        DIRECTIVES.addAll(WORD_DIRECTIVES);
+        DIRECTIVES.addAll(LONG_DIRECTIVES);
+        DIRECTIVES.addAll(SPACE_DIRECTIVES);
+    }
+
+    private static HashSet<String> set(String... names){
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    protected final byte[] memory = new byte[0x10000];
+    protected final boolean[] written = new boolean[0x10000];
+    protected final HashMap<String, Integer> symbols = new HashMap<>();
+    protected final HashSet<String> defined = new HashSet<>(), variables = new HashSet<>();
+    protected final HashMap<String, String> includes = new HashMap<>();
+    protected final ArrayList<AssemblyError> errors = new ArrayList<>();
+    protected final ArrayList<Integer> includeLines = new ArrayList<>(); //Lines of the includes being read, outermost first
+    protected final ArrayList<String> includeFiles = new ArrayList<>();
+
+    protected boolean last, changed, ended;
+    protected volatile boolean cancelled;
+    protected int pc, low, high, passes;
+    protected int lineNumber;
+    protected String file, scope = "";
+    protected File directory;
+
+    //Operand being worked on and the read position in it
+    protected String text;
+    protected int at;
+    protected boolean known;
+
+    //Assembles source, errors and the image are kept until the next call. Includes are looked up next to file.
+    public boolean assemble(String source, File file){
+        cancelled = false;
+        directory = file.getAbsoluteFile().getParentFile();
+        includes.clear();
+        symbols.clear();
+        variables.clear();
+
+        last = false;
+        for(passes = 1; passes <= MAX_PASSES; passes++){
+            pass(source, file.getPath());
+            if(!changed || cancelled) break;
+        }
+        if(cancelled) return false;
+        last = true;
+        pass(source, file.getPath());
+        if(passes > MAX_PASSES) error("too many passes, labels keep moving");
+        return !cancelled && !hasErrors();
+    }
+
+    private void pass(String source, String name){
+        errors.clear();
+        includeLines.clear();
+        includeFiles.clear();
+        defined.clear();
+        Arrays.fill(written, false);
+        changed = false;
+        ended = false;
+        pc = 0;
+        low = 0x10000;
+        high = 0;
+        scope = "";
+        source(source, name, 0);
+    }
+
+    private void source(String source, String name, int depth){
+        String outerFile = file;
+        int outerLine = lineNumber;
+        if(depth > 0){
+            includeLines.add(outerLine);
+            includeFiles.add(outerFile);
+        }
+        file = name;
+        lineNumber = 0;
+
+        int start = 0, length = source.length();
+        while(start <= length && !ended && !cancelled){
+            int end = source.indexOf('\n', start);
+            if(end < 0) end = length;
+            lineNumber++;
+            String line = source.substring(start, end > start && source.charAt(end - 1) == '\r' ? end - 1 : end);
+            try {
+                line(line, depth);
+            } catch (AssemblyException e){
+                error(e.getMessage());
+            }
+            start = end + 1;
+        }
+
+        file = outerFile;
+        lineNumber = outerLine;
+        if(depth > 0){
+            includeLines.remove(includeLines.size() - 1);
+            includeFiles.remove(includeFiles.size() - 1);
+        }
+    }
+
+    private void line(String line, int depth){
+        line = stripComment(line);
+        if(line.trim().isEmpty()) return;
+        if(line.charAt(0) == '*' && !line.substring(1).trim().startsWith("=")) return; //Comment line
+
+        String label = null;
+        int i = 0;
+        if(!Character.isWhitespace(line.charAt(0))){
+            i = identifierEnd(line, 0);
+            String word = line.substring(0, i);
+            boolean colon = i < line.length() && line.charAt(i) == ':';
+            if(!colon && word.startsWith(".") && isDirective(word)){
+                i = 0;
+            } else if(word.equals("*")){
+                i = 0;
+            } else {
+                if(word.isEmpty()) throw new AssemblyException("syntax error");
+                label = word;
+                if(colon) i++;
+            }
+        } else {
+            int s = skipSpace(line, 0);
+            int e = identifierEnd(line, s);
+            if(e > s && e < line.length() && line.charAt(e) == ':'){
+                label = line.substring(s, e);
+                i = e + 1;
+            }
+        }
+
+        String rest = line.substring(i).trim();
+        if(rest.startsWith("*") && rest.substring(1).trim().startsWith("=")){
+            org(evaluate(rest.substring(rest.indexOf('=') + 1)));
+            if(label != null){
+                if(!isLocal(label)) scope = label;
+                define(label, pc, false);
+            }
+            return;
+        }
+        if(rest.startsWith("=")){
+            if(label == null) throw new AssemblyException("missing symbol name");
+            define(label, evaluate(rest.substring(1)), false);
+            return;
+        }
+
+        int e = identifierEnd(rest, 0);
+        String word = rest.substring(0, e);
+        String operand = rest.substring(e).trim();
+        String name = word.toLowerCase();
+        if(name.startsWith(".")) name = name.substring(1);
+
+        if(name.equals("equ") || name.equals("set")){
+            if(label == null) throw new AssemblyException("missing symbol name");
+            define(label, evaluate(operand), name.equals("set"));
+            return;
+        }
+        if(label != null){
+            if(!isLocal(label)) scope = label;
+            define(label, pc, false);
+        }
+        if(word.isEmpty()) return;
+
+        int[] codes = OPCODES.get(word.toUpperCase());
+        if(codes != null){
+            instruction(word.toUpperCase(), codes, operand);
+            return;
+        }
+        if(DIRECTIVES.contains(name)){
+            directive(name, operand, depth);
+            return;
+        }
+        if(isUnsupported(name)) throw new AssemblyException("directive <" + word + "> is not supported by the built-in assembler");
+        throw new AssemblyException("unknown mnemonic <" + word + ">");
+    }
+
+    private static boolean isDirective(String word){
+        return DIRECTIVES.contains(word.substring(1).toLowerCase()) || isUnsupported(word.substring(1).toLowerCase());
+    }
+
+    private static boolean isUnsupported(String name){
+        return name.equals("if") || name.startsWith("if") && name.length() <= 6 || name.equals("else") || name.equals("endif")
+                || name.equals("macro") || name.equals("endm") || name.equals("rept") || name.equals("endr") || name.equals("section")
+                || name.equals("rorg") || name.equals("rend");
+    }
+
+    //Instructions
+
+    private void instruction(String mnemonic, int[] codes, String operand){
+        if(codes[REL] != -1){
+            int target = evaluate(operand);
+            int offset = target - (pc + 2);
+            if(last && known && (offset < -128 || offset > 127)) throw new AssemblyException("branch destination out of range");
+            emit(codes[REL]);
+            emit(offset);
+            return;
+        }
+
+        String lower = operand.toLowerCase();
+        if(operand.isEmpty() || lower.equals("a")){
+            int mode = codes[IMP] != -1 && operand.isEmpty() ? IMP : ACC;
+            if(codes[mode] == -1) throw new AssemblyException("illegal addressing mode for " + mnemonic);
+            emit(codes[mode]);
+            return;
+        }
+        if(operand.startsWith("#")){
+            if(codes[IMM] == -1) throw new AssemblyException("illegal addressing mode for " + mnemonic);
+            int value = evaluate(operand.substring(1));
+            if(last && known && (value < -128 || value > 255)) throw new AssemblyException("operand doesn't fit into 8 bits");
+            emit(codes[IMM]);
+            emit(value);
+            return;
+        }
+
+        int index = -1; //0 x, 1 y
+        String address = operand;
+        if(lower.endsWith(",x") || lower.endsWith(",y")){
+            index = lower.endsWith(",x") ? 0 : 1;
+            address = operand.substring(0, operand.length() - 2).trim();
+        }
+
+        if(address.startsWith("(") && closingParen(address, 0) == address.length() - 1){
+            String inner = address.substring(1, address.length() - 1).trim();
+            String innerLower = inner.toLowerCase();
+            if(index == -1 && innerLower.endsWith(",x") && codes[IZX] != -1){
+                zeroPage(mnemonic, codes[IZX], evaluate(inner.substring(0, inner.length() - 2)));
+                return;
+            }
+            if(index == 1 && codes[IZY] != -1){
+                zeroPage(mnemonic, codes[IZY], evaluate(inner));
+                return;
+            }
+            if(index == -1 && codes[IND] != -1){
+                emit(codes[IND]);
+                emitWord(evaluate(inner));
+                return;
+            }
+        }
+
+        int value = evaluate(address);
+        boolean zero = known && value >= 0 && value <= 0xFF;
+        int zp = index == -1 ? ZP : index == 0 ? ZPX : ZPY;
+        int abs = index == -1 ? ABS : index == 0 ? ABX : ABY;
+        if(codes[zp] != -1 && (zero || codes[abs] == -1)){
+            zeroPage(mnemonic, codes[zp], value);
+            return;
+        }
+        if(codes[abs] == -1) throw new AssemblyException("illegal addressing mode for " + mnemonic);
+        if(last && (value < 0 || value > 0xFFFF)) throw new AssemblyException("operand doesn't fit into 16 bits");
+        emit(codes[abs]);
+        emitWord(value);
+    }
+
+    private void zeroPage(String mnemonic, int code, int value){
+        if(last && (value < 0 || value > 0xFF)) throw new AssemblyException("operand doesn't fit into 8 bits");
+        emit(code);
+        emit(value);
+    }
+
+    //Directives
+
+    private void directive(String name, String operand, int depth){
+        if(name.equals("org")){
+            org(evaluate(operand));
+            return;
+        }
+        if(name.equals("end")){
+            ended = true;
+            return;
+        }
+        if(name.equals("even")){
+            if((pc & 1) != 0) emit(0);
+            return;
+        }
+        if(name.equals("align")){
+            List<String> args = split(operand);
+            int bits = evaluate(args.get(0));
+            int fill = args.size() > 1 ? evaluate(args.get(1)) : 0;
+            if(bits < 0 || bits > 16) throw new AssemblyException("bad alignment");
+            int mask = (1 << bits) - 1;
+            while((pc & mask) != 0) emit(fill);
+            return;
+        }
+        if(name.equals("include")){
+            if(depth >= MAX_INCLUDE_DEPTH) throw new AssemblyException("include nested too deeply");
+            File f = resolve(string(operand));
+            String source = includes.get(f.getPath());
+            if(source == null){
+                source = new String(read(f), StandardCharsets.ISO_8859_1);
+                includes.put(f.getPath(), source);
+            }
+            source(source, f.getPath(), depth + 1);
+            return;
+        }
+        if(name.equals("incbin")){
+            List<String> args = split(operand);
+            byte[] data = read(resolve(string(args.get(0))));
+            int offset = args.size() > 1 ? evaluate(args.get(1)) : 0;
+            int count = args.size() > 2 ? evaluate(args.get(2)) : data.length - offset;
+            if(offset < 0 || count < 0 || offset + count > data.length) throw new AssemblyException("incbin range outside the file");
+            for(int i = 0; i < count; i++) emit(data[offset + i]);
+            return;
+        }
+        if(SPACE_DIRECTIVES.contains(name)){
+            List<String> args = split(operand);
+            int count = evaluate(args.get(0));
+            int fill = args.size() > 1 ? evaluate(args.get(1)) : 0;
+            if(count < 0) throw new AssemblyException("negative space");
+            for(int i = 0; i < count; i++) emit(fill);
+            return;
+        }
+
+        int size = WORD_DIRECTIVES.contains(name) ? 2 : LONG_DIRECTIVES.contains(name) ? 4 : 1;
+        boolean terminate = STRING_DIRECTIVES.contains(name);
+        for(String item : split(operand)){
+            if(size == 1 && isString(item)){
+                for(byte b : unquote(item)) emit(b);
+                if(terminate) emit(0);
+                continue;
+            }
+            int value = evaluate(item);
+            if(size == 1){
+                if(last && known && (value < -128 || value > 255)) throw new AssemblyException("data doesn't fit into 8 bits");
+                emit(value);
+            } else if(size == 2){
+                if(last && known && (value < -32768 || value > 0xFFFF)) throw new AssemblyException("data doesn't fit into 16 bits");
+                emitWord(value);
+            } else {
+                emitWord(value);
+                emitWord(value >> 16);
+            }
+        }
+    }
+
+    private void org(int address){
+        if(address < 0 || address > 0xFFFF) throw new AssemblyException("org address out of range");
+        pc = address;
+    }
+
+    private File resolve(String name){
+        File f = new File(name);
+        return f.isAbsolute() ? f : new File(directory, name);
+    }
+
+    private static byte[] read(File f){
+        try {
+            return ImageFiles.read(f);
+        } catch (IOException e){
+            throw new AssemblyException("cannot open file <" + f.getPath() + ">");
+        }
+    }
+
+    //Output
+
+    private void emit(int b){
+        if(pc > 0xFFFF) throw new AssemblyException("address out of range");
+        if(last){
+            if(written[pc]) throw new AssemblyException("output overlaps at $" + Integer.toHexString(pc).toUpperCase());
+            written[pc] = true;
+            memory[pc] = (byte) b;
+        }
+        if(pc < low) low = pc;
+        if(pc + 1 > high) high = pc + 1;
+        pc++;
+    }
+
+    private void emitWord(int w){
+        emit(w);
+        emit(w >> 8);
+    }
+
+    //Symbols
+
+    private void define(String name, int value, boolean variable){
+        name = qualify(name);
+        if(defined.contains(name) && !(variable && variables.contains(name))){
+            if(last) throw new AssemblyException("symbol <" + name + "> redefined");
+            return;
+        }
+        defined.add(name);
+        if(variable) variables.add(name);
+        //A set symbol takes several values in one pass, only the labels it is built from can keep passes going
+        Integer old = symbols.put(name, value);
+        if(!variable && (old == null || old != value)) changed = true;
+    }
+
+    private static boolean isLocal(String name){
+        return name.startsWith(".") || name.endsWith("$");
+    }
+
+    //Local labels live under the last global label
+    private String qualify(String name){
+        return isLocal(name) ? scope + (name.startsWith(".") ? name : "." + name) : name;
+    }
+
+    //Expressions
+
+    protected int evaluate(String expression){
+        text = expression;
+        at = 0;
+        known = true;
+        skip();
+        if(at >= text.length()) throw new AssemblyException("missing operand");
+        long value = or();
+        skip();
+        if(at < text.length()) throw new AssemblyException("syntax error in <" + expression.trim() + ">");
+        return (int) value;
+    }
+
+    private long or(){
+        long v = and();
+        while(accept("||")) v = (and() != 0 | v != 0) ? 1 : 0;
+        return v;
+    }
+
+    private long and(){
+        long v = bitOr();
+        while(accept("&&")) v = (bitOr() != 0 & v != 0) ? 1 : 0;
+        return v;
+    }
+
+    private long bitOr(){
+        long v = bitXor();
+        while(peek('|') && !peek("||")){
+            at++;
+            v |= bitXor();
+        }
+        return v;
+    }
+
+    private long bitXor(){
+        long v = bitAnd();
+        while(accept("^")) v ^= bitAnd();
+        return v;
+    }
+
+    private long bitAnd(){
+        long v = equality();
+        while(peek('&') && !peek("&&")){
+            at++;
+            v &= equality();
+        }
+        return v;
+    }
+
+    private long equality(){
+        long v = compare();
+        while(true){
+            if(accept("==")) v = v == compare() ? -1 : 0;
+            else if(accept("!=") || accept("<>")) v = v != compare() ? -1 : 0;
+            else if(peek('=') && !peek("==")){
+                at++;
+                v = v == compare() ? -1 : 0;
+            } else return v;
+        }
+    }
+
+    private long compare(){
+        long v = shift();
+        while(true){
+            if(accept("<=")) v = v <= shift() ? -1 : 0;
+            else if(accept(">=")) v = v >= shift() ? -1 : 0;
+            else if(peek('<') && !peek("<<") && !peek("<>")){
+                at++;
+                v = v < shift() ? -1 : 0;
+            } else if(peek('>') && !peek(">>")){
+                at++;
+                v = v > shift() ? -1 : 0;
+            } else return v;
+        }
+    }
+
+    private long shift(){
+        long v = sum();
+        while(true){
+            if(accept("<<")) v <<= sum();
+            else if(accept(">>")) v >>= sum();
+            else return v;
+        }
+    }
+
+    private long sum(){
+        long v = product();
+        while(true){
+            if(accept("+")) v += product();
+            else if(accept("-")) v -= product();
+            else return v;
+        }
+    }
+
+    private long product(){
+        long v = unary();
+        while(true){
+            if(accept("*")) v *= unary();
+            else if(accept("/")){
+                long d = unary();
+                if(d == 0){
+                    if(last && known) throw new AssemblyException("division by zero");
+                    v = 0;
+                } else v /= d;
+            } else if(accept("%")){
+                long d = unary();
+                if(d == 0){
+                    if(last && known) throw new AssemblyException("division by zero");
+                    v = 0;
+                } else v %= d;
+            } else return v;
+        }
+    }
+
+    private long unary(){
+        skip();
+        if(accept("-")) return -unary();
+        if(accept("+")) return unary();
+        if(accept("~")) return ~unary();
+        if(accept("!")) return unary() == 0 ? 1 : 0;
+        if(accept("<")) return unary() & 0xFF;
+        if(accept(">")) return (unary() >> 8) & 0xFF;
+        return primary();
+    }
+
+    private long primary(){
+        skip();
+        if(at >= text.length()) throw new AssemblyException("missing operand");
+        char c = text.charAt(at);
+
+        if(c == '('){
+            at++;
+            long v = or();
+            if(!accept(")")) throw new AssemblyException("missing closing parenthesis");
+            return v;
+        }
+        if(c == '*'){
+            at++;
+            return pc;
+        }
+        if(c == '\'' || c == '"'){
+            int end = closingQuote(text, at);
+            byte[] chars = unquote(text.substring(at, end + 1));
+            at = end + 1;
+            long v = 0;
+            for(byte b : chars) v = (v << 8) | (b & 0xFF);
+            return v;
+        }
+        if(c == '$' && at + 1 < text.length() && Character.digit(text.charAt(at + 1), 16) >= 0){
+            at++;
+            return number(16);
+        }
+        if(c == '%' && at + 1 < text.length() && Character.digit(text.charAt(at + 1), 2) >= 0){
+            at++;
+            return number(2);
+        }
+        if(c == '@' && at + 1 < text.length() && Character.digit(text.charAt(at + 1), 8) >= 0){
+            at++;
+            return number(8);
+        }
+        if(Character.isDigit(c)){
+            if(c == '0' && at + 2 < text.length() && (text.charAt(at + 1) == 'x' || text.charAt(at + 1) == 'X')){
+                at += 2;
+                return number(16);
+            }
+            int e = at;
+            while(e < text.length() && Character.digit(text.charAt(e), 16) >= 0) e++;
+            if(e < text.length() && (text.charAt(e) == 'h' || text.charAt(e) == 'H') && !isIdentifierChar(e + 1)){
+                long v = Long.parseLong(text.substring(at, e), 16);
+                at = e + 1;
+                return v;
+            }
+            return number(10);
+        }
+
+        int e = identifierEnd(text, at);
+        if(e == at) throw new AssemblyException("syntax error in <" + text.trim() + ">");
+        String name = qualify(text.substring(at, e));
+        at = e;
+        Integer v = symbols.get(name); //Not defined yet this pass, the value from the pass before stands in
+        if(v == null){
+            known = false;
+            if(last) throw new AssemblyException("undefined symbol <" + name + ">");
+            return 0;
+        }
+        return v;
+    }
+
+    private boolean isIdentifierChar(int i){
+        return i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_');
+    }
+
+    private long number(int radix){
+        int s = at;
+        while(at < text.length() && Character.digit(text.charAt(at), radix) >= 0) at++;
+        if(s == at) throw new AssemblyException("bad number");
+        return Long.parseLong(text.substring(s, at), radix);
+    }
+
+    private void skip(){
+        while(at < text.length() && Character.isWhitespace(text.charAt(at))) at++;
+    }
+
+    private boolean peek(char c){
+        skip();
+        return at < text.length() && text.charAt(at) == c;
+    }
+
+    private boolean peek(String s){
+        skip();
+        return text.startsWith(s, at);
+    }
+
+    private boolean accept(String s){
+        skip();
+        if(!text.startsWith(s, at)) return false;
+        at += s.length();
+        return true;
+    }
+
+    //Text helpers
+
+    private static String stripComment(String line){
+        for(int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if(c == ';') return line.substring(0, i);
+            if(c == '"' || c == '\'') i = Math.max(i, closingQuote(line, i));
+        }
+        return line;
+    }
+
+    private static int closingQuote(String s, int open){
+        char q = s.charAt(open);
+        for(int i = open + 1; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c == '\\') i++;
+            else if(c == q) return i;
+        }
+        throw new AssemblyException("unterminated string");
+    }
+
+    private static int closingParen(String s, int open){
+        int depth = 0;
+        for(int i = open; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c == '"' || c == '\'') i = closingQuote(s, i);
+            else if(c == '(') depth++;
+            else if(c == ')' && --depth == 0) return i;
+        }
+        return -1;
+    }
+
+    private static int identifierEnd(String s, int start){
+        int i = start;
+        while(i < s.length()){
+            char c = s.charAt(i);
+            if(Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$' && i > start) i++;
+            else break;
+        }
+        return i;
+    }
+
+    private static int skipSpace(String s, int i){
+        while(i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static boolean isString(String item){
+        char c = item.isEmpty() ? 0 : item.charAt(0);
+        return (c == '"' || c == '\'') && closingQuote(item, 0) == item.length() - 1;
+    }
+
+    private static String string(String operand){
+        String s = operand.trim();
+        if(s.isEmpty()) throw new AssemblyException("missing file name");
+        return isString(s) ? new String(unquote(s), StandardCharsets.ISO_8859_1) : s;
+    }
+
+    private static byte[] unquote(String s){
+        byte[] out = new byte[s.length()];
+        int n = 0;
+        for(int i = 1; i < s.length() - 1; i++){
+            char c = s.charAt(i);
+            if(c == '\\' && i + 1 < s.length() - 1){
+                char e = s.charAt(++i);
+                c = e == 'n' ? '\n' : e == 'r' ? '\r' : e == 't' ? '\t' : e == '0' ? '\0' : e;
+            }
+            out[n++] = (byte) c;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    //Splits on commas outside of strings and parentheses
+    private static List<String> split(String operand){
+        ArrayList<String> items = new ArrayList<>();
+        int depth = 0, start = 0;
+        for(int i = 0; i < operand.length(); i++){
+            char c = operand.charAt(i);
+            if(c == '"' || c == '\'') i = closingQuote(operand, i);
+            else if(c == '(') depth++;
+            else if(c == ')') depth--;
+            else if(c == ',' && depth == 0){
+                items.add(operand.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        items.add(operand.substring(start).trim());
+        if(items.size() == 1 && items.get(0).isEmpty()) throw new AssemblyException("missing operand");
+        return items;
+    }
+
+    private void error(String message){
+        AssemblyError outer = null;
+        for(int i = 0; i < includeLines.size(); i++){
+            outer = new AssemblyError(includeLines.get(i), includeFiles.get(i), message, AssemblyError.Type.ERROR, outer);
+        }
+        errors.add(new AssemblyError(lineNumber, file, message, AssemblyError.Type.ERROR, outer));
+    }
+
+    //Results
+
+    //Safe from any thread, an assemble running now stops at its next line and returns false
+    public void cancel(){
+        cancelled = true;
+    }
+
+    //The last assemble was stopped by cancel, its errors and image are incomplete
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    public boolean hasErrors(){
+        for(AssemblyError e : errors){
+            if(e.type == AssemblyError.Type.ERROR) return true;
+        }
+        return false;
+    }
+
+    public List<AssemblyError> getErrors(){
+        return errors;
+    }
+
+    //First address written, the image starts there
+    public int getOrigin(){
+        return high == 0 ? 0 : low;
+    }
+
+    //Same bytes vasm -Fbin would write
+    public byte[] getImage(){
+        return high == 0 ? new byte[0] : Arrays.copyOfRange(memory, low, high);
+    }
+
+    public int getPasses(){
+        return Math.min(passes, MAX_PASSES) + 1;
+    }
+
+    public Integer getSymbol(String name){
+        return symbols.get(name);
+    }
+
+    private static class AssemblyException extends RuntimeException {
+        AssemblyException(String message){
+            super(message, null, false, false);
+        }
+    }
+}
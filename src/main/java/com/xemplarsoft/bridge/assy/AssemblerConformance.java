@@ -0,0 +1,126 @@
+package com.xemplarsoft.bridge.assy;
+
+import com.xemplarsoft.bridge.util.ImageFiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+//Regenerates the golden files AssemblerConformanceTest holds Assembler6502 to. Every source given, or every .s file in a
+//directory given, is assembled by vasm. A clean assemble leaves vasm's image next to the source as name.bin, one with
+//errors leaves the lines vasm reports them on in name.err, one per line. Run it as
+//  java -cp Bridge6502.jar com.xemplarsoft.bridge.assy.AssemblerConformance assets/toolchain/vasm6502_oldstyle assets/conformance
+//after adding or changing a sample and commit what it writes. The exit code is the number of sources whose goldens changed.
+public final class AssemblerConformance {
+    private AssemblerConformance(){}
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.err.println("Usage: AssemblerConformance <vasm executable> <source or directory>...");
+            System.exit(-1);
+        }
+
+        int changed = 0;
+        List<File> sources = sources(Arrays.copyOfRange(args, 1, args.length));
+        for(File source : sources){
+            boolean updated = regenerate(args[0], source.getAbsoluteFile());
+            System.out.println((updated ? "UPDATED " : "SAME    ") + source.getPath());
+            if(updated) changed++;
+        }
+        System.out.println(changed + "/" + sources.size() + " goldens changed");
+        System.exit(changed);
+    }
+
+    //Every path given, directories are replaced by the sources in them
+    public static List<File> sources(String... paths){
+        ArrayList<File> sources = new ArrayList<>();
+        for(String path : paths){
+            File f = new File(path);
+            File[] listed = f.isDirectory() ? f.listFiles((dir, name) -> name.endsWith(".s") || name.endsWith(".asm")) : null;
+            if(listed != null){
+                Arrays.sort(listed);
+                sources.addAll(Arrays.asList(listed));
+            } else {
+                sources.add(f);
+            }
+        }
+        return sources;
+    }
+
+    public static File imageFile(File source){
+        return golden(source, ".bin");
+    }
+
+    public static File errorFile(File source){
+        return golden(source, ".err");
+    }
+
+    private static File golden(File source, String extension){
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(source.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + extension);
+    }
+
+    public static TreeSet<Integer> readErrors(File f) throws IOException {
+        TreeSet<Integer> lines = new TreeSet<>();
+        for(String line : new String(ImageFiles.read(f), StandardCharsets.US_ASCII).split("\n")){
+            if(!line.trim().isEmpty()) lines.add(Integer.parseInt(line.trim()));
+        }
+        return lines;
+    }
+
+    //Lines of the errors reported in source itself, errors inside the files it includes are left out
+    public static TreeSet<Integer> errorLines(List<AssemblyError> errors, File source){
+        TreeSet<Integer> lines = new TreeSet<>();
+        for(AssemblyError e : errors){
+            if(e.type == AssemblyError.Type.ERROR && new File(e.file).getName().equals(source.getName())) lines.add(e.lineNumber);
+        }
+        return lines;
+    }
+
+    //Assembles source with vasm and writes its goldens, returns true if they differ from the ones already there
+    public static boolean regenerate(String vasm, File source) throws Exception {
+        File out = File.createTempFile("conformance", ".bin");
+        try {
+            Process process = new ProcessBuilder(vasm, "-Fbin", "-dotdir", "-o", out.getAbsolutePath(), source.getAbsolutePath())
+                    .redirectErrorStream(true).start();
+            String log = new String(readAll(process.getInputStream()), StandardCharsets.ISO_8859_1);
+            process.waitFor();
+            VasmDiagnosticParser parser = new VasmDiagnosticParser((e) -> {});
+            for(String line : log.split("\n")) parser.line(line);
+            parser.finish();
+
+            TreeSet<Integer> errors = errorLines(parser.getDiagnostics(), source);
+            if(!errors.isEmpty()){
+                StringBuilder text = new StringBuilder();
+                for(int line : errors) text.append(line).append('\n');
+                return replace(errorFile(source), text.toString().getBytes(StandardCharsets.US_ASCII)) | replace(imageFile(source), null);
+            }
+            return replace(imageFile(source), ImageFiles.read(out)) | replace(errorFile(source), null);
+        } finally {
+            out.delete();
+        }
+    }
+
+    //Writes data to f, null deletes it. Returns true if f did not already hold exactly that.
+    private static boolean replace(File f, byte[] data) throws IOException {
+        if(data == null) return f.delete();
+        if(f.isFile() && Arrays.equals(ImageFiles.read(f), data)) return false;
+        ImageFiles.write(f, data, 0, data.length);
+        return true;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,265 @@
+package com.xemplarsoft.bridge.assy;
+
+import com.xemplarsoft.bridge.util.ImageFiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Results of earlier assembles keyed by a SHA-256 of everything that goes into one: the toolchain and its flags, the
+//source path and text, and the path, size and modification time of every file it includes or incbins. A hit hands
+//back the image, the assembler output and the error list without running anything. The cache is kept in one file,
+//written after each new entry, and holds at most maxEntries results and maxBytes of images and output, the least
+//recently used result is dropped first.
+public class AssemblyCache {
+    public static final int DEFAULT_ENTRIES = 64;
+    public static final int DEFAULT_BYTES = 8 << 20;
+    public static final int MAX_INCLUDE_DEPTH = 16;
+
+    private static final int MAGIC = 0x42364143; //"B6AC"
+    private static final int VERSION = 2;
+    private static final int ENTRY_OVERHEAD = 128;
+
+    public static class Result {
+        public final byte[] image; //Null when the assemble failed
+        public final int origin;
+        public final String output;
+        public final List<AssemblyError> errors;
+
+        public Result(byte[] image, int origin, String output, List<AssemblyError> errors){
+            this.image = image;
+            this.origin = origin;
+            this.output = output;
+            this.errors = errors;
+        }
+
+        protected long cost(){
+            long cost = ENTRY_OVERHEAD + (image == null ? 0 : image.length) + output.length();
+            for(AssemblyError e : errors) cost += ENTRY_OVERHEAD + e.message.length();
+            return cost;
+        }
+    }
+
+    protected final LinkedHashMap<String, Result> entries = new LinkedHashMap<>(16, 0.75F, true);
+    protected final File store;
+    protected final int maxEntries;
+    protected final long maxBytes;
+    protected long bytes, hits, misses;
+
+    public AssemblyCache(File store){
+        this(store, DEFAULT_ENTRIES, DEFAULT_BYTES);
+    }
+
+    public AssemblyCache(File store, int maxEntries, long maxBytes){
+        this.store = store;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = maxBytes;
+    }
+
+    //Key for assembling source saved as file with the given toolchain, reads the files it includes to find theirs
+    public String key(String toolchain, String source, File file){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        update(digest, toolchain);
+        update(digest, file.getAbsolutePath());
+        update(digest, source);
+        ArrayList<File> dependencies = new ArrayList<>();
+        dependencies(source, directory, 0, dependencies, new HashSet<>());
+        for(File f : dependencies){
+            update(digest, f.getAbsolutePath() + "|" + f.length() + "|" + f.lastModified());
+        }
+
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest.digest()) key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String s){
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (data.length >> 24));
+        digest.update((byte) (data.length >> 16));
+        digest.update((byte) (data.length >> 8));
+        digest.update((byte) data.length);
+        digest.update(data);
+    }
+
+    //Files named by include and incbin lines, includes are followed. Names resolve next to the main source the way
+    //both assemblers look them up, a file that cannot be read still counts so creating it later changes the key.
+    private static void dependencies(String source, File directory, int depth, List<File> found, HashSet<String> seen){
+        if(depth > MAX_INCLUDE_DEPTH) return;
+        for(String line : source.split("\n")){
+            int comment = line.indexOf(';');
+            String text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if(text.isEmpty()) continue;
+
+            //A first word in column 0 or ending in a colon is a label
+            String first = text.split("\\s+", 2)[0];
+            int skip = first.endsWith(":") || !Character.isWhitespace(line.charAt(0)) ? 1 : 0;
+            String[] parts = text.split("\\s+", skip + 2);
+            if(parts.length < skip + 2) continue;
+            String name = parts[skip].toLowerCase();
+            if(name.startsWith(".")) name = name.substring(1);
+            boolean include = name.equals("include");
+            if(!include && !name.equals("incbin")) continue;
+
+            String operand = operand(parts[skip + 1]);
+            if(operand == null) continue;
+            File f = new File(operand);
+            if(!f.isAbsolute()) f = new File(directory, operand);
+            if(!seen.add(f.getAbsolutePath())) continue;
+            found.add(f);
+            if(!include || !f.isFile()) continue;
+            try {
+                dependencies(new String(ImageFiles.read(f), StandardCharsets.ISO_8859_1), directory, depth + 1, found, seen);
+            } catch (IOException ignored){}
+        }
+    }
+
+    //First argument with its quotes taken off
+    private static String operand(String rest){
+        if(rest.startsWith("\"") || rest.startsWith("'")){
+            int end = rest.indexOf(rest.charAt(0), 1);
+            return end > 1 ? rest.substring(1, end) : null;
+        }
+        int end = 0;
+        while(end < rest.length() && rest.charAt(end) != ',' && !Character.isWhitespace(rest.charAt(end))) end++;
+        return end > 0 ? rest.substring(0, end) : null;
+    }
+
+    //Counts a hit or a miss, a hit also makes the result the most recently used
+    public synchronized Result get(String key){
+        Result r = entries.get(key);
+        if(r == null) misses++;
+        else hits++;
+        return r;
+    }
+
+    public synchronized void put(String key, Result result){
+        Result old = entries.put(key, result);
+        if(old != null) bytes -= old.cost();
+        bytes += result.cost();
+        trim();
+    }
+
+    private void trim(){
+        Iterator<Map.Entry<String, Result>> it = entries.entrySet().iterator();
+        while(entries.size() > 1 && (entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()){
+            bytes -= it.next().getValue().cost();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+        bytes = 0;
+    }
+
+    //Reads the store back, a missing or unreadable store leaves the cache empty
+    public synchronized void load(){
+        clear();
+        if(store == null || !store.isFile()) return;
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(ImageFiles.read(store)))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                String key = in.readUTF();
+                int origin = in.readInt();
+                int length = in.readInt();
+                byte[] image = null;
+                if(length >= 0){
+                    image = new byte[length];
+                    in.readFully(image);
+                }
+                byte[] output = new byte[in.readInt()];
+                in.readFully(output);
+                int errorCount = in.readInt();
+                ArrayList<AssemblyError> errors = new ArrayList<>(errorCount);
+                for(int j = 0; j < errorCount; j++){
+                    String message = in.readUTF();
+                    AssemblyError.Type type = in.readBoolean() ? AssemblyError.Type.WARNING : AssemblyError.Type.ERROR;
+                    //Locations are written innermost first, the chain is built from the outside in
+                    int depth = in.readInt();
+                    int[] lines = new int[depth];
+                    String[] files = new String[depth];
+                    for(int k = 0; k < depth; k++){
+                        lines[k] = in.readInt();
+                        files[k] = in.readUTF();
+                    }
+                    AssemblyError error = null;
+                    for(int k = depth - 1; k >= 0; k--) error = new AssemblyError(lines[k], files[k], message, type, error);
+                    if(error != null) errors.add(error);
+                }
+                put(key, new Result(image, origin, new String(output, StandardCharsets.UTF_8), errors));
+            }
+        } catch (IOException e){
+            clear();
+        }
+    }
+
+    //Writes every entry, least recently used first so a load keeps the order
+    public synchronized void save() throws IOException {
+        if(store == null) return;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for(Map.Entry<String, Result> entry : entries.entrySet()){
+            Result r = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeInt(r.origin);
+            out.writeInt(r.image == null ? -1 : r.image.length);
+            if(r.image != null) out.write(r.image);
+            byte[] output = r.output.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(output.length);
+            out.write(output);
+            out.writeInt(r.errors.size());
+            for(AssemblyError e : r.errors){
+                out.writeUTF(e.message);
+                out.writeBoolean(e.type == AssemblyError.Type.WARNING);
+                int depth = 0;
+                for(AssemblyError at = e; at != null; at = at.includedFrom) depth++;
+                out.writeInt(depth);
+                for(AssemblyError at = e; at != null; at = at.includedFrom){
+                    out.writeInt(at.lineNumber);
+                    out.writeUTF(at.file);
+                }
+            }
+        }
+        out.flush();
+        ImageFiles.write(store, buffer.toByteArray(), 0, buffer.size());
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized long getBytes(){
+        return bytes;
+    }
+}
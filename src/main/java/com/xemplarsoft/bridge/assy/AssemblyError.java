@@ -5,11 +5,25 @@ public final class AssemblyError {
     public final String message;
     public final String file;
     public final Type type;
+    public final AssemblyError includedFrom; //Line that included file, null when file is the one assembled
+
     public AssemblyError(int lineNumber, String file, String message, Type type){
+        this(lineNumber, file, message, type, null);
+    }
+
+    public AssemblyError(int lineNumber, String file, String message, Type type, AssemblyError includedFrom){
         this.lineNumber = lineNumber;
         this.file = file;
         this.message = message;
         this.type = type;
+        this.includedFrom = includedFrom;
+    }
+
+    //Where the error lands in the file that was assembled, itself when it is not inside an include
+    public AssemblyError outermost(){
+        AssemblyError e = this;
+        while(e.includedFrom != null) e = e.includedFrom;
+        return e;
     }
 
     public void printToErr(){
@@ -17,7 +31,11 @@ public final class AssemblyError {
     }
 
     public String toString(){
-        return (type == Type.WARNING ? "Warning" : "Error") + " at line " + lineNumber + " of file \"" + file + "\": " + message;
+        StringBuilder s = new StringBuilder((type == Type.WARNING ? "Warning" : "Error") + " at line " + lineNumber + " of file \"" + file + "\": " + message);
+        for(AssemblyError e = includedFrom; e != null; e = e.includedFrom){
+            s.append("\n\tincluded from line ").append(e.lineNumber).append(" of \"").append(e.file).append("\"");
+        }
+        return s.toString();
     }
 
     public enum Type{
@@ -0,0 +1,96 @@
+package com.xemplarsoft.bridge.assy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+//Assembles snapshots of the editor text on its own thread and its own Assembler6502 so errors show up while typing.
+//Nothing is written to disk. Every edit bumps the generation and stops the run in flight, a snapshot is only
+//submitted once the editor has gone quiet, and only the newest submitted snapshot waits behind the one running.
+//Results are handed on only if no edit came in after their snapshot was taken, so markers never land on lines
+//that have since moved.
+public class BackgroundChecker implements Runnable {
+    public interface Listener {
+        //Called on the checker thread, errors inside includes are moved to the line that includes them
+        public void checked(BackgroundChecker source, long generation, List<AssemblyError> errors);
+    }
+
+    protected final Assembler6502 assembler = new Assembler6502();
+    protected final Listener listener;
+    protected final Object lock = new Object();
+
+    protected volatile long generation;
+    protected long pendingGeneration;
+    protected String pendingSource;
+    protected File pendingFile;
+    protected Thread worker;
+    protected volatile int runs, cancelled;
+
+    public BackgroundChecker(Listener listener){
+        this.listener = listener;
+    }
+
+    //The text changed, whatever is running or waiting is now stale
+    public void edited(){
+        generation++;
+        assembler.cancel();
+    }
+
+    //Checks source as it would assemble saved as file, replacing any snapshot still waiting
+    public void submit(String source, File file){
+        synchronized (lock) {
+            pendingSource = source;
+            pendingFile = file;
+            pendingGeneration = generation;
+            if(worker != null) return;
+            worker = new Thread(this, "Background Check");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public void run(){
+        while(true){
+            String source;
+            File file;
+            long gen;
+            synchronized (lock) {
+                if(pendingSource == null){
+                    worker = null;
+                    return;
+                }
+                source = pendingSource;
+                file = pendingFile;
+                gen = pendingGeneration;
+                pendingSource = null;
+                pendingFile = null;
+            }
+            if(gen != generation) continue;
+
+            assembler.assemble(source, file);
+            runs++;
+            if(assembler.isCancelled() || gen != generation){
+                cancelled++;
+                continue;
+            }
+
+            ArrayList<AssemblyError> errors = new ArrayList<>();
+            for(AssemblyError e : assembler.getErrors()) errors.add(e.outermost());
+            listener.checked(this, gen, errors);
+        }
+    }
+
+    //False once the text has changed since the snapshot a result came from
+    public boolean isCurrent(long generation){
+        return generation == this.generation;
+    }
+
+    //Snapshots assembled, including the ones cancelled part way
+    public int getRuns(){
+        return runs;
+    }
+
+    public int getCancelled(){
+        return cancelled;
+    }
+}
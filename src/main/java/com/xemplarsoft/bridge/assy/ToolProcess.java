@@ -0,0 +1,103 @@
+package com.xemplarsoft.bridge.assy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+//Runs an external tool with its stdout and stderr each drained by a pump thread reading whole lines through a
+//buffer, so neither pipe can fill up and stall the tool. Every line goes to the sink as it arrives and is kept,
+//stderr on its own as well, for when the tool is done. The caller waits with a hard timeout and can cancel.
+public class ToolProcess {
+    public static final int BUFFER_SIZE = 8192;
+
+    protected final Process process;
+    protected final Consumer<String> sink, errorSink;
+    protected final StringBuilder output = new StringBuilder(), errors = new StringBuilder();
+    protected final Thread outPump, errPump;
+    protected volatile boolean cancelled, timedOut;
+
+    //Starts the tool, lines are passed to sink with their line break from the pump threads
+    public ToolProcess(Consumer<String> sink, String... command) throws IOException {
+        this(sink, null, command);
+    }
+
+    //As above, stderr lines also go to errorSink in order from the stderr pump
+    public ToolProcess(Consumer<String> sink, Consumer<String> errorSink, String... command) throws IOException {
+        this.sink = sink;
+        this.errorSink = errorSink;
+        process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+        outPump = pump(process.getInputStream(), false, "Tool stdout");
+        errPump = pump(process.getErrorStream(), true, "Tool stderr");
+    }
+
+    private Thread pump(InputStream in, boolean error, String name){
+        Thread t = new Thread(() -> {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1), BUFFER_SIZE)){
+                String line;
+                while((line = reader.readLine()) != null){
+                    line += "\n";
+                    synchronized (output) {
+                        output.append(line);
+                        if(error) errors.append(line);
+                    }
+                    sink.accept(line);
+                    if(error && errorSink != null) errorSink.accept(line);
+                }
+            } catch (IOException ignored){} //Closed by a cancel
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    //Waits up to timeout ms for the tool to exit and both pipes to drain, a tool still running then is killed.
+    //Returns the exit code, -1 if it was cancelled or killed.
+    public int waitFor(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(!process.waitFor(Math.min(100, Math.max(1, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS)){
+            if(cancelled) break;
+            if(System.currentTimeMillis() >= deadline){
+                timedOut = true;
+                break;
+            }
+        }
+        if(cancelled || timedOut){
+            process.destroyForcibly();
+            process.waitFor();
+        }
+        outPump.join(Math.max(100, deadline - System.currentTimeMillis()));
+        errPump.join(Math.max(100, deadline - System.currentTimeMillis()));
+        return cancelled || timedOut ? -1 : process.exitValue();
+    }
+
+    //Safe from any thread, a waitFor in progress returns soon after
+    public void cancel(){
+        cancelled = true;
+    }
+
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    public boolean isTimedOut(){
+        return timedOut;
+    }
+
+    //Everything the tool printed on both streams, in the order the pumps got it
+    public String getOutput(){
+        synchronized (output) {
+            return output.toString();
+        }
+    }
+
+    public String getErrors(){
+        synchronized (output) {
+            return errors.toString();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.xemplarsoft.bridge.assy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Turns vasm's stderr into AssemblyErrors one line at a time as the pump hands it over. vasm reports
+//  error 2 in line 5 of "file.s": unknown mnemonic <foo>
+//  	included from line 9 of "main.s"
+//  >  foo $12
+//with "warning" or "fatal error" in place of "error", and leaves the location out of errors that have none.
+//A diagnostic is held until the line after it shows no more include or macro context, then passed to the listener,
+//so it reaches the editor while vasm is still running. Lines in any other shape are skipped, never thrown on.
+public class VasmDiagnosticParser {
+    public interface Listener {
+        //Called on the thread feeding lines
+        public void diagnostic(AssemblyError error);
+    }
+
+    protected final Listener listener;
+    protected final ArrayList<AssemblyError> diagnostics = new ArrayList<>();
+
+    //Diagnostic being read, its include context innermost first
+    protected boolean pending;
+    protected int pendingLine;
+    protected String pendingFile, pendingMessage;
+    protected AssemblyError.Type pendingType;
+    protected final ArrayList<Integer> contextLines = new ArrayList<>();
+    protected final ArrayList<String> contextFiles = new ArrayList<>();
+
+    public VasmDiagnosticParser(Listener listener){
+        this.listener = listener;
+    }
+
+    //One line of output, with or without its line break
+    public synchronized void line(String line){
+        int end = line.length();
+        while(end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) end--;
+        if(end < line.length()) line = line.substring(0, end);
+
+        if(pending){
+            String trimmed = line.trim();
+            int at = trimmed.startsWith("included from ") ? 14 : trimmed.startsWith("called from ") ? 12 : -1;
+            if(at >= 0 && location(trimmed, at)) return;
+            emit();
+        }
+        header(line);
+    }
+
+    //Passes on a diagnostic still held, call once the output has ended
+    public synchronized void finish(){
+        if(pending) emit();
+    }
+
+    public synchronized List<AssemblyError> getDiagnostics(){
+        return new ArrayList<>(diagnostics);
+    }
+
+    //"error 2 in line 5 of "file.s": message" or "error 2: message"
+    private void header(String line){
+        AssemblyError.Type type;
+        int at;
+        if(line.startsWith("warning ")){
+            type = AssemblyError.Type.WARNING;
+            at = 8;
+        } else if(line.startsWith("error ")){
+            type = AssemblyError.Type.ERROR;
+            at = 6;
+        } else if(line.startsWith("fatal error ")){
+            type = AssemblyError.Type.ERROR;
+            at = 12;
+        } else {
+            return;
+        }
+
+        int id = at;
+        while(at < line.length() && Character.isDigit(line.charAt(at))) at++;
+        if(at == id) return;
+
+        contextLines.clear();
+        contextFiles.clear();
+        if(line.startsWith(": ", at)){
+            pending(0, "", line.substring(at + 2), type);
+            return;
+        }
+        if(!line.startsWith(" in ", at) || !location(line, at + 4)) return;
+        int message = line.indexOf("\": ", at);
+        if(message < 0){
+            contextLines.clear();
+            contextFiles.clear();
+            return;
+        }
+        //location() put the header's own place first, it is not context
+        pending(contextLines.remove(0), contextFiles.remove(0), line.substring(message + 3), type);
+    }
+
+    private void pending(int line, String file, String message, AssemblyError.Type type){
+        pending = true;
+        pendingLine = line;
+        pendingFile = file;
+        pendingMessage = message;
+        pendingType = type;
+    }
+
+    //Reads "line 5 of "file.s"" at at into the context lists, false if it is not there
+    private boolean location(String s, int at){
+        if(!s.startsWith("line ", at)) return false;
+        int start = at + 5, end = start;
+        while(end < s.length() && Character.isDigit(s.charAt(end))) end++;
+        if(end == start || end - start > 9 || !s.startsWith(" of \"", end)) return false;
+        int nameStart = end + 5;
+        int nameEnd = s.indexOf("\": ", nameStart);
+        if(nameEnd < 0) nameEnd = s.lastIndexOf('"');
+        if(nameEnd < nameStart) return false;
+        contextLines.add(Integer.parseInt(s.substring(start, end)));
+        contextFiles.add(s.substring(nameStart, nameEnd));
+        return true;
+    }
+
+    private void emit(){
+        pending = false;
+        AssemblyError outer = null;
+        for(int i = contextLines.size() - 1; i >= 0; i--){
+            outer = new AssemblyError(contextLines.get(i), contextFiles.get(i), pendingMessage, pendingType, outer);
+        }
+        contextLines.clear();
+        contextFiles.clear();
+
+        AssemblyError error = new AssemblyError(pendingLine, pendingFile, pendingMessage, pendingType, outer);
+        diagnostics.add(error);
+        listener.diagnostic(error);
+    }
+}
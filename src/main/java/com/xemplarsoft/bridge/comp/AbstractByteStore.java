@@ -0,0 +1,28 @@
+package com.xemplarsoft.bridge.comp;
+
+//Dirty range bookkeeping shared by the stores
+public abstract class AbstractByteStore implements ByteStore {
+    protected int dirtyStart = Integer.MAX_VALUE, dirtyEnd = 0;
+
+    protected void markDirty(int start, int end){
+        if(start < dirtyStart) dirtyStart = start;
+        if(end > dirtyEnd) dirtyEnd = end;
+    }
+
+    public boolean isDirty(){
+        return dirtyEnd > dirtyStart;
+    }
+
+    public int getDirtyStart(){
+        return isDirty() ? dirtyStart : 0;
+    }
+
+    public int getDirtyEnd(){
+        return isDirty() ? dirtyEnd : 0;
+    }
+
+    public void clearDirty(){
+        dirtyStart = Integer.MAX_VALUE;
+        dirtyEnd = 0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.xemplarsoft.bridge.comp;
+
+import javax.swing.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Collects text from any thread and hands it to a text area in batches on the EDT, at most FRAME_RATE times a second.
+//The first append after a flush arms a one shot timer, everything that arrives before it fires goes in with one
+//append and the caret is moved to the end once per batch.
+public class BatchedTextSink {
+    public static final int FRAME_RATE = 30;
+
+    protected final JTextArea area;
+    protected final StringBuilder pending = new StringBuilder();
+    protected final AtomicBoolean scheduled = new AtomicBoolean();
+    protected final Timer timer;
+
+    public BatchedTextSink(JTextArea area){
+        this.area = area;
+        timer = new Timer(1000 / FRAME_RATE, (e) -> flush());
+        timer.setRepeats(false);
+    }
+
+    //Safe from any thread
+    public void append(String text){
+        synchronized (pending) {
+            pending.append(text);
+        }
+        if(scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(timer::restart);
+    }
+
+    //Puts whatever is pending into the area now, EDT only
+    public void flush(){
+        timer.stop();
+        scheduled.set(false);
+        String text;
+        synchronized (pending) {
+            if(pending.length() == 0) return;
+            text = pending.toString();
+            pending.setLength(0);
+        }
+        area.append(text);
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+
+    //Drops text not yet shown, EDT only
+    public void clear(){
+        synchronized (pending) {
+            pending.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.xemplarsoft.bridge.comp;
+
+import java.nio.ByteBuffer;
+
+//Backing memory for JByteViewer. Indexes are byte offsets from the start of the store, not addresses. Every write
+//widens a single dirty range so callers can tell what changed since they last looked without comparing copies.
+public interface ByteStore {
+    public int size();
+
+    //Keeps the contents up to the new size, anything added reads as zero
+    public void resize(int size);
+
+    public int get(int index);
+    public void set(int index, int data);
+
+    public void get(int index, byte[] dst, int offset, int length);
+    public void set(int index, byte[] src, int offset, int length);
+
+    public void fill(int index, int length, int data);
+
+    //Read only buffer over length bytes of the backing memory, nothing is copied so later writes show through
+    public ByteBuffer view(int index, int length);
+
+    //Copies length bytes from one index to another, the ranges may overlap
+    public void move(int from, int to, int length);
+
+    public boolean isDirty();
+    public int getDirtyStart();
+    //Exclusive
+    public int getDirtyEnd();
+    public void clearDirty();
+}
@@ -0,0 +1,81 @@
+package com.xemplarsoft.bridge.comp;
+
+import java.nio.ByteBuffer;
+
+//Store outside the Java heap, also wraps any buffer handed to it such as a mapped file. Only absolute gets and
+//puts are used so the buffer position is left alone.
+public class DirectByteStore extends AbstractByteStore {
+    protected volatile ByteBuffer buffer;
+
+    public DirectByteStore(int size){
+        this(ByteBuffer.allocateDirect(size));
+    }
+
+    public DirectByteStore(ByteBuffer buffer){
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer getBuffer(){
+        return buffer;
+    }
+
+    public int size(){
+        return buffer.capacity();
+    }
+
+    public void resize(int size){
+        ByteBuffer old = buffer;
+        if(size == old.capacity()) return;
+        ByteBuffer next = ByteBuffer.allocateDirect(size);
+        ByteBuffer src = old.duplicate();
+        src.clear().limit(Math.min(size, old.capacity()));
+        next.put(src).clear();
+        buffer = next;
+        if(dirtyEnd > size) dirtyEnd = size;
+    }
+
+    public int get(int index){
+        return buffer.get(index) & 0xFF;
+    }
+
+    public void set(int index, int value){
+        buffer.put(index, (byte) value);
+        markDirty(index, index + 1);
+    }
+
+    public void get(int index, byte[] dst, int offset, int length){
+        ByteBuffer src = buffer.duplicate();
+        src.clear().position(index);
+        src.get(dst, offset, length);
+    }
+
+    public void set(int index, byte[] src, int offset, int length){
+        ByteBuffer dst = buffer.duplicate();
+        dst.clear().position(index);
+        dst.put(src, offset, length);
+        markDirty(index, index + length);
+    }
+
+    public void fill(int index, int length, int value){
+        ByteBuffer b = buffer;
+        for(int i = index; i < index + length; i++) b.put(i, (byte) value);
+        markDirty(index, index + length);
+    }
+
+    public ByteBuffer view(int index, int length){
+        ByteBuffer b = buffer.duplicate();
+        b.clear().position(index);
+        b.limit(index + length);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    public void move(int from, int to, int length){
+        ByteBuffer b = buffer;
+        if(to < from){
+            for(int i = 0; i < length; i++) b.put(to + i, b.get(from + i));
+        } else {
+            for(int i = length - 1; i >= 0; i--) b.put(to + i, b.get(from + i));
+        }
+        markDirty(to, to + length);
+    }
+}
@@ -0,0 +1,188 @@
+package com.xemplarsoft.bridge.comp;
+
+import java.util.Arrays;
+
+//Undo and redo history for JByteViewer, kept in one fixed size byte ring. Every edit is a nibble position plus the
+//nibbles it needs to be undone and redone, packed two to a byte and run length coded so a filled or cleared range
+//costs a few bytes however long it is. Each entry carries its length at both ends so the ring can be walked back for
+//undo, forward for redo and from the bottom when the oldest entries are pushed out to make room.
+public class EditJournal {
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+
+    //a holds the old nibbles and b the new ones, the same count of each
+    public static final int SET = 0;
+    //a holds the inserted nibbles, b the ones a fixed size viewer pushed off its end
+    public static final int INSERT = 1;
+    //a holds the removed nibbles
+    public static final int REMOVE = 2;
+
+    private static final int HEADER = 4 + 1 + 4 + 4 + 4 + 4;
+
+    public static class Edit {
+        public int type, pos, countA, countB;
+        public byte[] a = new byte[16], b = new byte[16];
+    }
+
+    protected final byte[] ring;
+    protected final int mask;
+    protected long bottom, top, end; //Undo walks down from top, redo walks up to end
+    protected byte[] scratch = new byte[64], packed = new byte[32];
+    protected int used;
+    protected final Edit edit = new Edit();
+
+    public EditJournal(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        ring = new byte[size];
+        mask = size - 1;
+    }
+
+    public void clear(){
+        bottom = top = end = 0;
+    }
+
+    public boolean canUndo(){
+        return top > bottom;
+    }
+
+    public boolean canRedo(){
+        return end > top;
+    }
+
+    //Bytes of ring holding history, undone entries waiting for redo included
+    public int getUsed(){
+        return (int)(end - bottom);
+    }
+
+    public int getCapacity(){
+        return ring.length;
+    }
+
+    public void record(int type, int pos, byte[] a, int countA, byte[] b, int countB){
+        used = HEADER;
+        ensure(HEADER);
+        int lengthA = encode(a, countA);
+        encode(b, countB);
+        int length = used + 4;
+        if(length > ring.length){ //Larger than the whole history, nothing before it can be undone either
+            clear();
+            return;
+        }
+
+        putInt(scratch, 0, length);
+        scratch[4] = (byte) type;
+        putInt(scratch, 5, pos);
+        putInt(scratch, 9, countA);
+        putInt(scratch, 13, countB);
+        putInt(scratch, 17, lengthA);
+        ensure(4);
+        putInt(scratch, used, length);
+
+        end = top; //A new edit drops whatever could have been redone
+        while(top + length - bottom > ring.length) bottom += readInt(bottom);
+        for(int i = 0; i < length; i++) ring[(int)((top + i) & mask)] = scratch[i];
+        top += length;
+        end = top;
+    }
+
+    //Steps back one entry, the returned edit is reused by the next call
+    public Edit undo(){
+        if(!canUndo()) return null;
+        int length = readInt(top - 4);
+        top -= length;
+        return decode(top);
+    }
+
+    public Edit redo(){
+        if(!canRedo()) return null;
+        Edit e = decode(top);
+        top += readInt(top);
+        return e;
+    }
+
+    private Edit decode(long at){
+        Edit e = edit;
+        e.type = ring[(int)((at + 4) & mask)];
+        e.pos = readInt(at + 5);
+        e.countA = readInt(at + 9);
+        e.countB = readInt(at + 13);
+        int lengthA = readInt(at + 17);
+        e.a = unpack(at + HEADER, e.countA, e.a);
+        e.b = unpack(at + HEADER + lengthA, e.countB, e.b);
+        return e;
+    }
+
+    //Packs count nibbles two to a byte and appends them to scratch as PackBits runs, returns the bytes written
+    private int encode(byte[] nibbles, int count){
+        int bytes = (count + 1) >> 1;
+        if(packed.length < bytes) packed = new byte[Math.max(bytes, packed.length << 1)];
+        for(int i = 0; i < bytes; i++){
+            int hi = nibbles[i << 1], lo = (i << 1) + 1 < count ? nibbles[(i << 1) + 1] : 0;
+            packed[i] = (byte)((hi << 4) | (lo & 0x0F));
+        }
+
+        int start = used;
+        int i = 0;
+        while(i < bytes){
+            int run = 1;
+            while(i + run < bytes && run < 128 && packed[i + run] == packed[i]) run++;
+            if(run > 1){
+                ensure(2);
+                scratch[used++] = (byte)(1 - run);
+                scratch[used++] = packed[i];
+                i += run;
+                continue;
+            }
+
+            int from = i;
+            while(i < bytes && i - from < 128){
+                if(i + 1 < bytes && packed[i] == packed[i + 1]) break;
+                i++;
+            }
+            int literal = i - from;
+            ensure(literal + 1);
+            scratch[used++] = (byte)(literal - 1);
+            System.arraycopy(packed, from, scratch, used, literal);
+            used += literal;
+        }
+        return used - start;
+    }
+
+    private byte[] unpack(long at, int count, byte[] nibbles){
+        if(nibbles.length < count + 1) nibbles = new byte[Math.max(count + 1, nibbles.length << 1)];
+        int bytes = (count + 1) >> 1;
+        int n = 0;
+        while(n < bytes){
+            int control = ring[(int)(at++ & mask)];
+            if(control < 0){
+                byte b = ring[(int)(at++ & mask)];
+                for(int i = 0; i < 1 - control; i++) n = putByte(nibbles, n, b);
+            } else {
+                for(int i = 0; i <= control; i++) n = putByte(nibbles, n, ring[(int)(at++ & mask)]);
+            }
+        }
+        return nibbles;
+    }
+
+    private static int putByte(byte[] nibbles, int n, byte b){
+        nibbles[n << 1] = (byte)((b >> 4) & 0x0F);
+        nibbles[(n << 1) + 1] = (byte)(b & 0x0F);
+        return n + 1;
+    }
+
+    private void ensure(int more){
+        if(used + more > scratch.length) scratch = Arrays.copyOf(scratch, Math.max(used + more, scratch.length << 1));
+    }
+
+    private int readInt(long at){
+        int v = 0;
+        for(int i = 0; i < 4; i++) v = (v << 8) | (ring[(int)((at + i) & mask)] & 0xFF);
+        return v;
+    }
+
+    private static void putInt(byte[] dst, int at, int v){
+        dst[at] = (byte)(v >> 24);
+        dst[at + 1] = (byte)(v >> 16);
+        dst[at + 2] = (byte)(v >> 8);
+        dst[at + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,54 @@
+package com.xemplarsoft.bridge.comp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class HeapByteStore extends AbstractByteStore {
+    protected volatile byte[] data;
+
+    public HeapByteStore(int size){
+        data = new byte[size];
+    }
+
+    public int size(){
+        return data.length;
+    }
+
+    public void resize(int size){
+        if(size == data.length) return;
+        data = Arrays.copyOf(data, size);
+        if(dirtyEnd > size) dirtyEnd = size;
+    }
+
+    public int get(int index){
+        return data[index] & 0xFF;
+    }
+
+    public void set(int index, int value){
+        data[index] = (byte) value;
+        markDirty(index, index + 1);
+    }
+
+    public void get(int index, byte[] dst, int offset, int length){
+        System.arraycopy(data, index, dst, offset, length);
+    }
+
+    public void set(int index, byte[] src, int offset, int length){
+        System.arraycopy(src, offset, data, index, length);
+        markDirty(index, index + length);
+    }
+
+    public void fill(int index, int length, int value){
+        Arrays.fill(data, index, index + length, (byte) value);
+        markDirty(index, index + length);
+    }
+
+    public ByteBuffer view(int index, int length){
+        return ByteBuffer.wrap(data, index, length).slice().asReadOnlyBuffer();
+    }
+
+    public void move(int from, int to, int length){
+        System.arraycopy(data, from, data, to, length);
+        markDirty(to, to + length);
+    }
+}
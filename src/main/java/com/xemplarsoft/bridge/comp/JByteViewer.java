@@ -1,15 +1,51 @@
 package com.xemplarsoft.bridge.comp;
 
 import com.xemplarsoft.bridge.ModifiedListener;
+import com.xemplarsoft.bridge.util.BytePattern;
+import com.xemplarsoft.bridge.util.IntervalIndex;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class JByteViewer extends JPanel implements KeyListener, MouseListener, MouseMotionListener {
-    private final ArrayList<HighlightRegion> highlights = new ArrayList<>();
-    private String text = "";
+    private final IntervalIndex<HighlightRegion> highlights = new IntervalIndex<>();
+    private final ArrayList<HighlightRegion> visibleHighlights = new ArrayList<>();
+    private HighlightRegion hoverRegion;
+
+    //Search runs on one shared thread, each find() bumps the generation so results of an older search are dropped
+    public static final int SEARCH_CHUNK = 1 << 14;
+    private static final ExecutorService SEARCH = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "Byte Search");
+        t.setDaemon(true);
+        return t;
+    });
+    private final IntervalIndex<HighlightRegion> searchHighlights = new IntervalIndex<>();
+    private volatile int searchGeneration = 0;
+    private BytePattern searchPattern;
+    private int[] matches = new int[64];
+    private int matchCount;
+    private boolean searchDone = true;
+    public static final int SEARCH_RATE = 30;
+    private final Timer refind = new Timer(1000 / SEARCH_RATE, (e) -> {
+        if(searchPattern != null) find(searchPattern); //Keep the matches in step with the data
+    });
+    private final IntervalIndex<HighlightRegion> diffHighlights = new IntervalIndex<>(); //Bytes the device read back differently
+    private final IntervalIndex<HighlightRegion> snapshotHighlights = new IntervalIndex<>(); //Bytes two frozen snapshots disagree on
+    private ByteStore store = new HeapByteStore(0);
+    private int length = 0; //In nibbles, odd while the last byte is half typed
+    private NibbleGapBuffer edit; //Open while insert mode editing is shifting nibbles, the store catches up on commit
+    private final Object editLock = new Object(); //Held while the edit changes so readers off the EDT can read through it
+    private int editDirty = Integer.MAX_VALUE;
+    private final EditJournal journal = new EditJournal(EditJournal.DEFAULT_CAPACITY);
+    private byte[] journalOld = new byte[16], journalNew = new byte[16];
+    private int journalPos = -1, journalCount;
+    private boolean replaying = false; //Set while undo or redo applies an edit so it is not journaled again
     private int caretPos, readingPos = -1, writingPos = -1, hoverPos, mouseX = -1, mouseY = -1;
     private int fontSize, columns = 16;
     private int startOffset = 0, maxSize = -1;
@@ -17,6 +53,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
     private boolean showAscii = false;
 
     public JByteViewer(){
+        refind.setRepeats(false);
         addKeyListener(this);
         setFocusable(true);
         addMouseListener(this);
@@ -28,6 +65,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
 
     private final ArrayList<ModifiedListener> modifiedListeners = new ArrayList<>();
     private boolean modified = false;
+    private volatile int revision = 0;
     public void addModifyListener(ModifiedListener l){
         modifiedListeners.add(l);
     }
@@ -35,6 +73,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         modifiedListeners.remove(l);
     }
     private void dispatchModified(){
+        changed();
         if(modified) return;
 
         modified = true;
@@ -42,9 +81,47 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
             modifiedListeners.get(i).modified(this);
         }
     }
+    //Every change to the data comes through here, loads and device writes as well as typing. Device diffs compared the
+    //device against data that is gone now, snapshot diffs compare two frozen copies and stay. An active search is run
+    //again at most SEARCH_RATE times a second so a burst of writes costs one scan.
+    private void changed(){
+        revision++;
+        if(changedHigh >= changedLow){
+            int start = (changedLow >> 1) + startOffset, end = ((changedHigh + 1) >> 1) + startOffset;
+            changedLow = Integer.MAX_VALUE;
+            changedHigh = -1;
+            for(int i = 0; i < dataListeners.size(); i++) dataListeners.get(i).dataChanged(this, start, end);
+        }
+        if(diffHighlights.size() > 0) clearDiffRegions();
+        if(searchPattern != null && !refind.isRunning()) refind.start();
+    }
+
+    //Nibbles written since the last changed(), handed to the data listeners as an address range
+    private int changedLow = Integer.MAX_VALUE, changedHigh = -1;
+    private void touched(int from, int to){
+        changedLow = Math.min(changedLow, from);
+        changedHigh = Math.max(changedHigh, to - 1);
+    }
+
+    //Told which addresses changed, end exclusive, before anything else sees the change
+    public interface DataListener {
+        public void dataChanged(JByteViewer source, int start, int end);
+    }
+    private final ArrayList<DataListener> dataListeners = new ArrayList<>();
+    public void addDataListener(DataListener l){
+        dataListeners.add(l);
+    }
+    public void removeDataListener(DataListener l){
+        dataListeners.remove(l);
+    }
+
     public void resetModified(){
         modified = false;
     }
+    //Bumped on every change to the data, unlike the modified flag it is never reset
+    public int getRevision(){
+        return revision;
+    }
 
     public void showAscii(boolean val){
         this.showAscii = val;
@@ -52,22 +129,375 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
 
     //Highlights from address, not text pos
     public void addHighlightRegion(Color c, int start, int end, String title, String desc){
-        highlights.add(new HighlightRegion(c, start << 1, (end + 1) << 1, title, desc));//makes inclusive
+        highlights.add(start << 1, (end + 1) << 1, new HighlightRegion(c, start << 1, (end + 1) << 1, title, desc));//makes inclusive
+        repaint();
+    }
+
+    public void clearHighlightRegions(){
+        highlights.clear();
+        repaint();
+    }
+
+    //Marks bytes the device read back differently, from address with the end inclusive. Cleared by any change to the data.
+    public void addDiffRegion(int start, int end, String title, String desc){
+        diffHighlights.add(start << 1, (end + 1) << 1, new HighlightRegion(COLOR_HIGH_DIFF, start << 1, (end + 1) << 1, title, desc));
+        repaint();
+    }
+
+    public void clearDiffRegions(){
+        diffHighlights.clear();
+        repaint();
+    }
+
+    public int getDiffRegionCount(){
+        return diffHighlights.size();
+    }
+
+    //Marks bytes two snapshots disagree on, from address with the end inclusive. Left alone by changes to the data.
+    public void addSnapshotDiffRegion(int start, int end, String title, String desc){
+        snapshotHighlights.add(start << 1, (end + 1) << 1, new HighlightRegion(COLOR_HIGH_DIFF, start << 1, (end + 1) << 1, title, desc));
+        repaint();
+    }
+
+    public void clearSnapshotDiffRegions(){
+        snapshotHighlights.clear();
+        repaint();
+    }
+
+    public int getSnapshotDiffRegionCount(){
+        return snapshotHighlights.size();
     }
 
     public void setFixedSize(int size){
+        closeEdit();
+        journal.clear();
         maxSize = size * 2;
-        StringBuilder builder = new StringBuilder();
-        for(int i = 0; i < maxSize; i++){
-            builder.append("0");
+        store.resize(size);
+        store.fill(0, size, 0);
+        length = maxSize;
+    }
+
+    //Pending insert mode edits are written back first
+    public ByteStore getStore(){
+        commitEdit();
+        return store;
+    }
+
+    //Swaps the backing memory, a fixed size viewer keeps its size and the store is grown to fit
+    public void setStore(ByteStore store){
+        closeEdit();
+        journal.clear();
+        if(maxSize > 0 && store.size() < (maxSize >> 1)) store.resize(maxSize >> 1);
+        this.store = store;
+        this.length = maxSize > 0 ? maxSize : store.size() << 1;
+        touched(0, length);
+        changed();
+        repaint();
+    }
+
+    private int nibbleAt(int pos){
+        if(edit != null) return pos < length ? edit.get(pos) : 0;
+        int b = store.get(pos >> 1);
+        return (pos & 1) == 0 ? b >> 4 : b & 0x0F;
+    }
+
+    private int byteAt(int index){
+        if(edit == null) return store.get(index);
+        return (nibbleAt(index << 1) << 4) | nibbleAt((index << 1) + 1);
+    }
+
+    private void setNibble(int pos, int value){
+        touched(pos, pos + 1);
+        if(edit != null){
+            synchronized (editLock) {
+                edit.set(pos, value);
+                editDirty = Math.min(editDirty, pos);
+            }
+            return;
+        }
+        int index = pos >> 1;
+        int b = store.get(index);
+        store.set(index, (pos & 1) == 0 ? (b & 0x0F) | (value << 4) : (b & 0xF0) | value);
+    }
+
+    //Grows the store by doubling so typing at the end does not copy everything each time
+    private void setLength(int nibbles){
+        if(nibbles != length) touched(Math.min(length, nibbles), Math.max(length, nibbles));
+        synchronized (editLock) {
+            if(edit != null){
+                edit.setLength(nibbles);
+                editDirty = Math.min(editDirty, Math.min(length, nibbles));
+            } else {
+                int bytes = (nibbles + 1) >> 1;
+                if(bytes > store.size()) store.resize(Math.max(bytes, store.size() << 1));
+            }
+            length = nibbles;
         }
-        this.text = builder.toString();
+    }
+
+    //Shifting nibbles means repacking every byte after the caret, that is left to the gap buffer until a commit
+    private void openEdit(){
+        if(edit != null) return;
+        NibbleGapBuffer next = new NibbleGapBuffer();
+        next.load(store, length);
+        synchronized (editLock) {
+            edit = next;
+        }
+    }
+
+    //Packs everything from the first edited nibble on back into the store, the edit stays open. Keystrokes leave
+    //this to whoever reads the store next, so typing does not repack the image every time.
+    public void commitEdit(){
+        synchronized (editLock) {
+            if(edit == null || editDirty >= Math.max(length, 1)){
+                editDirty = Integer.MAX_VALUE;
+                return;
+            }
+            int bytes = (length + 1) >> 1;
+            if(bytes > store.size()) store.resize(Math.max(bytes, store.size() << 1));
+            edit.writeTo(store, editDirty);
+            editDirty = Integer.MAX_VALUE;
+        }
+    }
+
+    //Anything that writes the store directly has to drop the edit so the two cannot disagree
+    private void closeEdit(){
+        synchronized (editLock) {
+            commitEdit();
+            edit = null;
+        }
+    }
+
+    //Shifts everything from pos one nibble right, a fixed size viewer drops its last nibble
+    private void insertNibble(int pos, int value){
+        openEdit();
+        boolean full = maxSize > 0 && length == maxSize;
+        if(!replaying){
+            journalOld[0] = (byte) value;
+            journalNew[0] = (byte) (full ? nibbleAt(length - 1) : 0);
+        }
+        touched(pos, full ? length : length + 1);
+        synchronized (editLock) {
+            edit.insert(pos, value);
+            if(full) edit.setLength(maxSize);
+            else length++;
+            editDirty = Math.min(editDirty, pos);
+        }
+        if(!replaying) journal.record(EditJournal.INSERT, pos, journalOld, 1, journalNew, full ? 1 : 0);
+    }
+
+    //Shifts everything after the removed nibbles left, a fixed size viewer fills the end with zeros
+    private void removeNibbles(int pos, int count){
+        count = Math.min(count, length - pos);
+        if(count <= 0) return;
+        openEdit();
+        if(!replaying){
+            journalOld = readNibbles(pos, count, journalOld);
+            journal.record(EditJournal.REMOVE, pos, journalOld, count, journalNew, 0);
+        }
+        touched(pos, length);
+        synchronized (editLock) {
+            edit.remove(pos, count);
+            if(maxSize > 0) edit.setLength(length);
+            else length -= count;
+            editDirty = Math.min(editDirty, pos);
+        }
+    }
+
+    private byte[] readNibbles(int pos, int count, byte[] dst){
+        if(dst.length < count) dst = new byte[Math.max(count, dst.length << 1)];
+        for(int i = 0; i < count; i++) dst[i] = (byte) nibbleAt(pos + i);
+        return dst;
+    }
+
+    //Call before overwriting count nibbles from pos and journalSetDone after, the old and new nibbles become one entry
+    private void journalSet(int pos, int count){
+        if(replaying || count <= 0) return;
+        journalOld = readNibbles(pos, count, journalOld);
+        journalPos = pos;
+        journalCount = count;
+    }
+
+    private void journalSetDone(){
+        if(journalPos < 0) return;
+        journalNew = readNibbles(journalPos, journalCount, journalNew);
+        journal.record(EditJournal.SET, journalPos, journalOld, journalCount, journalNew, journalCount);
+        journalPos = -1;
+    }
+
+    //Starts a search of the whole view, null clears it. Matches come in as highlights while the scan runs and a
+    //"searchMatches" property change is fired once it is done.
+    public void find(BytePattern pattern){
+        refind.stop();
+        int generation = ++searchGeneration;
+        searchPattern = pattern;
+        searchHighlights.clear();
+        matchCount = 0;
+        searchDone = pattern == null;
+        repaint();
+        if(pattern == null){
+            firePropertyChange("searchMatches", -1, 0);
+            return;
+        }
+
+        commitEdit();
+        ByteBuffer data = store.view(0, length >> 1);
+        SEARCH.execute(() -> search(pattern, data, generation));
+    }
+
+    private void search(BytePattern pattern, ByteBuffer data, int generation){
+        int[] found = new int[256];
+        int count = 0, pos = 0, size = data.limit();
+        while(pos < size && generation == searchGeneration){
+            int to = Math.min(pos + SEARCH_CHUNK, size);
+            int i;
+            while((i = pattern.indexOf(data, pos, to)) >= 0){
+                if(count == found.length) found = Arrays.copyOf(found, count << 1);
+                found[count++] = i;
+                pos = i + 1;
+            }
+            pos = to;
+
+            if(count > 0 || pos >= size){ //Hand each chunk's matches over as soon as it is scanned
+                int[] batch = found;
+                int n = count;
+                boolean done = pos >= size;
+                SwingUtilities.invokeLater(() -> addMatches(pattern, batch, n, done, generation));
+                found = new int[256];
+                count = 0;
+            }
+        }
+    }
+
+    private void addMatches(BytePattern pattern, int[] found, int count, boolean done, int generation){
+        if(generation != searchGeneration) return;
+        int m = pattern.length();
+        for(int i = 0; i < count; i++){
+            int address = found[i] + startOffset;
+            if(matchCount == matches.length) matches = Arrays.copyOf(matches, matchCount << 1);
+            matches[matchCount++] = found[i];
+            searchHighlights.add(address << 1, (address + m) << 1, new HighlightRegion(COLOR_HIGH_SEARCH, address << 1, (address + m) << 1, "Match", pattern.query));
+        }
+        if(count > 0) repaintRows(found[0] / columns, (found[count - 1] + m - 1) / columns);
+        if(done){
+            searchDone = true;
+            firePropertyChange("searchMatches", -1, matchCount);
+        }
+    }
+
+    public int getMatchCount(){
+        return matchCount;
+    }
+
+    public boolean isSearchDone(){
+        return searchDone;
+    }
+
+    //Moves the caret to the next match after it and selects it, wrapping at the end
+    public boolean findNext(){
+        if(matchCount == 0) return false;
+        int k = lowerBound((caretPos >> 1) + 1);
+        selectMatch(k < matchCount ? matches[k] : matches[0]);
+        return true;
+    }
+
+    public boolean findPrevious(){
+        if(matchCount == 0) return false;
+        int k = lowerBound(caretPos >> 1) - 1;
+        selectMatch(k >= 0 ? matches[k] : matches[matchCount - 1]);
+        return true;
+    }
+
+    //First match at or after address, matches arrive in address order
+    private int lowerBound(int address){
+        int lo = 0, hi = matchCount;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(matches[mid] < address) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void selectMatch(int address){
+        setCursorToAddress(address + startOffset);
+        selectionStartIndex = address << 1;
+        selectionEndIndex = (address + searchPattern.length()) << 1;
+        repaint();
+    }
+
+    public boolean canUndo(){
+        return journal.canUndo();
+    }
+
+    //Drops every undo and redo step, a file loaded in pieces with setDataAt calls this after the way setData does
+    public void clearHistory(){
+        closeEdit();
+        journal.clear();
+    }
+
+    public boolean canRedo(){
+        return journal.canRedo();
+    }
+
+    //Puts back the nibbles of the last edit, the store marks the range dirty so a ROM image sync re-sends only that
+    public boolean undo(){
+        EditJournal.Edit e = journal.undo();
+        if(e == null) return false;
+        replaying = true;
+        switch (e.type) {
+            case EditJournal.SET:
+                for(int i = 0; i < e.countA; i++) setNibble(e.pos + i, e.a[i]);
+                break;
+            case EditJournal.INSERT:
+                removeNibbles(e.pos, e.countA);
+                for(int i = 0; i < e.countB; i++) setNibble(length - e.countB + i, e.b[i]);
+                break;
+            case EditJournal.REMOVE:
+                for(int i = 0; i < e.countA; i++) insertNibble(e.pos + i, e.a[i]);
+                break;
+        }
+        replaying = false;
+        replayed(e.pos);
+        return true;
+    }
+
+    public boolean redo(){
+        EditJournal.Edit e = journal.redo();
+        if(e == null) return false;
+        replaying = true;
+        switch (e.type) {
+            case EditJournal.SET:
+                for(int i = 0; i < e.countB; i++) setNibble(e.pos + i, e.b[i]);
+                break;
+            case EditJournal.INSERT:
+                for(int i = 0; i < e.countA; i++) insertNibble(e.pos + i, e.a[i]);
+                break;
+            case EditJournal.REMOVE:
+                removeNibbles(e.pos, e.countA);
+                break;
+        }
+        replaying = false;
+        replayed(e.pos);
+        return true;
+    }
+
+    private void replayed(int pos){
+        selectionStartIndex = -1;
+        selectionEndIndex = -1;
+        setCursorToAddress((Math.min(pos, Math.max(length - 1, 0)) >> 1) + startOffset);
+        caretPos = Math.min(pos, length);
+        dispatchModified();
     }
 
     public void setOffset(int off){
         this.startOffset = off;
     }
 
+    public int getOffset(){
+        return startOffset;
+    }
+
     public void setColumns(int columns){
         this.columns = columns;
     }
@@ -81,37 +511,42 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         fontSize = font.getSize();
     }
 
+    //Hex digits, one per nibble
     public void setText(String text){
-        this.text = text;
-    }
-    private String first, last;
-    public void append(char c){
-        append(c + "");
+        closeEdit();
+        journal.clear();
+        length = 0;
+        setLength(maxSize > 0 ? Math.min(text.length(), maxSize) : text.length());
+        for(int i = 0; i < length; i++){
+            setNibble(i, Character.digit(text.charAt(i), 16) & 0x0F);
+        }
+        changed();
     }
     public void append(String s){
-        if(caretPos >= text.length()){
-            this.text += s;
-            caretPos = text.length();
-            if(maxSize > 0){
-                this.text = this.text.substring(0, maxSize);
+        for(int i = 0; i < s.length(); i++) append(s.charAt(i));
+    }
+    public void append(char c){
+        int value = Character.digit(c, 16) & 0x0F;
+        if(caretPos >= length){
+            caretPos = length + 1;
+            if(maxSize <= 0 || length < maxSize){
+                setLength(length + 1);
+                setNibble(length - 1, value);
+                journalOld[0] = (byte) value;
+                journal.record(EditJournal.INSERT, length - 1, journalOld, 1, journalNew, 0);
             }
             return;
         }
-        if(this.caretPos == 0){
-            this.text = s + text.substring(insert_mode ? 0 : 1);
-            caretPos = s.length();
-            if(maxSize > 0){
-                this.text = this.text.substring(0, maxSize);
-            }
-            return;
+        boolean first = caretPos == 0;
+        if(insert_mode){
+            insertNibble(caretPos, value);
+        } else {
+            journalSet(caretPos, 1);
+            setNibble(caretPos, value);
+            journalSetDone();
         }
-        first = text.substring(0, caretPos);
-        last = text.substring(caretPos + (insert_mode ? 0 : 1));
-        this.text = first + s + last;
         caretPos = caretPos + 1;
-        if(maxSize > 0){
-            this.text = this.text.substring(0, maxSize);
-        }
+        if(first) return;
 
         int hzCaret = (caretPos >> 1) % (columns);
 
@@ -137,6 +572,8 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
     public static final Color COLOR_HIGH_SELECT_DATA = new Color(0F, 0.5F, 1F, 0.5F);
     public static final Color COLOR_HIGH_MOUSE_DATA = new Color(0.8F, 0.1F, 0.1F, 0.5F);
     public static final Color COLOR_HIGH_MOUSE_HEADER = new Color(0.8F, 0.8F, 0.1F, 0.5F);
+    public static final Color COLOR_HIGH_SEARCH = new Color(0.1F, 0.8F, 0.1F, 0.4F);
+    public static final Color COLOR_HIGH_DIFF = new Color(1F, 0.4F, 0F, 0.5F);
 
     public int visibleLines = 0, totalLines = 0, visibleColumns = 0, asciiColumns;
     public int yScroll, xScroll;
@@ -153,7 +590,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         visibleColumns = Math.min(visibleColumns, columns);
 
         visibleLines -= 4;
-        totalLines = (int)Math.ceil((float)(text.length() + 1) / (columns << 1));
+        totalLines = (int)Math.ceil((float)(length + 1) / (columns << 1));
 
         g.setColor(COLOR_BG);
         g.fillRect(0, 0, getWidth(), getHeight());
@@ -178,7 +615,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         rightOff += getFontWidth(g, drawString) + 4;
         g.drawString(drawString, rightMax - rightOff, getHeight() - (int)(fontSize * 0.75F));
 
-        drawString = "Size: " + getByteSizeString(text.length() >> 1);
+        drawString = "Size: " + getByteSizeString(length >> 1);
         rightOff += getFontWidth(g, drawString) + (fontSize);
         g.drawString(drawString, rightMax - rightOff, getHeight() - (int)(fontSize * 0.75F));
 
@@ -236,16 +673,24 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
             g.drawString(pad2HexNum(i + xScroll), x, y);
         }
 
+        //Only rows inside the clip are drawn, a row repaint touches one row's worth of cells
+        int firstRow = 0, lastRow = visibleLines - 1;
+        Rectangle clip = g.getClipBounds();
+        if(clip != null){
+            firstRow = Math.max(firstRow, clip.y / fontSize - 3);
+            lastRow = Math.min(lastRow, (clip.y + clip.height) / fontSize - 1);
+        }
+        int rowNibbles = columns << 1;
+        int clipStart = (yScroll + firstRow) * rowNibbles;
+        int clipEnd = (yScroll + lastRow + 1) * rowNibbles;
+
         //Render Selection Highlight
         if(selectionStartIndex > -1 && selectionEndIndex > -1){
-            int st = Math.min(selectionStartIndex, selectionEndIndex);
-            int ed = Math.max(selectionStartIndex, selectionEndIndex);
+            int st = Math.max(Math.min(selectionStartIndex, selectionEndIndex), clipStart);
+            int ed = Math.min(Math.max(selectionStartIndex, selectionEndIndex), clipEnd);
 
             g.setColor(COLOR_HIGH_SELECT_DATA);
             for(int i = st; i < ed; i++){
-                if(i < yScroll * (columns << 1)) continue;
-                if(i >= (yScroll + visibleLines) * (columns << 1)) continue;
-
                 if((i >> 1) % columns < xScroll) continue;
                 if((i >> 1) % columns > xScroll + visibleLines) continue;
 
@@ -253,11 +698,16 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
             }
         }
 
-        //Render Highlights
-        for(HighlightRegion region : highlights){
+        //Render Highlights, only the regions overlapping the rows on screen are looked at
+        visibleHighlights.clear();
+        highlights.query(clipStart + (startOffset << 1), clipEnd + (startOffset << 1), visibleHighlights);
+        searchHighlights.query(clipStart + (startOffset << 1), clipEnd + (startOffset << 1), visibleHighlights);
+        diffHighlights.query(clipStart + (startOffset << 1), clipEnd + (startOffset << 1), visibleHighlights);
+        snapshotHighlights.query(clipStart + (startOffset << 1), clipEnd + (startOffset << 1), visibleHighlights);
+        for(HighlightRegion region : visibleHighlights){
             g.setColor(region.color);
-            int st = Math.min(region.start, region.end) - (startOffset << 1);
-            int ed = Math.max(region.start, region.end) - (startOffset << 1);
+            int st = Math.max(Math.min(region.start, region.end) - (startOffset << 1), clipStart);
+            int ed = Math.min(Math.max(region.start, region.end) - (startOffset << 1), clipEnd);
 
             for(int i = st; i < ed; i++){
                 renderCursorPos(g, i, region.color);
@@ -265,29 +715,27 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         }
 
         //Render Text Data
-        int start = yScroll * (columns << 1);
-        int end = Math.min(start + visibleLines * (columns << 1), text.length());
-        int index = 0;
         g.setColor(COLOR_TEXT_DATA);
-        String val;
-        for(int i = start; i < end; i+=2) {
-            int x = fontSize * (((index) % (columns << 1)) + 4);
-            int y = fontSize * (((index / 2) / columns) + 3);
-
-            index += 2;
-
-            x -= (xScroll & 0xFFFFFE) * (fontSize << 1) + (xScroll % 2) * (fontSize << 1);
+        int firstColumn = xScroll, lastColumn = Math.min(columns, xScroll + visibleColumns);
+        float asciiX = (visibleColumns + 2.5F) * (fontSize << 1), asciiStep = fontSize * 0.305F;
+        for(int row = firstRow; row <= lastRow; row++) {
+            int rowStart = (yScroll + row) * rowNibbles;
+            if(rowStart >= length) break;
+            int y = fontSize * (row + 3);
+
+            for(int column = showAscii ? 0 : firstColumn; column < (showAscii ? columns : lastColumn); column++){
+                int i = rowStart + (column << 1);
+                if(i >= length) break;
+
+                int b = byteAt(i >> 1);
+                boolean half = i + 2 > length;
+                if(showAscii){
+                    g.drawChars(ASCII_GLYPHS, half ? b >> 4 : b, 1, (int)(asciiStep * ((column << 1) + 1) + asciiX), y);
+                }
 
-            val = text.substring(i, i + 2 <= text.length() ? i + 2 : i + 1);
-            if(showAscii){
-                char b = (char) (Integer.parseInt(val, 16) & 0xFF);
-                g.drawString(getPrintChar(b) + "", (int)((fontSize * 0.305F) * ((index - 1) % (columns << 1)) + ((visibleColumns + 2.5F) * (fontSize << 1))), y);
+                if(column < firstColumn || column >= lastColumn) continue;
+                g.drawChars(HEX_GLYPHS, b << 1, half ? 1 : 2, fontSize * (((column - xScroll) << 1) + 4), y);
             }
-
-            if(x < fontSize * 3) continue;
-            if(x > ((visibleColumns + 1) * (fontSize << 1))) continue;
-
-            g.drawString(val, x, y);
         }
 
         //Render Mouse Hover Highlight
@@ -373,51 +821,76 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
     }
 
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    //Two hex digits and one printable character per byte value, drawn straight from the table
+    private static final char[] HEX_GLYPHS = new char[512];
+    private static final char[] ASCII_GLYPHS = new char[256];
+
+    static {
+        for(int b = 0; b < 256; b++){
+            HEX_GLYPHS[b << 1] = HEX_ARRAY[b >> 4];
+            HEX_GLYPHS[(b << 1) + 1] = HEX_ARRAY[b & 0x0F];
+            ASCII_GLYPHS[b] = b < 32 || b >= 127 ? '.' : (char) b;
+        }
+    }
 
     public int getDataLength(){
-        return text.length() >> 1;
+        return length >> 1;
     }
 
     public void clearData(){
+        closeEdit();
         if(maxSize > -1){
-            int len = getDataLength();
-            for(int i = 0; i < len; i++){
-                setDataAt(i + startOffset, 0);
-            }
+            journalSet(0, length);
+            store.fill(0, (length + 1) >> 1, 0);
+            journalSetDone();
+            touched(0, length);
+            changed();
         } else {
-            text = "";
+            removeNibbles(0, length);
+            closeEdit();
         }
         repaint();
     }
 
     public void setData(byte[] data){
-        StringBuilder builder = new StringBuilder();
-        for(int i = 0; i < data.length; i++){
-            builder.append(HEX_ARRAY[(data[i] & 0xF0) >> 4]);
-            builder.append(HEX_ARRAY[data[i] & 0x0F]);
-        }
-        this.text = builder.substring(0, Math.min(maxSize, builder.length()));
-
-        if(maxSize > 0){
-            builder = new StringBuilder();
-            builder.append(text);
-            while(builder.length() < maxSize){
-                builder.append("0");
-            }
-            this.text = builder.toString();
+        closeEdit();
+        journal.clear();
+        int count = maxSize > 0 ? Math.min(data.length, maxSize >> 1) : data.length;
+        if(maxSize <= 0){
+            length = 0;
+            setLength(count << 1);
         }
+        store.set(0, data, 0, count);
+        if(maxSize > 0) store.fill(count, (maxSize >> 1) - count, 0);
+        touched(0, length);
+        changed();
     }
 
     public void setReaderToAddress(int address){
         address -= startOffset;
+        int old = readingPos;
         this.readingPos = (address << 1);
-        repaint();
+        repaintMarker(old, readingPos);
     }
 
     public void setWriterToAddress(int address){
         address -= startOffset;
+        int old = writingPos;
         this.writingPos = (address << 1);
-        repaint();
+        repaintMarker(old, writingPos);
+    }
+
+    //Repaints the rows a marker left and moved to, the ASCII highlight sits two rows off the data row
+    private void repaintMarker(int oldPos, int newPos){
+        int rowNibbles = columns << 1;
+        if(oldPos > -1){
+            repaintRows(oldPos / rowNibbles, oldPos / rowNibbles);
+            if(showAscii) repaintRows(oldPos / rowNibbles + 2, oldPos / rowNibbles + 2);
+        }
+        if(newPos > -1){
+            repaintRows(newPos / rowNibbles, newPos / rowNibbles);
+            if(showAscii) repaintRows(newPos / rowNibbles + 2, newPos / rowNibbles + 2);
+        }
     }
 
     public void setCursorToAddress(int address){
@@ -435,76 +908,104 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
     }
 
     public byte[] getData(){
-        byte[] ret = new byte[text.length() / 2];
-        char u, d;
-        int upper, lower;
-        for(int i = 0; i < ret.length; i++){
-            u = text.charAt((i << 1));
-            d = text.charAt((i << 1) + 1);
-
-            upper = u - '0';
-            lower = d - '0';
-
-            if(upper > 15) upper -= 7;
-            if(upper > 15) upper -= 32;
-
-            if(lower > 15) lower -= 7;
-            if(lower > 15) lower -= 32;
-
-            ret[i] = (byte)(((upper << 4) + lower) & 0xFF);
-        }
+        commitEdit();
+        byte[] ret = new byte[length >> 1];
+        store.get(0, ret, 0, ret.length);
         return ret;
     }
 
+    //Safe off the EDT, reads through an insert mode edit that is still open
     public int getDataAt(int address){
-        address -= startOffset;
-        char u = text.charAt((address << 1));
-        char d = text.charAt((address << 1) + 1);
-
-        int upper = u - '0';
-        int lower = d - '0';
+        synchronized (editLock) {
+            return byteAt(address - startOffset);
+        }
+    }
 
-        if(upper > 15) upper -= 7;
-        if(lower > 15) lower -= 7;
+    public byte[] getDataPageAt(int address, int length){
+        byte[] ret = new byte[length];
+        synchronized (editLock) {
+            if(edit == null){
+                store.get(address - startOffset, ret, 0, length);
+            } else {
+                for(int i = 0; i < length; i++) ret[i] = (byte) byteAt(address - startOffset + i);
+            }
+        }
+        return ret;
+    }
 
-        return ((upper << 4) + lower) & 0xFF;
+    //Read only window onto the store without copying, safe off the EDT. An open insert mode edit is committed first,
+    //only the first read after a run of keystrokes pays for it.
+    public ByteBuffer getDataView(int address, int length){
+        synchronized (editLock) {
+            commitEdit();
+            return store.view(address - startOffset, length);
+        }
     }
 
-    public byte[] getDataPageAt(int address, int length){
+    public void setDataAt(int address, int data){
         address -= startOffset;
+        if(address >= length >> 1) return;
+        closeEdit();
 
-        byte[] ret = new byte[length];
-        char u, d;
-        int upper, lower;
-        for(int i = 0; i < ret.length; i++){
-            u = text.charAt(((i + address) << 1));
-            d = text.charAt(((i + address) << 1) + 1);
+        journalSet(address << 1, 2);
+        store.set(address, data & 0xFF);
+        journalSetDone();
+        touched(address << 1, (address << 1) + 2);
+        changed();
 
-            upper = u - '0';
-            lower = d - '0';
+        repaintRows(address / columns, address / columns);
+    }
 
-            if(upper > 15) upper -= 7;
-            if(upper > 15) upper -= 32;
+    //Copies a run of bytes in at address, only that range of the store is marked dirty
+    public void setDataAt(int address, byte[] data, int offset, int length){
+        address -= startOffset;
+        length = Math.min(length, (this.length >> 1) - address);
+        if(address < 0 || length <= 0) return;
+        closeEdit();
 
-            if(lower > 15) lower -= 7;
-            if(lower > 15) lower -= 32;
+        journalSet(address << 1, length << 1);
+        store.set(address, data, offset, length);
+        journalSetDone();
+        touched(address << 1, (address + length) << 1);
+        changed();
 
-            ret[i] = (byte)(((upper << 4) + lower) & 0xFF);
-        }
-        return ret;
+        repaintRows(address / columns, (address + length - 1) / columns);
     }
 
-    public void setDataAt(int address, int data){
-        address -= startOffset;
-        if(address >= text.length() / 2) return;
+    //Applies count writes in one go, only the rows touched and the write marker are repainted.
+    //writer moves the write marker, -1 leaves it where it is.
+    public void setDataAt(int[] addresses, int[] data, int count, int writer){
+        if(count == 0) return;
+        closeEdit();
+        int bytes = length >> 1;
+        int firstRow = Integer.MAX_VALUE, lastRow = -1;
+        for(int i = 0; i < count; i++){
+            int address = addresses[i] - startOffset;
+            if(address < 0 || address >= bytes) continue;
+            store.set(address, data[i] & 0xFF);
+            touched(address << 1, (address << 1) + 2);
+            int row = address / columns;
+            firstRow = Math.min(firstRow, row);
+            lastRow = Math.max(lastRow, row);
+        }
+        changed();
 
-        String dat = pad2HexNum(data);
-        char[] tableData = text.toCharArray();
-        tableData[address * 2] = dat.charAt(0);
-        tableData[address * 2 + 1] = dat.charAt(1);
-        this.text = new String(tableData);
+        repaintRows(firstRow, lastRow);
+        if(writer < 0) return;
+        setWriterToAddress(writer);
+    }
 
-        repaint();
+    //Repaints data rows first to last, rows scrolled out of view are skipped
+    public void repaintRows(int first, int last){
+        first = Math.max(first, yScroll);
+        last = Math.min(last, yScroll + visibleLines - 1);
+        if(visibleLines <= 0){ //Not laid out yet
+            repaint();
+            return;
+        }
+        if(first > last) return;
+        int y = fontSize * (first - yScroll + 2);
+        repaint(0, y, getWidth(), fontSize * (last - first + 1) + (fontSize >> 1));
     }
 
     public void keyTyped(KeyEvent keyEvent) {
@@ -513,74 +1014,57 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
 
     protected boolean insert_mode = false;
     public void keyPressed(KeyEvent keyEvent) {
-        if(keyEvent.isControlDown()) return;
+        if(keyEvent.isControlDown()){
+            if(keyEvent.getKeyCode() == KeyEvent.VK_Z){
+                if(keyEvent.isShiftDown()) redo();
+                else undo();
+            }
+            if(keyEvent.getKeyCode() == KeyEvent.VK_Y) redo();
+            return;
+        }
 
-        if(keyEvent.getKeyCode() == KeyEvent.VK_BACK_SPACE && this.text.length() > 0 && caretPos > 0){
+        if(keyEvent.getKeyCode() == KeyEvent.VK_BACK_SPACE && this.length > 0 && caretPos > 0){
             if(selectionEndIndex > -1){
-                text = text.substring(0, selectionStartIndex) + text.substring(Math.min(selectionEndIndex, text.length() - 1));
-                if(maxSize > 0){
-                    StringBuilder builder = new StringBuilder();
-                    builder.append(text);
-                    while(builder.length() < maxSize){
-                        builder.append("0");
-                    }
-                    this.text = builder.toString();
-                }
+                removeNibbles(selectionStartIndex, Math.min(selectionEndIndex, length - 1) - selectionStartIndex);
                 selectionStartIndex = -1;
                 selectionEndIndex = -1;
                 repaint();
                 dispatchModified();
                 return;
             }
-            if(caretPos >= text.length()){
-                text = text.substring(0, text.length() - 1);
-                if(maxSize > 0){
-                    this.text += "0";
-                }
-                caretPos = text.length();
+            if(caretPos >= length){
+                removeNibbles(length - 1, 1);
+                caretPos = length;
                 repaint();
                 dispatchModified();
                 return;
             }
-            first = text.substring(0, caretPos - 1);
-            last = text.substring(caretPos, text.length());
-            this.text = first + last;
+            removeNibbles(caretPos - 1, 1);
             caretPos--;
-            if(maxSize > 0){
-                this.text += "0";
-            }
             repaint();
             dispatchModified();
             return;
         }
-        if(keyEvent.getKeyCode() == KeyEvent.VK_DELETE && this.text.length() > 0){
+        if(keyEvent.getKeyCode() == KeyEvent.VK_DELETE && this.length > 0){
             if(selectionEndIndex > -1){
-                char[] arr = text.toCharArray();
+                journalSet(selectionStartIndex, Math.min(selectionEndIndex, length) - selectionStartIndex);
                 for(int i = selectionStartIndex; i < selectionEndIndex; i++){
-                    if(i >= arr.length) continue;
-                    arr[i] = '0';
+                    if(i >= length) continue;
+                    setNibble(i, 0);
                 }
-                this.text = new String(arr);
+                journalSetDone();
                 repaint();
                 dispatchModified();
                 return;
             }
-            if(caretPos >= text.length()){
-                text = text.substring(0, text.length() - 1);
-                if(maxSize > 0){
-                    this.text += "0";
-                }
-                caretPos = text.length() + 1;
+            if(caretPos >= length){
+                removeNibbles(length - 1, 1);
+                caretPos = length + 1;
                 repaint();
                 dispatchModified();
                 return;
             }
-            first = text.substring(0, caretPos);
-            last = text.substring(caretPos + 1, text.length());
-            this.text = first + last;
-            if(maxSize > 0){
-                this.text += "0";
-            }
+            removeNibbles(caretPos, 1);
             repaint();
             dispatchModified();
             return;
@@ -603,7 +1087,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         }
         if(keyEvent.getKeyCode() == KeyEvent.VK_DOWN){
             if(keyEvent.isShiftDown() && selectionStartIndex == -1) selectionStartIndex = caretPos;
-            if(caretPos + (columns << 1) >= text.length()) return;
+            if(caretPos + (columns << 1) >= length) return;
             caretPos += (columns << 1);
             if(keyEvent.isShiftDown()){
                 selectionEndIndex = caretPos;
@@ -619,8 +1103,8 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         }
         if(keyEvent.getKeyCode() == KeyEvent.VK_PAGE_DOWN){
             if(keyEvent.isShiftDown() && selectionStartIndex == -1) selectionStartIndex = caretPos;
-            if(caretPos + ((columns << 1) * visibleLines) >= text.length()) {
-                caretPos = maxSize == -1 ? text.length() : text.length() - 1;
+            if(caretPos + ((columns << 1) * visibleLines) >= length) {
+                caretPos = maxSize == -1 ? length : length - 1;
             } else {
                 caretPos += (columns << 1) * visibleLines;
             }
@@ -675,7 +1159,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
             return;
         }
         if(keyEvent.getKeyCode() == KeyEvent.VK_RIGHT){
-            if(caretPos + 1 > text.length()) return;
+            if(caretPos + 1 > length) return;
             if(keyEvent.isShiftDown() && selectionStartIndex == -1) selectionStartIndex = caretPos;
             caretPos += keyEvent.isAltDown() ? 2 : 1;
             if(keyEvent.isShiftDown()){
@@ -786,7 +1270,7 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         if(mouseX < 0 || mouseY < 0) return -1;
 
         int caretPos = Math.min(mouseX + (xScroll << 1), ((columns << 1) - 1)) + (mouseY + yScroll) * (columns << 1);
-        if(caretPos > text.length()) caretPos = text.length();
+        if(caretPos > length) caretPos = length;
 
         return caretPos;
     }
@@ -844,8 +1328,18 @@ public class JByteViewer extends JPanel implements KeyListener, MouseListener, M
         mouseY -= 2;
         mouseX = (mouseX + 1) / 2;
 
+        int old = hoverPos;
         hoverPos = getCursorIndex(mouseX, mouseY);
-        repaint();
+        if(old == hoverPos) return;
+        repaintMarker(old, hoverPos);
+
+        HighlightRegion region = hoverPos < 0 ? null : diffHighlights.find(hoverPos + (startOffset << 1));
+        if(region == null && hoverPos >= 0) region = snapshotHighlights.find(hoverPos + (startOffset << 1));
+        if(region == null && hoverPos >= 0) region = highlights.find(hoverPos + (startOffset << 1));
+        if(region != hoverRegion){
+            hoverRegion = region;
+            setToolTipText(region == null ? null : "<html><b>" + region.title + "</b><br>" + region.desc + "</html>");
+        }
     }
 
     private static class HighlightRegion{
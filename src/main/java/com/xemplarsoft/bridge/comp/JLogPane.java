@@ -0,0 +1,179 @@
+package com.xemplarsoft.bridge.comp;
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Log view that any thread can append to without touching Swing. Lines go into a fixed size lock free ring and a
+//timer drains it on the EDT FRAME_RATE times a second, same coloured runs are inserted with one call and the
+//caret only moves once per batch. The document is cut back to the maximum line count after every batch, with a
+//spill file set every line is also written out so nothing is lost to the cut. When the ring is full new lines
+//are dropped and counted rather than blocking the serial threads.
+public class JLogPane extends JTextPane {
+    public static final int RING_SIZE = 4096;
+    public static final int FRAME_RATE = 30;
+    public static final int DEFAULT_MAX_LINES = 2000;
+
+    protected final String[] lines = new String[RING_SIZE];
+    protected final Color[] colors = new Color[RING_SIZE];
+    protected final AtomicLongArray published = new AtomicLongArray(RING_SIZE);
+    protected final AtomicLong tail = new AtomicLong();
+    protected final AtomicLong dropped = new AtomicLong();
+    protected long head = 0; //Only touched on the EDT
+
+    protected final Style style;
+    protected final Timer timer;
+    protected final StringBuilder run = new StringBuilder();
+    protected Runnable flushListener;
+    protected int maxLines = DEFAULT_MAX_LINES;
+    protected BufferedWriter spill;
+    protected File spillFile;
+
+    public JLogPane(){
+        setEditable(false);
+        style = addStyle("Log", null);
+        for(int i = 0; i < RING_SIZE; i++) published.set(i, i);
+        timer = new Timer(1000 / FRAME_RATE, (e) -> flush());
+        timer.start();
+    }
+
+    //Safe from any thread, returns false if the line was dropped
+    public boolean append(String message, Color color){
+        //A slot holds its sequence number while free, seq + 1 once published and seq + RING_SIZE once consumed
+        long seq;
+        int index;
+        while(true){
+            seq = tail.get();
+            index = (int)(seq & (RING_SIZE - 1));
+            long state = published.get(index);
+            if(state == seq){
+                if(tail.compareAndSet(seq, seq + 1)) break;
+            } else if(state < seq){ //Still holds a line from the last lap, the ring is full
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        lines[index] = message;
+        colors[index] = color;
+        published.lazySet(index, seq + 1);
+        return true;
+    }
+
+    //Called on the EDT after every batch that added text
+    public void setFlushListener(Runnable listener){
+        this.flushListener = listener;
+    }
+
+    public void setMaxLines(int maxLines){
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    public int getMaxLines(){
+        return maxLines;
+    }
+
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    public File getSpillFile(){
+        return spillFile;
+    }
+
+    //Null stops spilling, lines are appended to an existing file
+    public void setSpillFile(File file) throws IOException {
+        if(spill != null){
+            spill.close();
+            spill = null;
+        }
+        spillFile = file;
+        if(file != null) spill = new BufferedWriter(new FileWriter(file, true));
+    }
+
+    protected void flush(){
+        StyledDocument doc = getStyledDocument();
+        Color runColor = null;
+        boolean added = false;
+        run.setLength(0);
+
+        long lost = dropped.getAndSet(0);
+        if(lost > 0){
+            String note = "[" + lost + " log lines dropped]";
+            runColor = Color.GRAY;
+            run.append(note).append('\n');
+            spill(note);
+        }
+
+        for(int n = 0; n < RING_SIZE; n++){ //At most one lap per tick so the EDT is never held by fast producers
+            int index = (int)(head & (RING_SIZE - 1));
+            if(published.get(index) != head + 1) break;
+
+            String line = lines[index];
+            Color color = colors[index];
+            lines[index] = null;
+            colors[index] = null;
+            published.lazySet(index, head + RING_SIZE); //Hand the slot back to producers
+            head++;
+
+            if(runColor != null && !runColor.equals(color)){
+                added |= insert(doc, runColor);
+            }
+            runColor = color;
+            run.append(line).append('\n');
+            spill(line);
+        }
+        if(runColor != null) added |= insert(doc, runColor);
+        if(!added) return;
+
+        trim(doc);
+        setCaretPosition(doc.getLength());
+        if(spill != null){
+            try {
+                spill.flush();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+        if(flushListener != null) flushListener.run();
+    }
+
+    private boolean insert(StyledDocument doc, Color color){
+        if(run.length() == 0) return false;
+        StyleConstants.setForeground(style, color);
+        try {
+            doc.insertString(doc.getLength(), run.toString(), style);
+        } catch (BadLocationException e){
+            e.printStackTrace();
+        }
+        run.setLength(0);
+        return true;
+    }
+
+    private void trim(StyledDocument doc){
+        Element root = doc.getDefaultRootElement();
+        int excess = root.getElementCount() - 1 - maxLines; //Last element is the empty line after the final newline
+        if(excess <= 0) return;
+        try {
+            doc.remove(0, root.getElement(excess).getStartOffset());
+        } catch (BadLocationException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void spill(String line){
+        if(spill == null) return;
+        try {
+            spill.write(line);
+            spill.newLine();
+        } catch (IOException e){
+            e.printStackTrace();
+            spill = null;
+        }
+    }
+}
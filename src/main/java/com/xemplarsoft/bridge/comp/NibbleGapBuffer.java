@@ -0,0 +1,108 @@
+package com.xemplarsoft.bridge.comp;
+
+//Insert mode editing buffer for JByteViewer, one nibble per element. Nibbles before the gap sit at the start of the
+//array, the ones after it sit right behind the gap, so typing at the caret only writes into the gap and moving the
+//caret only moves the nibbles between the old and new spot. Space is left after the last nibble too, a fixed size
+//viewer drops or pads the end on every keystroke and that stays O(1) as well.
+public class NibbleGapBuffer {
+    public static final int MIN_GAP = 64;
+
+    protected byte[] buf = new byte[MIN_GAP];
+    protected int gapStart = 0, gapEnd = MIN_GAP, tailEnd = MIN_GAP;
+    protected byte[] packed = new byte[0]; //Kept between commits so writing back does not allocate
+
+    public int length(){
+        return gapStart + tailEnd - gapEnd;
+    }
+
+    //Replaces the contents with the first nibbles of store, high nibble of each byte first
+    public void load(ByteStore store, int nibbles){
+        buf = new byte[nibbles + MIN_GAP];
+        gapStart = 0;
+        gapEnd = MIN_GAP;
+        tailEnd = buf.length;
+        for(int i = 0; i < nibbles; i++){
+            int b = store.get(i >> 1);
+            buf[gapEnd + i] = (byte)((i & 1) == 0 ? b >> 4 : b & 0x0F);
+        }
+    }
+
+    //Packs the nibbles from pos up to the end back into store, pos is rounded down to a whole byte
+    public void writeTo(ByteStore store, int pos){
+        int length = length();
+        int first = pos >> 1, bytes = ((length + 1) >> 1) - first;
+        if(bytes <= 0) return;
+        if(packed.length < bytes) packed = new byte[bytes];
+        for(int i = 0; i < bytes; i++){
+            int n = (first + i) << 1;
+            packed[i] = (byte)((get(n) << 4) | (n + 1 < length ? get(n + 1) : store.get(first + i) & 0x0F));
+        }
+        store.set(first, packed, 0, bytes);
+    }
+
+    public int get(int pos){
+        return buf[pos < gapStart ? pos : pos + gapEnd - gapStart];
+    }
+
+    public void set(int pos, int value){
+        buf[pos < gapStart ? pos : pos + gapEnd - gapStart] = (byte) value;
+    }
+
+    public void insert(int pos, int value){
+        moveGap(pos);
+        if(gapStart == gapEnd) grow(1, 0);
+        buf[gapStart++] = (byte) value;
+    }
+
+    public void remove(int pos, int count){
+        moveGap(pos);
+        gapEnd += count;
+    }
+
+    //Cuts nibbles off the end or pads it with zeros
+    public void setLength(int nibbles){
+        int length = length();
+        if(nibbles < length){
+            int cut = length - nibbles;
+            int tail = tailEnd - gapEnd;
+            if(cut <= tail){
+                tailEnd -= cut;
+            } else {
+                tailEnd = gapEnd;
+                gapStart -= cut - tail;
+            }
+        } else if(nibbles > length){
+            int pad = nibbles - length;
+            if(tailEnd + pad > buf.length) grow(0, pad);
+            for(int i = 0; i < pad; i++) buf[tailEnd++] = 0;
+        }
+    }
+
+    private void moveGap(int pos){
+        if(pos < gapStart){
+            int count = gapStart - pos;
+            System.arraycopy(buf, pos, buf, gapEnd - count, count);
+            gapStart -= count;
+            gapEnd -= count;
+        } else if(pos > gapStart){
+            int count = pos - gapStart;
+            System.arraycopy(buf, gapEnd, buf, gapStart, count);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    //Reallocates with slack proportional to the length in the gap and after the last nibble, so a reallocation is
+    //paid for by that many keystrokes
+    private void grow(int gap, int spare){
+        int tail = tailEnd - gapEnd;
+        int slack = Math.max(MIN_GAP, (gapStart + tail) >> 1);
+        int gapSize = gapEnd - gapStart + gap + slack;
+        byte[] next = new byte[gapStart + gapSize + tail + spare + slack];
+        System.arraycopy(buf, 0, next, 0, gapStart);
+        System.arraycopy(buf, gapEnd, next, gapStart + gapSize, tail);
+        buf = next;
+        gapEnd = gapStart + gapSize;
+        tailEnd = gapEnd + tail;
+    }
+}
@@ -2,11 +2,11 @@ package com.xemplarsoft.bridge.comp;
 
 import javax.swing.*;
 import java.awt.*;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class StatusBar extends JPanel {
-    protected Map<String, StatusItem> items = new HashMap();
+    protected Map<String, StatusItem> items = new LinkedHashMap<>();
     protected int spacing = 16;
     public StatusBar(){
 
@@ -0,0 +1,73 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+//File formats a memory image can be loaded from or saved to, picked by extension. Files with an extension that
+//says nothing are sniffed, a first character of ':' or 'S' and a digit marks them as records.
+public enum ImageFormat {
+    BINARY("bin", "rom"),
+    INTEL_HEX("hex", "ihx", "ihex"),
+    S_RECORD("s19", "s28", "s37", "srec", "mot");
+
+    public static final String DESCRIPTION = "Binaries (*.bin, *.hex, *.s19, *.srec)";
+
+    public final String[] extensions;
+
+    ImageFormat(String... extensions){
+        this.extensions = extensions;
+    }
+
+    public boolean isRecords(){
+        return this != BINARY;
+    }
+
+    public RecordReader openReader(File f) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(f), StandardCharsets.US_ASCII);
+        return this == S_RECORD ? new SRecordReader(in) : new IntelHexReader(in);
+    }
+
+    public RecordWriter openWriter(OutputStream out) throws IOException {
+        Writer w = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+        return this == S_RECORD ? new SRecordWriter(w, "Bridge6502") : new IntelHexWriter(w);
+    }
+
+    public static String extensionOf(File f){
+        String name = f.getName();
+        int periodIndex = name.lastIndexOf('.');
+        return periodIndex == -1 ? "" : name.substring(periodIndex + 1).toLowerCase();
+    }
+
+    public static ImageFormat forExtension(String ext){
+        for(ImageFormat format : values()){
+            for(String e : format.extensions){
+                if(e.equals(ext)) return format;
+            }
+        }
+        return null;
+    }
+
+    //For file choosers, true for any extension one of the formats uses
+    public static boolean accepts(File f){
+        return forExtension(extensionOf(f)) != null;
+    }
+
+    //Format to save as, anything unknown is saved raw
+    public static ImageFormat forSave(File f){
+        ImageFormat format = forExtension(extensionOf(f));
+        return format == null ? BINARY : format;
+    }
+
+    public static ImageFormat forLoad(File f) throws IOException {
+        ImageFormat format = forExtension(extensionOf(f));
+        if(format == BINARY) return BINARY;
+
+        //A .hex file is sometimes a raw dump, look before trusting the name
+        try(InputStream in = new FileInputStream(f)){
+            int first = in.read();
+            if(first == ':') return INTEL_HEX;
+            if(first == 'S' && Character.isDigit(in.read())) return S_RECORD;
+        }
+        return BINARY;
+    }
+}
@@ -0,0 +1,62 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.IOException;
+import java.io.Reader;
+
+//Intel HEX, ":LLAAAATT<data>CC". Extended segment and extended linear address records move the base for the data
+//records after them, so images above 64K and with gaps load at the right spot.
+public class IntelHexReader extends RecordReader {
+    public static final int DATA = 0x00;
+    public static final int END_OF_FILE = 0x01;
+    public static final int EXTENDED_SEGMENT = 0x02;
+    public static final int START_SEGMENT = 0x03;
+    public static final int EXTENDED_LINEAR = 0x04;
+    public static final int START_LINEAR = 0x05;
+
+    protected int base = 0;
+
+    public IntelHexReader(Reader in){
+        super(in);
+    }
+
+    protected int readRecord(String line, RecordSink sink) throws IOException {
+        if(line.charAt(0) != ':') throw fail("Record does not start with ':'");
+        int n = decode(line, 1);
+        if(n < 5) throw fail("Record is too short");
+
+        int count = record[0] & 0xFF;
+        if(n != count + 5) throw fail("Byte count does not match record length");
+        int sum = 0;
+        for(int i = 0; i < n; i++) sum += record[i];
+        if((sum & 0xFF) != 0) throw fail("Checksum mismatch");
+        records++;
+
+        int address = value(1, 2);
+        int type = record[3] & 0xFF;
+        switch (type) {
+            case DATA:
+                sink.data(base + address, record, 4, count);
+                return count;
+            case END_OF_FILE:
+                return -1;
+            case EXTENDED_SEGMENT:
+                if(count != 2) throw fail("Extended segment address must be 2 bytes");
+                base = value(4, 2) << 4;
+                return 0;
+            case EXTENDED_LINEAR:
+                if(count != 2) throw fail("Extended linear address must be 2 bytes");
+                base = value(4, 2) << 16;
+                return 0;
+            case START_SEGMENT:
+                if(count != 4) throw fail("Start segment address must be 4 bytes");
+                startAddress = ((long) value(4, 2) << 4) + value(6, 2);
+                return 0;
+            case START_LINEAR:
+                if(count != 4) throw fail("Start linear address must be 4 bytes");
+                startAddress = value(4, 4) & 0xFFFFFFFFL;
+                return 0;
+            default:
+                throw fail("Unknown record type " + type);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.IOException;
+import java.io.Writer;
+
+//Intel HEX output. An extended linear address record is written whenever data crosses into another 64K bank, data
+//records never straddle a bank.
+public class IntelHexWriter extends RecordWriter {
+    public static final int DEFAULT_RECORD_SIZE = 16;
+
+    protected int bank = 0;
+
+    public IntelHexWriter(Writer out){
+        this(out, DEFAULT_RECORD_SIZE);
+    }
+
+    public IntelHexWriter(Writer out, int recordSize){
+        super(out, Math.min(recordSize, 255));
+    }
+
+    public void write(int address, byte[] data, int offset, int length) throws IOException {
+        while(length > 0){
+            int upper = address >>> 16;
+            if(upper != bank){
+                bank = upper;
+                record(IntelHexReader.EXTENDED_LINEAR, 0, new byte[]{(byte)(upper >> 8), (byte) upper}, 0, 2);
+            }
+            int n = Math.min(Math.min(length, recordSize), 0x10000 - (address & 0xFFFF));
+            record(IntelHexReader.DATA, address & 0xFFFF, data, offset, n);
+            address += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    protected void finish() throws IOException {
+        if(startAddress >= 0){
+            int a = (int) startAddress;
+            record(IntelHexReader.START_LINEAR, 0, new byte[]{(byte)(a >> 24), (byte)(a >> 16), (byte)(a >> 8), (byte) a}, 0, 4);
+        }
+        record(IntelHexReader.END_OF_FILE, 0, null, 0, 0);
+    }
+
+    private void record(int type, int address, byte[] data, int offset, int length) throws IOException {
+        out.write(':');
+        checksum = 0;
+        hex(length);
+        hex(address, 2);
+        hex(type);
+        for(int i = 0; i < length; i++) hex(data[offset + i]);
+        hex(-checksum);
+        out.write('\n');
+    }
+}
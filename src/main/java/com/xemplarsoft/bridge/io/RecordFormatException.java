@@ -0,0 +1,12 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.IOException;
+
+public class RecordFormatException extends IOException {
+    public final int lineNumber;
+
+    public RecordFormatException(String message, int lineNumber){
+        super(message + " at line " + lineNumber);
+        this.lineNumber = lineNumber;
+    }
+}
@@ -0,0 +1,79 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+//Base for the text record formats. Lines are read one at a time and decoded into a single reused buffer, data goes
+//to the sink as soon as its record checks out so a file of any size loads without being held in memory. Records
+//may come in any order and leave gaps, the sink only sees the addresses that are actually in the file.
+public abstract class RecordReader implements Closeable {
+    protected final BufferedReader in;
+    protected final byte[] record = new byte[260];
+    protected int lineNumber, records;
+    protected long startAddress = -1;
+
+    public RecordReader(Reader in){
+        this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+    }
+
+    //Reads up to the end of file record, returns how many data bytes went to sink
+    public long readAll(RecordSink sink) throws IOException {
+        long total = 0;
+        String line;
+        while((line = in.readLine()) != null){
+            lineNumber++;
+            line = line.trim();
+            if(line.isEmpty()) continue;
+
+            int count = readRecord(line, sink);
+            if(count < 0) break;
+            total += count;
+        }
+        return total;
+    }
+
+    //Returns how many data bytes the record held, -1 for the record that ends the file
+    protected abstract int readRecord(String line, RecordSink sink) throws IOException;
+
+    //Hex pairs from start to the end of line into record, returns the byte count
+    protected int decode(String line, int start) throws RecordFormatException {
+        int digits = line.length() - start;
+        if((digits & 1) != 0) throw fail("Odd number of hex digits");
+        int count = digits >> 1;
+        if(count > record.length) throw fail("Record is too long");
+
+        for(int i = 0, p = start; i < count; i++, p += 2){
+            int hi = Character.digit(line.charAt(p), 16);
+            int lo = Character.digit(line.charAt(p + 1), 16);
+            if(hi < 0 || lo < 0) throw fail("Bad hex digit");
+            record[i] = (byte)((hi << 4) | lo);
+        }
+        return count;
+    }
+
+    //Big endian value of length bytes of record
+    protected int value(int offset, int length){
+        int v = 0;
+        for(int i = 0; i < length; i++) v = (v << 8) | (record[offset + i] & 0xFF);
+        return v;
+    }
+
+    protected RecordFormatException fail(String message){
+        return new RecordFormatException(message, lineNumber);
+    }
+
+    //Entry point given by the file, -1 if it had none
+    public long getStartAddress(){
+        return startAddress;
+    }
+
+    public int getRecordCount(){
+        return records;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,6 @@
+package com.xemplarsoft.bridge.io;
+
+public interface RecordSink {
+    //data is the reader's record buffer and is reused for the next record, copy what needs keeping
+    public void data(int address, byte[] data, int offset, int length);
+}
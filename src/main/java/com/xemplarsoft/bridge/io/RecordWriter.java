@@ -0,0 +1,51 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+//Base for the text record formats. Data can be written as any number of separate ranges, each one is cut into
+//records of at most recordSize bytes and nothing is written for the gaps between them. close() writes the end of
+//file record and closes the stream.
+public abstract class RecordWriter implements Closeable {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    protected final Writer out;
+    protected final int recordSize;
+    protected long startAddress = -1;
+    protected int checksum;
+
+    public RecordWriter(Writer out, int recordSize){
+        this.out = out;
+        this.recordSize = recordSize;
+    }
+
+    public abstract void write(int address, byte[] data, int offset, int length) throws IOException;
+
+    //Written with the end of file record
+    public void setStartAddress(long address){
+        this.startAddress = address;
+    }
+
+    protected void hex(int b) throws IOException {
+        checksum += b & 0xFF;
+        out.write(HEX[(b >> 4) & 0x0F]);
+        out.write(HEX[b & 0x0F]);
+    }
+
+    //Big endian, the low bytes of value
+    protected void hex(int value, int bytes) throws IOException {
+        for(int i = bytes - 1; i >= 0; i--) hex(value >> (i << 3));
+    }
+
+    protected abstract void finish() throws IOException;
+
+    public void close() throws IOException {
+        try {
+            finish();
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+//Motorola S-records, "StLL<address><data>CC". S1, S2 and S3 carry data with 16, 24 and 32 bit addresses, S5 and S6
+//carry the data record count and are checked against what was read, S7 to S9 end the file with the entry point.
+public class SRecordReader extends RecordReader {
+    private static final int[] ADDRESS_BYTES = {2, 2, 3, 4, -1, 2, 3, 4, 3, 2};
+
+    protected String header = "";
+    protected int dataRecords;
+
+    public SRecordReader(Reader in){
+        super(in);
+    }
+
+    protected int readRecord(String line, RecordSink sink) throws IOException {
+        if(line.length() < 2 || line.charAt(0) != 'S') throw fail("Record does not start with 'S'");
+        int type = Character.digit(line.charAt(1), 10);
+        if(type < 0 || ADDRESS_BYTES[type] < 0) throw fail("Unknown record type S" + line.charAt(1));
+
+        int n = decode(line, 2);
+        int addressBytes = ADDRESS_BYTES[type];
+        if(n < addressBytes + 2) throw fail("Record is too short");
+        int count = record[0] & 0xFF;
+        if(n != count + 1) throw fail("Byte count does not match record length");
+        int sum = 0;
+        for(int i = 0; i < n; i++) sum += record[i];
+        if((sum & 0xFF) != 0xFF) throw fail("Checksum mismatch");
+        records++;
+
+        int address = value(1, addressBytes);
+        int offset = 1 + addressBytes;
+        int length = count - addressBytes - 1;
+        switch (type) {
+            case 0:
+                header = new String(record, offset, length, StandardCharsets.US_ASCII);
+                return 0;
+            case 1:
+            case 2:
+            case 3:
+                dataRecords++;
+                sink.data(address, record, offset, length);
+                return length;
+            case 5:
+            case 6:
+                if(address != dataRecords) throw fail("Record count " + address + " does not match " + dataRecords + " data records");
+                return 0;
+            default: //7 to 9
+                startAddress = address & 0xFFFFFFFFL;
+                return -1;
+        }
+    }
+
+    public String getHeader(){
+        return header;
+    }
+}
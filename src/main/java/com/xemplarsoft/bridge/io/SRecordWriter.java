@@ -0,0 +1,54 @@
+package com.xemplarsoft.bridge.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+//Motorola S-record output. Each data record uses the narrowest address that fits, the count and termination
+//records match the widest one written.
+public class SRecordWriter extends RecordWriter {
+    public static final int DEFAULT_RECORD_SIZE = 32;
+
+    protected int dataRecords, addressBytes = 2;
+
+    public SRecordWriter(Writer out, String header) throws IOException {
+        this(out, header, DEFAULT_RECORD_SIZE);
+    }
+
+    public SRecordWriter(Writer out, String header, int recordSize) throws IOException {
+        super(out, Math.min(recordSize, 250));
+        byte[] h = header.getBytes(StandardCharsets.US_ASCII);
+        record(0, 0, 2, h, 0, Math.min(h.length, recordSize));
+    }
+
+    public void write(int address, byte[] data, int offset, int length) throws IOException {
+        while(length > 0){
+            int n = Math.min(length, recordSize);
+            long end = (address & 0xFFFFFFFFL) + n;
+            int bytes = end <= 0x10000 ? 2 : end <= 0x1000000 ? 3 : 4;
+            addressBytes = Math.max(addressBytes, bytes);
+            record(bytes - 1, address, bytes, data, offset, n);
+            dataRecords++;
+            address += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    protected void finish() throws IOException {
+        if(dataRecords <= 0xFFFF) record(5, dataRecords, 2, null, 0, 0);
+        else if(dataRecords <= 0xFFFFFF) record(6, dataRecords, 3, null, 0, 0);
+        record(11 - addressBytes, startAddress < 0 ? 0 : (int) startAddress, addressBytes, null, 0, 0);
+    }
+
+    private void record(int type, int address, int bytes, byte[] data, int offset, int length) throws IOException {
+        out.write('S');
+        out.write('0' + type);
+        checksum = 0;
+        hex(length + bytes + 1);
+        hex(address, bytes);
+        for(int i = 0; i < length; i++) hex(data[offset + i]);
+        hex(~checksum);
+        out.write('\n');
+    }
+}
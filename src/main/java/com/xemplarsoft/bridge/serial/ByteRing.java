@@ -0,0 +1,77 @@
+package com.xemplarsoft.bridge.serial;
+
+//Single producer, single consumer byte ring. Capacity is rounded up to a power of two and allocated once.
+public final class ByteRing {
+    private final byte[] buffer;
+    private final int mask;
+    private volatile long head = 0, tail = 0; //head is read position, tail is write position
+
+    public ByteRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity(){
+        return buffer.length;
+    }
+
+    public int available(){
+        return (int)(tail - head);
+    }
+
+    public int free(){
+        return buffer.length - available();
+    }
+
+    public void clear(){
+        head = tail;
+    }
+
+    //Reads straight from the link into the free space, no intermediate copy
+    public int readFrom(SerialLink link){
+        int free = free();
+        if(free == 0) return 0;
+        int index = (int)(tail & mask);
+        int len = Math.min(free, buffer.length - index);
+        int read = link.read(buffer, index, len);
+        if(read > 0) tail += read;
+        return read;
+    }
+
+    public int write(byte[] src, int off, int len){
+        len = Math.min(len, free());
+        int index = (int)(tail & mask);
+        int first = Math.min(len, buffer.length - index);
+        System.arraycopy(src, off, buffer, index, first);
+        System.arraycopy(src, off + first, buffer, 0, len - first);
+        tail += len;
+        return len;
+    }
+
+    public int read(byte[] dst, int off, int len){
+        len = Math.min(len, available());
+        int index = (int)(head & mask);
+        int first = Math.min(len, buffer.length - index);
+        System.arraycopy(buffer, index, dst, off, first);
+        System.arraycopy(buffer, 0, dst, off + first, len - first);
+        head += len;
+        return len;
+    }
+
+    //Hands the readable bytes to the consumer in at most two contiguous slices. Only what the consumer says it took
+    //is removed, the rest stays for the next drain.
+    public int drainTo(Consumer consumer){
+        int len = available();
+        int index = (int)(head & mask);
+        int first = Math.min(len, buffer.length - index);
+        int taken = consumer.accept(buffer, index, first);
+        if(taken == first && len > first) taken += consumer.accept(buffer, 0, len - first);
+        head += taken;
+        return taken;
+    }
+
+    public interface Consumer {
+        public int accept(byte[] buffer, int offset, int length);
+    }
+}
@@ -0,0 +1,12 @@
+package com.xemplarsoft.bridge.serial;
+
+//Programs the device EEPROM page by page. Pages the programmer has not written itself are first asked for their
+//CRC, anything already on the chip is skipped. A 16 bit CRC per page can in theory hide a change, use a full
+//program to be certain. Writes take a while on the chip side so acks are given longer than the RAM image.
+public class EepromProgrammer extends RomImageUploader {
+    public static final int WRITE_TIMEOUT = 2000;
+
+    public EepromProgrammer(int base, int size, Sender sender, Listener listener){
+        super(base, size, Protocol.OP_EEPROM_PAGE, Protocol.OP_REQ_EEPROM_CRC, WRITE_TIMEOUT, sender, listener);
+    }
+}
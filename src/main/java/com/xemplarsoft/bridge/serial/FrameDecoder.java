@@ -0,0 +1,213 @@
+package com.xemplarsoft.bridge.serial;
+
+import com.xemplarsoft.bridge.util.DataCRC;
+
+//Splits the incoming byte stream into ASCII "!{CMD,len}payload" frames and binary frames.
+//Both can be interleaved on the same link, binary frames only start on an opcode byte while idle. Until binary
+//frames are negotiated every byte outside an ASCII frame is line noise, so an opcode byte only starts a frame once
+//an "!{AWAKE}" reply has offered CAP_BINARY or setBinaryFrames turned them on. Old ASCII sketches are never
+//stalled waiting on a binary frame that a stray high byte seemed to start.
+public class FrameDecoder {
+    public static final int ERROR_OVERFLOW = -2;
+    public static final int ERROR_LENGTH = -5;
+    public static final int ERROR_CRC = -6;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_ASCII_MARK = 1;
+    private static final int STATE_ASCII_HEAD = 2;
+    private static final int STATE_ASCII_BODY = 3;
+    private static final int STATE_BIN_LENGTH = 4;
+    private static final int STATE_BIN_BODY = 5;
+
+    protected final FrameListener listener;
+    protected final byte[] buffer;
+    protected int state = STATE_IDLE, index, mark, lengthStart, length, remaining, shift, payloadStart;
+    protected long crcErrors, overflowErrors, lengthErrors;
+    protected volatile boolean binaryFrames;
+
+    public FrameDecoder(FrameListener listener){
+        this(listener, 4096);
+    }
+
+    public FrameDecoder(FrameListener listener, int bufferSize){
+        this.listener = listener;
+        this.buffer = new byte[Math.max(bufferSize, Protocol.MAX_FRAME)];
+    }
+
+    public void reset(){
+        state = STATE_IDLE;
+        index = 0;
+    }
+
+    public void feed(byte[] data, int off, int len){
+        for(int i = off; i < off + len; i++){
+            feed(data[i]);
+        }
+    }
+
+    public void feed(int b){
+        b &= 0xFF;
+        switch (state){
+            case STATE_IDLE:
+                if(b == '!' || b == '?'){
+                    mark = b;
+                    state = STATE_ASCII_MARK;
+                } else if(binaryFrames && Protocol.isOpcode(b)){
+                    buffer[0] = (byte) b;
+                    index = 1;
+                    length = 0;
+                    shift = 0;
+                    state = STATE_BIN_LENGTH;
+                }
+                return;
+            case STATE_ASCII_MARK:
+                if(b == '{'){
+                    buffer[0] = (byte) mark;
+                    buffer[1] = '{';
+                    index = 2;
+                    lengthStart = -1;
+                    state = STATE_ASCII_HEAD;
+                } else if(b == '!' || b == '?'){
+                    mark = b;
+                } else {
+                    state = STATE_IDLE;
+                }
+                return;
+            case STATE_ASCII_HEAD:
+                if(b == '!' || b == '?'){ //Lost a frame, resync on the new one
+                    mark = b;
+                    state = STATE_ASCII_MARK;
+                    return;
+                }
+                if(!put(b)) return;
+                if(b == ',' && lengthStart == -1){
+                    lengthStart = index;
+                } else if(b == '}' && lengthStart != -1){
+                    length = parseLength(lengthStart, index - 1);
+                    if(length < 0 || index + length > buffer.length){
+                        lengthErrors++;
+                        listener.decodeError(ERROR_LENGTH, buffer, index);
+                        state = STATE_IDLE;
+                    } else if(length == 0){
+                        complete();
+                    } else {
+                        remaining = length;
+                        state = STATE_ASCII_BODY;
+                    }
+                }
+                return;
+            case STATE_ASCII_BODY:
+                if(b == '!' || b == '?'){ //Old firmware miscounts some lengths, never swallow the next frame
+                    mark = b;
+                    state = STATE_ASCII_MARK;
+                    return;
+                }
+                if(!put(b)) return;
+                if(--remaining == 0) complete();
+                return;
+            case STATE_BIN_LENGTH:
+                if(!put(b)) return;
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+                if((b & 0x80) == 0){
+                    if(length > Protocol.MAX_PAYLOAD){
+                        lengthErrors++;
+                        listener.decodeError(ERROR_LENGTH, buffer, index);
+                        state = STATE_IDLE;
+                        return;
+                    }
+                    payloadStart = index;
+                    remaining = length + 2;
+                    state = STATE_BIN_BODY;
+                } else if(shift >= 21){
+                    lengthErrors++;
+                    listener.decodeError(ERROR_LENGTH, buffer, index);
+                    state = STATE_IDLE;
+                }
+                return;
+            case STATE_BIN_BODY:
+                if(!put(b)) return;
+                if(--remaining == 0) completeBinary();
+                return;
+        }
+    }
+
+    private boolean put(int b){
+        if(index >= buffer.length){
+            overflowErrors++;
+            listener.decodeError(ERROR_OVERFLOW, buffer, index);
+            state = STATE_IDLE;
+            return false;
+        }
+        buffer[index++] = (byte) b;
+        return true;
+    }
+
+    private int parseLength(int start, int end){
+        if(end <= start) return -1;
+        int ret = 0;
+        for(int i = start; i < end; i++){
+            int d = buffer[i] - '0';
+            if(d < 0 || d > 9) return -1;
+            ret = ret * 10 + d;
+        }
+        return ret;
+    }
+
+    private void complete(){
+        state = STATE_IDLE;
+        if(index >= 9 && buffer[0] == '!' && startsWith(buffer, 2, "AWAKE,")) binaryFrames = hasBinary(index);
+        listener.asciiFrame(buffer, index);
+    }
+
+    private void completeBinary(){
+        state = STATE_IDLE;
+        int crcEnd = index - 2;
+        int crc = DataCRC.calculateCRC(buffer, 0, crcEnd);
+        int received = (buffer[crcEnd] & 0xFF) | ((buffer[crcEnd + 1] & 0xFF) << 8);
+        if(crc != received){
+            crcErrors++;
+            listener.decodeError(ERROR_CRC, buffer, index);
+            return;
+        }
+        listener.binaryFrame(buffer[0] & 0xFF, buffer, payloadStart, length);
+    }
+
+    private static boolean startsWith(byte[] b, int at, String s){
+        for(int i = 0; i < s.length(); i++){
+            if(b[at + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    //Capabilities follow the closing brace of the AWAKE reply
+    private boolean hasBinary(int end){
+        int i = 2;
+        while(i < end && buffer[i] != '}') i++;
+        for(i++; i < end; i++){
+            if(buffer[i] == Protocol.CAP_BINARY) return true;
+        }
+        return false;
+    }
+
+    //For the device end, which takes the AWAKE request rather than the reply
+    public void setBinaryFrames(boolean binaryFrames){
+        this.binaryFrames = binaryFrames;
+    }
+
+    public boolean isBinaryFrames(){
+        return binaryFrames;
+    }
+
+    public long getCrcErrors(){
+        return crcErrors;
+    }
+
+    public long getOverflowErrors(){
+        return overflowErrors;
+    }
+
+    public long getLengthErrors(){
+        return lengthErrors;
+    }
+}
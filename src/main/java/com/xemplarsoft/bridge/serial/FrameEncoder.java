@@ -0,0 +1,51 @@
+package com.xemplarsoft.bridge.serial;
+
+import com.xemplarsoft.bridge.util.DataCRC;
+
+//Binary frame layout: [opcode][varint length][payload][crc lo][crc hi], crc covers everything before it.
+public final class FrameEncoder {
+    private FrameEncoder(){}
+
+    public static int encode(int op, byte[] payload, int off, int len, byte[] out, int outOff){
+        if(len < 0 || len > Protocol.MAX_PAYLOAD) throw new IllegalArgumentException("Payload length out of range: " + len);
+
+        int pos = outOff;
+        out[pos++] = (byte) op;
+        pos = writeVarint(len, out, pos);
+        if(len > 0) System.arraycopy(payload, off, out, pos, len);
+        pos += len;
+
+        int crc = DataCRC.calculateCRC(out, outOff, pos - outOff);
+        out[pos++] = (byte)(crc & 0xFF);
+        out[pos++] = (byte)((crc >> 8) & 0xFF);
+
+        return pos - outOff;
+    }
+
+    public static int writeVarint(int value, byte[] out, int pos){
+        while((value & ~0x7F) != 0){
+            out[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    public static int varintSize(int value){
+        int size = 1;
+        while((value & ~0x7F) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putAddress(byte[] out, int pos, int address){
+        out[pos]     = (byte)(address & 0xFF);
+        out[pos + 1] = (byte)((address >> 8) & 0xFF);
+    }
+
+    public static int getAddress(byte[] in, int pos){
+        return (in[pos] & 0xFF) | ((in[pos + 1] & 0xFF) << 8);
+    }
+}
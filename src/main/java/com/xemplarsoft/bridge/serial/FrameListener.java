@@ -0,0 +1,11 @@
+package com.xemplarsoft.bridge.serial;
+
+public interface FrameListener {
+    //buffer[0] is '!' or '?', the frame is "!{CMD,len}payload"
+    public void asciiFrame(byte[] buffer, int length);
+
+    //payload only, opcode and crc have already been checked and stripped
+    public void binaryFrame(int op, byte[] buffer, int offset, int length);
+
+    public void decodeError(int error, byte[] buffer, int length);
+}
@@ -0,0 +1,255 @@
+package com.xemplarsoft.bridge.serial;
+
+import com.xemplarsoft.bridge.util.DataCRC;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+//Checks what the device holds against an image without reading the whole thing back. The device is asked for the
+//CRC of every BLOCK_SIZE bytes, MAX_BLOCK_HASHES blocks to a frame, and only the blocks whose CRC differs from the
+//image are read back and compared byte for byte. A 32K ROM that matches costs four requests, each block that does
+//not costs one more. Differing bytes are kept as address ranges once the run is done.
+public class ImageVerifier implements Runnable {
+    public static final int WINDOW = 4;
+    public static final int REPLY_TIMEOUT = 500;
+    public static final int MAX_TRIES = 5;
+
+    public interface Listener {
+        //Requests answered so far in the hashing pass, or in the reading pass once reading is set
+        public void verifyProgress(ImageVerifier source, boolean reading, int done, int total);
+        public void verifyFinished(ImageVerifier source, boolean success);
+    }
+
+    protected final RomImageUploader.Sender sender;
+    protected final Listener listener;
+    protected final byte[] payload = new byte[5];
+    protected final Object lock = new Object();
+
+    protected int space, base, blocks;
+    protected byte[] image, device;
+    protected int[] deviceCrc;
+    protected boolean[] hashed, fetched;
+    protected Thread worker;
+    protected volatile boolean busy;
+    protected volatile int differingBlocks, differingBytes, requestsSent;
+
+    protected int[] diffStart = new int[16], diffEnd = new int[16];
+    protected int diffCount;
+
+    public ImageVerifier(RomImageUploader.Sender sender, Listener listener){
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    public boolean isBusy(){
+        return busy;
+    }
+
+    //Starts checking the device's space at base against image, false if a check is already running
+    public boolean verify(int space, int base, byte[] image){
+        synchronized (lock) {
+            if(worker != null) return false;
+
+            this.space = space;
+            this.base = base;
+            this.image = image;
+            blocks = image.length / Protocol.BLOCK_SIZE;
+            device = new byte[blocks * Protocol.BLOCK_SIZE];
+            deviceCrc = new int[blocks];
+            hashed = new boolean[blocks];
+            fetched = new boolean[blocks];
+            diffCount = 0;
+            differingBlocks = 0;
+            differingBytes = 0;
+            requestsSent = 0;
+
+            busy = true;
+            worker = new Thread(this, "Image Verify");
+            worker.setDaemon(true);
+            worker.start();
+            return true;
+        }
+    }
+
+    public void hashesReceived(byte[] buffer, int offset, int length){
+        if(length < 3) return;
+        synchronized (lock) {
+            int first = block(FrameEncoder.getAddress(buffer, offset), buffer[offset + 2]);
+            if(first < 0) return;
+            int count = Math.min((length - 3) >> 1, blocks - first);
+            for(int i = 0; i < count; i++){
+                deviceCrc[first + i] = FrameEncoder.getAddress(buffer, offset + 3 + (i << 1));
+                hashed[first + i] = true;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public void blockReceived(byte[] buffer, int offset, int length){
+        if(length < 3 + Protocol.BLOCK_SIZE) return;
+        synchronized (lock) {
+            int block = block(FrameEncoder.getAddress(buffer, offset), buffer[offset + 2]);
+            if(block < 0) return;
+            System.arraycopy(buffer, offset + 3, device, block * Protocol.BLOCK_SIZE, Protocol.BLOCK_SIZE);
+            fetched[block] = true;
+            lock.notifyAll();
+        }
+    }
+
+    //Block index of a reply for the running check, -1 if it belongs to something else
+    private int block(int address, int replySpace){
+        if(!busy || replySpace != space) return -1;
+        int offset = address - base;
+        if(offset < 0 || offset % Protocol.BLOCK_SIZE != 0) return -1;
+        int block = offset / Protocol.BLOCK_SIZE;
+        return block < blocks ? block : -1;
+    }
+
+    public void run(){
+        boolean success = check();
+        synchronized (lock) {
+            worker = null;
+            busy = false;
+        }
+        listener.verifyFinished(this, success);
+    }
+
+    private boolean check(){
+        //Hash requests go out per group of blocks, the group's first block stands for it
+        int step = Protocol.MAX_BLOCK_HASHES;
+        int[] groups = new int[(blocks + step - 1) / step];
+        for(int i = 0; i < groups.length; i++) groups[i] = i * step;
+        boolean ok = exchange(groups, groups.length, false, (first) -> {
+            FrameEncoder.putAddress(payload, 0, base + first * Protocol.BLOCK_SIZE);
+            payload[2] = (byte) Math.min(step, blocks - first);
+            payload[3] = (byte) space;
+            sender.sendFrame(Protocol.OP_REQ_BLOCK_HASHES, payload, 4);
+        });
+        if(!ok) return false;
+
+        int[] differing = new int[blocks];
+        int count = 0;
+        for(int i = 0; i < blocks; i++){
+            if(deviceCrc[i] != DataCRC.calculateCRC(image, i * Protocol.BLOCK_SIZE, Protocol.BLOCK_SIZE)) differing[count++] = i;
+            else System.arraycopy(image, i * Protocol.BLOCK_SIZE, device, i * Protocol.BLOCK_SIZE, Protocol.BLOCK_SIZE);
+        }
+        differingBlocks = count;
+
+        ok = exchange(differing, count, true, (block) -> {
+            FrameEncoder.putAddress(payload, 0, base + block * Protocol.BLOCK_SIZE);
+            FrameEncoder.putAddress(payload, 2, Protocol.BLOCK_SIZE);
+            payload[4] = (byte) space;
+            sender.sendFrame(Protocol.OP_REQ_BLOCK_READ, payload, 5);
+        });
+        if(!ok) return false;
+
+        //Adjacent differing bytes are merged into one range, across block edges too
+        int bytes = 0;
+        for(int k = 0; k < count; k++){
+            int off = differing[k] * Protocol.BLOCK_SIZE;
+            for(int i = off; i < off + Protocol.BLOCK_SIZE; i++){
+                if(image[i] == device[i]) continue;
+                bytes++;
+                if(diffCount > 0 && diffEnd[diffCount - 1] == base + i){
+                    diffEnd[diffCount - 1]++;
+                    continue;
+                }
+                if(diffCount == diffStart.length){
+                    diffStart = Arrays.copyOf(diffStart, diffCount << 1);
+                    diffEnd = Arrays.copyOf(diffEnd, diffCount << 1);
+                }
+                diffStart[diffCount] = base + i;
+                diffEnd[diffCount++] = base + i + 1;
+            }
+        }
+        differingBytes = bytes;
+        return true;
+    }
+
+    //Sends one request per item, WINDOW at a time, and resends any that go unanswered until every item is answered
+    private boolean exchange(int[] items, int count, boolean reading, IntConsumer send){
+        long[] sentAt = new long[count];
+        int[] tries = new int[count];
+        int[] ready = new int[WINDOW];
+        listener.verifyProgress(this, reading, 0, count);
+        int reported = 0;
+
+        while(true){
+            int due = 0, done = 0;
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                int flying = 0;
+                for(int i = 0; i < count; i++){
+                    if(answered(items[i], reading)) done++;
+                    else if(sentAt[i] != 0 && now - sentAt[i] <= REPLY_TIMEOUT) flying++;
+                }
+                for(int i = 0; i < count && flying + due < WINDOW; i++){
+                    if(answered(items[i], reading) || (sentAt[i] != 0 && now - sentAt[i] <= REPLY_TIMEOUT)) continue;
+                    if(tries[i] >= MAX_TRIES) return false;
+                    tries[i]++;
+                    sentAt[i] = now;
+                    ready[due++] = items[i];
+                }
+                if(done < count && due == 0){
+                    try {
+                        lock.wait(REPLY_TIMEOUT / 4);
+                    } catch (InterruptedException e){
+                        return false;
+                    }
+                }
+            }
+
+            if(done != reported){
+                reported = done;
+                listener.verifyProgress(this, reading, done, count);
+            }
+            if(done == count) return true;
+            for(int i = 0; i < due; i++){
+                send.accept(ready[i]);
+                requestsSent++;
+            }
+        }
+    }
+
+    private boolean answered(int item, boolean reading){
+        if(reading) return fetched[item];
+        for(int i = item; i < Math.min(item + Protocol.MAX_BLOCK_HASHES, blocks); i++){
+            if(!hashed[i]) return false;
+        }
+        return true;
+    }
+
+    public int getBlockCount(){
+        return blocks;
+    }
+
+    public int getDifferingBlocks(){
+        return differingBlocks;
+    }
+
+    public int getDifferingBytes(){
+        return differingBytes;
+    }
+
+    public int getRequestsSent(){
+        return requestsSent;
+    }
+
+    //Ranges of differing bytes from the last finished check, start inclusive and end exclusive
+    public int getDiffCount(){
+        return diffCount;
+    }
+
+    public int getDiffStart(int index){
+        return diffStart[index];
+    }
+
+    public int getDiffEnd(int index){
+        return diffEnd[index];
+    }
+
+    //Byte the device holds, only meaningful after a successful check
+    public int getDeviceAt(int address){
+        return device[address - base] & 0xFF;
+    }
+}
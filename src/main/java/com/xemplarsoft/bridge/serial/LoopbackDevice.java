@@ -0,0 +1,359 @@
+package com.xemplarsoft.bridge.serial;
+
+import com.xemplarsoft.bridge.util.DataCRC;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+//Stand-in for the firmware end of the link. Everything the host writes is decoded here and answered the
+//way the Arduino sketch would, the answers are queued up for the host to read back. The capabilities passed
+//in decide which sketch it behaves like, "BPE" for the Mega and "BIV" for the Pico. Faults can be injected into
+//EEPROM page and ROM image writes to exercise the retransmit path.
+public class LoopbackDevice implements SerialLink, FrameListener {
+    public static final int CACHE_SEGMENTS = 4;
+
+    protected final FrameDecoder decoder;
+    protected final ByteRing toHost = new ByteRing(1 << 16);
+    protected final String capabilities;
+    protected final byte[] rom = new byte[0x10000];
+    protected final byte[] ram = new byte[0x800];
+    protected final byte[] eeprom = new byte[0x10000];
+    protected final byte[] out = new byte[Protocol.MAX_FRAME];
+    protected final byte[] payload = new byte[Protocol.MAX_PAYLOAD];
+
+    protected final int[] cacheBase = new int[CACHE_SEGMENTS];
+    protected final int[] cacheLength = new int[CACHE_SEGMENTS];
+    protected final byte[][] cacheData = new byte[CACHE_SEGMENTS][RomPrefetcher.MAX_DEPTH];
+
+    protected volatile boolean binaryFrames = false, prefetch = false, romImage = false, eepromEnabled = false, verify = false;
+    protected Random faults;
+    protected int dropPercent, corruptPercent;
+    protected int cacheHits, cacheNext;
+    protected int lastRequestedAddress = -1, lastRomAddress = -1, lastRomData = -1;
+    protected long romReplies, badRomReplies, unknownFrames, imageWrites, imageDropped, imageCorrupted, eepromWrites, eepromDropped, eepromCorrupted, blockReads;
+
+    public LoopbackDevice(boolean binaryCapable){
+        this(binaryCapable ? "" + Protocol.CAP_BINARY + Protocol.CAP_PREFETCH + Protocol.CAP_EEPROM : "");
+    }
+
+    public LoopbackDevice(String capabilities){
+        this.capabilities = capabilities;
+        this.decoder = new FrameDecoder(this, 512);
+    }
+
+    public synchronized void write(byte[] data, int offset, int length){
+        decoder.feed(data, offset, length);
+    }
+
+    public int read(byte[] data, int offset, int length){
+        synchronized (toHost) {
+            if(toHost.available() == 0){
+                try {
+                    toHost.wait(PortLink.READ_TIMEOUT);
+                } catch (InterruptedException e){
+                    return -1;
+                }
+            }
+            return toHost.read(data, offset, length);
+        }
+    }
+
+    public void asciiFrame(byte[] buffer, int length){
+        String frame = new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+        int brace = frame.indexOf('}');
+        String action = frame.substring(2, frame.indexOf(','));
+        String body = frame.substring(brace + 1);
+
+        if(buffer[0] == '?' && action.equals("AWAKE")){
+            binaryFrames = supports(body, Protocol.CAP_BINARY);
+            prefetch = binaryFrames && supports(body, Protocol.CAP_PREFETCH);
+            romImage = binaryFrames && supports(body, Protocol.CAP_ROM_IMAGE);
+            eepromEnabled = binaryFrames && supports(body, Protocol.CAP_EEPROM);
+            verify = binaryFrames && supports(body, Protocol.CAP_VERIFY);
+            decoder.setBinaryFrames(binaryFrames);
+            Arrays.fill(cacheLength, 0);
+
+            String caps = (binaryFrames ? "" + Protocol.CAP_BINARY : "") + (prefetch ? "" + Protocol.CAP_PREFETCH : "")
+                    + (romImage ? "" + Protocol.CAP_ROM_IMAGE : "") + (eepromEnabled ? "" + Protocol.CAP_EEPROM : "")
+                    + (verify ? "" + Protocol.CAP_VERIFY : "");
+            sendAscii("!{AWAKE," + caps.length() + "}" + caps);
+            return;
+        }
+        if(buffer[0] == '!' && action.equals("ROM")){
+            int comma = body.indexOf(',');
+            int address = Integer.parseInt(body.substring(0, comma), 16);
+            int data = Integer.parseInt(body.substring(comma + 1, comma + 3), 16);
+            int comp = Integer.parseInt(body.substring(comma + 3, comma + 5), 16);
+            int xor = Integer.parseInt(body.substring(comma + 5, comma + 7), 16) ^ 'k';
+            if(((comp + data) & 0xFF) != 0xFF || xor != data){
+                badRomReplies++;
+                return;
+            }
+            romReceived(address, data);
+            return;
+        }
+
+        unknownFrames++;
+        sendAscii("!{ERROR,3}-1,");
+    }
+
+    public void binaryFrame(int op, byte[] buffer, int offset, int length){
+        if(op == Protocol.OP_ROM && length == 3){
+            romReceived(FrameEncoder.getAddress(buffer, offset), buffer[offset + 2] & 0xFF);
+            return;
+        }
+        if(op == Protocol.OP_ROM_IMAGE && romImage && length >= 2){
+            if(faults != null && faults.nextInt(100) < dropPercent){
+                imageDropped++;
+                return;
+            }
+            int address = FrameEncoder.getAddress(buffer, offset);
+            int count = Math.min(length - 2, rom.length - address);
+            System.arraycopy(buffer, offset + 2, rom, address, count);
+            if(faults != null && count > 0 && faults.nextInt(100) < corruptPercent){
+                rom[address + faults.nextInt(count)] ^= 0x10;
+                imageCorrupted++;
+            }
+            imageWrites++;
+
+            FrameEncoder.putAddress(payload, 0, address);
+            FrameEncoder.putAddress(payload, 2, DataCRC.calculateCRC(rom, address, count));
+            sendFrame(Protocol.OP_ROM_IMAGE_ACK, 4);
+            return;
+        }
+        if(op == Protocol.OP_EEPROM_PAGE && eepromEnabled && length >= 2){
+            if(faults != null && faults.nextInt(100) < dropPercent){
+                eepromDropped++;
+                return;
+            }
+            int address = FrameEncoder.getAddress(buffer, offset);
+            int count = Math.min(length - 2, eeprom.length - address);
+            System.arraycopy(buffer, offset + 2, eeprom, address, count);
+            if(faults != null && count > 0 && faults.nextInt(100) < corruptPercent){
+                eeprom[address + faults.nextInt(count)] ^= 0x10;
+                eepromCorrupted++;
+            }
+            eepromWrites++;
+            sendEepromAck(address, count);
+            return;
+        }
+        if(op == Protocol.OP_REQ_EEPROM_CRC && eepromEnabled && length >= 4){
+            int address = FrameEncoder.getAddress(buffer, offset);
+            sendEepromAck(address, Math.min(FrameEncoder.getAddress(buffer, offset + 2), eeprom.length - address));
+            return;
+        }
+        if(op == Protocol.OP_REQ_BLOCK_HASHES && verify && length == 4){
+            int address = FrameEncoder.getAddress(buffer, offset);
+            byte[] memory = buffer[offset + 3] == Protocol.SPACE_RAM ? ram : rom;
+            int blocks = Math.min(buffer[offset + 2] & 0xFF, Protocol.MAX_BLOCK_HASHES);
+            blocks = address >= memory.length ? 0 : Math.min(blocks, (memory.length - address) / Protocol.BLOCK_SIZE);
+
+            FrameEncoder.putAddress(payload, 0, address);
+            payload[2] = buffer[offset + 3];
+            for(int i = 0; i < blocks; i++){
+                FrameEncoder.putAddress(payload, 3 + (i << 1), DataCRC.calculateCRC(memory, address + i * Protocol.BLOCK_SIZE, Protocol.BLOCK_SIZE));
+            }
+            sendFrame(Protocol.OP_BLOCK_HASHES, 3 + (blocks << 1));
+            return;
+        }
+        if(op == Protocol.OP_REQ_BLOCK_READ && verify && length == 5){
+            int address = FrameEncoder.getAddress(buffer, offset);
+            byte[] memory = buffer[offset + 4] == Protocol.SPACE_RAM ? ram : rom;
+            int count = Math.min(FrameEncoder.getAddress(buffer, offset + 2), Protocol.BLOCK_SIZE);
+            count = address >= memory.length ? 0 : Math.min(count, memory.length - address);
+
+            FrameEncoder.putAddress(payload, 0, address);
+            payload[2] = buffer[offset + 4];
+            System.arraycopy(memory, address, payload, 3, count);
+            blockReads++;
+            sendFrame(Protocol.OP_BLOCK_DATA, 3 + count);
+            return;
+        }
+        if(op == Protocol.OP_ROM_BURST){
+            if(length < 2){
+                Arrays.fill(cacheLength, 0);
+                return;
+            }
+            int segment = cacheNext;
+            cacheNext = (cacheNext + 1) % CACHE_SEGMENTS;
+            cacheBase[segment] = FrameEncoder.getAddress(buffer, offset);
+            cacheLength[segment] = Math.min(length - 2, RomPrefetcher.MAX_DEPTH);
+            System.arraycopy(buffer, offset + 2, cacheData[segment], 0, cacheLength[segment]);
+            return;
+        }
+
+        unknownFrames++;
+    }
+
+    public void decodeError(int error, byte[] buffer, int length){
+        sendAscii("!{ERROR,3}" + error + ",");
+    }
+
+    protected void romReceived(int address, int data){
+        if(address != lastRequestedAddress){
+            badRomReplies++;
+            return;
+        }
+        lastRomAddress = address;
+        lastRomData = data;
+        romReplies++;
+    }
+
+    //Serves the fetch from the prefetch cache when it can, returns false if it had to ask the host
+    public boolean fetchRom(int address){
+        if(prefetch){
+            for(int i = 0; i < CACHE_SEGMENTS; i++){
+                int index = address - cacheBase[i];
+                if(index < 0 || index >= cacheLength[i]) continue;
+                cacheHits++;
+                lastRomAddress = address;
+                lastRomData = cacheData[i][index] & 0xFF;
+                return true;
+            }
+        }
+        requestRom(address);
+        return false;
+    }
+
+    public void requestRom(int address){
+        lastRequestedAddress = address & 0xFFFF;
+        if(prefetch){
+            FrameEncoder.putAddress(payload, 0, address);
+            FrameEncoder.putAddress(payload, 2, Math.min(cacheHits, 0xFFFF));
+            cacheHits = 0;
+            sendFrame(Protocol.OP_REQ_ROM, 4);
+        } else if(binaryFrames){
+            FrameEncoder.putAddress(payload, 0, address);
+            sendFrame(Protocol.OP_REQ_ROM, 2);
+        } else {
+            sendAscii("?{ROM,4}" + pad4(address) + " \r\n");
+        }
+    }
+
+    public void sendRamWrite(int address, int data){
+        if(binaryFrames){
+            FrameEncoder.putAddress(payload, 0, address);
+            payload[2] = (byte) data;
+            sendFrame(Protocol.OP_RAM, 3);
+        } else {
+            sendAscii("!{RAM,7}" + pad4(address) + "," + (data < 0x10 ? "0" : "") + Integer.toHexString(data & 0xFF).toUpperCase() + "\r\n");
+        }
+    }
+
+    protected void sendFrame(int op, int length){
+        int len = FrameEncoder.encode(op, payload, 0, length, out, 0);
+        toHost(out, len);
+    }
+
+    protected void sendAscii(String frame){
+        byte[] data = frame.getBytes(StandardCharsets.US_ASCII);
+        toHost(data, data.length);
+    }
+
+    protected void toHost(byte[] data, int length){
+        synchronized (toHost) {
+            toHost.write(data, 0, length);
+            toHost.notifyAll();
+        }
+    }
+
+    private static String pad4(int address){
+        String hex = Integer.toHexString(address & 0xFFFF).toUpperCase();
+        while(hex.length() < 4) hex = "0" + hex;
+        return hex;
+    }
+
+    protected void sendEepromAck(int address, int count){
+        FrameEncoder.putAddress(payload, 0, address);
+        FrameEncoder.putAddress(payload, 2, DataCRC.calculateCRC(eeprom, address, count));
+        sendFrame(Protocol.OP_EEPROM_PAGE_ACK, 4);
+    }
+
+    //Drops or corrupts the given share of EEPROM page and ROM image writes, a seed keeps runs repeatable
+    public void setFaults(int dropPercent, int corruptPercent, long seed){
+        this.dropPercent = dropPercent;
+        this.corruptPercent = corruptPercent;
+        this.faults = dropPercent > 0 || corruptPercent > 0 ? new Random(seed) : null;
+    }
+
+    public int getEepromAt(int address){
+        return eeprom[address & 0xFFFF] & 0xFF;
+    }
+
+    public void setEepromAt(int address, int data){
+        eeprom[address & 0xFFFF] = (byte) data;
+    }
+
+    public long getEepromWrites(){
+        return eepromWrites;
+    }
+
+    public long getEepromDropped(){
+        return eepromDropped;
+    }
+
+    public long getEepromCorrupted(){
+        return eepromCorrupted;
+    }
+
+    private boolean supports(String requested, char cap){
+        return Protocol.hasCapability(capabilities, cap) && Protocol.hasCapability(requested, cap);
+    }
+
+    public int getRomAt(int address){
+        return rom[address & 0xFFFF] & 0xFF;
+    }
+
+    public void setRomAt(int address, int data){
+        rom[address & 0xFFFF] = (byte) data;
+    }
+
+    public long getBlockReads(){
+        return blockReads;
+    }
+
+    public long getImageWrites(){
+        return imageWrites;
+    }
+
+    public long getImageDropped(){
+        return imageDropped;
+    }
+
+    public long getImageCorrupted(){
+        return imageCorrupted;
+    }
+
+    public boolean isRomImage(){
+        return romImage;
+    }
+
+    public boolean isPrefetch(){
+        return prefetch;
+    }
+
+    public boolean isBinaryFrames(){
+        return binaryFrames;
+    }
+
+    public int getLastRomAddress(){
+        return lastRomAddress;
+    }
+
+    public int getLastRomData(){
+        return lastRomData;
+    }
+
+    public long getRomReplies(){
+        return romReplies;
+    }
+
+    public long getBadRomReplies(){
+        return badRomReplies;
+    }
+
+    public long getUnknownFrames(){
+        return unknownFrames;
+    }
+}
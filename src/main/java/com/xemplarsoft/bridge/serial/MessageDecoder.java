@@ -0,0 +1,268 @@
+package com.xemplarsoft.bridge.serial;
+
+import java.nio.charset.StandardCharsets;
+
+//Decodes ASCII "!{CMD,len}payload" frames in place. The command name is looked up in a table built once up front
+//and the fields of the high rate messages (ROM, RAM, RAMR, 6502, ERROR and the ROM request) are parsed straight
+//out of the frame buffer into their typed handler, so nothing is allocated per message. Anything else goes to the
+//fallback handler with the raw frame.
+public class MessageDecoder {
+    public static final int CMD_UNKNOWN = -1;
+    public static final int CMD_RESET = 0;
+    public static final int CMD_AWAKE = 1;
+    public static final int CMD_MESSAGE = 2;
+    public static final int CMD_SETTING = 3;
+    public static final int CMD_CLOCK = 4;
+    public static final int CMD_ROM = 5;
+    public static final int CMD_RAM = 6;
+    public static final int CMD_RAMCL = 7;
+    public static final int CMD_RAMR = 8;
+    public static final int CMD_EEWP = 9;
+    public static final int CMD_6502 = 10;
+    public static final int CMD_ERROR = 11;
+
+    private static final String[] NAMES = {"RESET", "AWAKE", "MESSAGE", "SETTING", "CLOCK", "ROM", "RAM", "RAMCL", "RAMR", "EEWP", "6502", "ERROR"};
+    private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+    private static final int TABLE_SIZE = 64;
+    private static final int[] TABLE = new int[TABLE_SIZE];
+
+    static {
+        java.util.Arrays.fill(TABLE, CMD_UNKNOWN);
+        for(int id = 0; id < NAMES.length; id++){
+            NAME_BYTES[id] = NAMES[id].getBytes(StandardCharsets.US_ASCII);
+            int slot = hash(NAME_BYTES[id], 0, NAME_BYTES[id].length);
+            while(TABLE[slot] != CMD_UNKNOWN) slot = (slot + 1) & (TABLE_SIZE - 1);
+            TABLE[slot] = id;
+        }
+    }
+
+    protected RomEchoHandler romEchoHandler;
+    protected RamWriteHandler ramWriteHandler;
+    protected RamReadHandler ramReadHandler;
+    protected CpuStatusHandler cpuStatusHandler;
+    protected ErrorHandler errorHandler;
+    protected RomRequestHandler romRequestHandler;
+    protected FallbackHandler fallbackHandler;
+
+    protected long malformed;
+
+    public void setRomEchoHandler(RomEchoHandler handler){
+        this.romEchoHandler = handler;
+    }
+
+    public void setRamWriteHandler(RamWriteHandler handler){
+        this.ramWriteHandler = handler;
+    }
+
+    public void setRamReadHandler(RamReadHandler handler){
+        this.ramReadHandler = handler;
+    }
+
+    public void setCpuStatusHandler(CpuStatusHandler handler){
+        this.cpuStatusHandler = handler;
+    }
+
+    public void setErrorHandler(ErrorHandler handler){
+        this.errorHandler = handler;
+    }
+
+    public void setRomRequestHandler(RomRequestHandler handler){
+        this.romRequestHandler = handler;
+    }
+
+    public void setFallbackHandler(FallbackHandler handler){
+        this.fallbackHandler = handler;
+    }
+
+    public long getMalformed(){
+        return malformed;
+    }
+
+    public static String getName(int id){
+        return id >= 0 && id < NAMES.length ? NAMES[id] : null;
+    }
+
+    //Returns false if the frame could not be decoded, the fallback handler still sees unknown commands
+    public boolean decode(byte[] buffer, int length){
+        if(length < 4 || buffer[1] != '{') return bad();
+        int comma = indexOf(buffer, 2, length, ',');
+        int brace = indexOf(buffer, 2, length, '}');
+        if(comma == -1 || brace == -1 || brace < comma) return bad();
+
+        int start = 2, end = comma;
+        while(start < end && buffer[start] == ' ') start++;
+        while(end > start && buffer[end - 1] == ' ') end--;
+        int id = lookup(buffer, start, end);
+
+        int body = brace + 1;
+        if(buffer[0] == '?') return request(id, buffer, body, length);
+        if(buffer[0] == '!') return message(id, buffer, body, length);
+        return bad();
+    }
+
+    protected boolean message(int id, byte[] buffer, int body, int end){
+        switch (id){
+            case CMD_ROM: {
+                if(romEchoHandler == null) break;
+                int comma = indexOf(buffer, body, end, ',');
+                if(comma == -1) return bad();
+                int a = parseHex(buffer, body, comma);
+                int d = parseHex(buffer, comma + 1, Math.min(end, comma + 3));
+                if(a < 0 || d < 0) return bad();
+                romEchoHandler.romEcho(a & 0xFFFF, d & 0xFF);
+                return true;
+            }
+            case CMD_RAM: {
+                if(ramWriteHandler == null) break;
+                int comma = indexOf(buffer, body, end, ',');
+                if(comma == -1) return bad();
+                int a = parseHex(buffer, body, comma);
+                int d = parseHex(buffer, comma + 1, Math.min(end, comma + 3));
+                if(a < 0 || d < 0) return bad();
+                ramWriteHandler.ramWritten(a & 0xFFFF, d & 0xFF);
+                return true;
+            }
+            case CMD_RAMR: {
+                if(ramReadHandler == null) break;
+                int a = parseHex(buffer, body, Math.min(end, body + 4));
+                if(a < 0) return bad();
+                ramReadHandler.ramRead(a & 0xFFFF);
+                return true;
+            }
+            case CMD_6502: {
+                if(cpuStatusHandler == null) break;
+                int second = indexOf(buffer, body, end, ',');
+                int third = second == -1 ? -1 : indexOf(buffer, second + 1, end, ',');
+                if(third == -1 || third + 2 >= end) return bad();
+                int a = parseHex(buffer, body, second);
+                int d = parseHex(buffer, second + 1, third);
+                if(a < 0 || d < 0) return bad();
+                cpuStatusHandler.cpuStatus(a & 0xFFFF, d & 0xFF, buffer[third + 1] == '1', buffer[third + 2] == '1');
+                return true;
+            }
+            case CMD_ERROR: {
+                if(errorHandler == null) break;
+                int comma = indexOf(buffer, body, end, ',');
+                if(comma == -1) return bad();
+                int code = parseDecimal(buffer, body, comma);
+                if(code == Integer.MIN_VALUE) return bad();
+                errorHandler.deviceError(code, buffer, comma + 1, end - comma - 1);
+                return true;
+            }
+        }
+
+        if(fallbackHandler != null) fallbackHandler.unhandled(id, buffer, end);
+        return true;
+    }
+
+    protected boolean request(int id, byte[] buffer, int body, int end){
+        if(id == CMD_ROM && romRequestHandler != null){
+            int a = parseHex(buffer, body, Math.min(end, body + 4));
+            if(a < 0) return bad();
+            romRequestHandler.serveRom(a & 0xFFFF);
+            return true;
+        }
+
+        if(fallbackHandler != null) fallbackHandler.unhandled(id, buffer, end);
+        return true;
+    }
+
+    private boolean bad(){
+        malformed++;
+        return false;
+    }
+
+    public static int lookup(byte[] buffer, int start, int end){
+        int slot = hash(buffer, start, end);
+        for(int probes = 0; probes < TABLE_SIZE; probes++){
+            int id = TABLE[slot];
+            if(id == CMD_UNKNOWN) return CMD_UNKNOWN;
+            if(matches(NAME_BYTES[id], buffer, start, end)) return id;
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return CMD_UNKNOWN;
+    }
+
+    private static int hash(byte[] buffer, int start, int end){
+        int h = end - start;
+        for(int i = start; i < end; i++){
+            h = h * 31 + buffer[i];
+        }
+        return (h ^ (h >>> 7)) & (TABLE_SIZE - 1);
+    }
+
+    private static boolean matches(byte[] name, byte[] buffer, int start, int end){
+        if(name.length != end - start) return false;
+        for(int i = 0; i < name.length; i++){
+            if(name[i] != buffer[start + i]) return false;
+        }
+        return true;
+    }
+
+    public static int indexOf(byte[] buffer, int start, int end, char c){
+        for(int i = start; i < end; i++){
+            if(buffer[i] == c) return i;
+        }
+        return -1;
+    }
+
+    //Returns -1 if the range is empty or holds anything but hex digits
+    public static int parseHex(byte[] buffer, int start, int end){
+        if(end <= start) return -1;
+        int ret = 0;
+        for(int i = start; i < end; i++){
+            int c = buffer[i];
+            int d;
+            if(c >= '0' && c <= '9') d = c - '0';
+            else if(c >= 'A' && c <= 'F') d = c - 'A' + 10;
+            else if(c >= 'a' && c <= 'f') d = c - 'a' + 10;
+            else return -1;
+            ret = (ret << 4) | d;
+        }
+        return ret;
+    }
+
+    //Returns Integer.MIN_VALUE if the range is not a signed decimal number
+    public static int parseDecimal(byte[] buffer, int start, int end){
+        boolean negative = start < end && buffer[start] == '-';
+        if(negative) start++;
+        if(end <= start) return Integer.MIN_VALUE;
+        int ret = 0;
+        for(int i = start; i < end; i++){
+            int d = buffer[i] - '0';
+            if(d < 0 || d > 9) return Integer.MIN_VALUE;
+            ret = ret * 10 + d;
+        }
+        return negative ? -ret : ret;
+    }
+
+    public interface RomEchoHandler {
+        public void romEcho(int address, int data);
+    }
+
+    public interface RamWriteHandler {
+        public void ramWritten(int address, int data);
+    }
+
+    public interface RamReadHandler {
+        public void ramRead(int address);
+    }
+
+    public interface CpuStatusHandler {
+        public void cpuStatus(int address, int data, boolean rw, boolean reset);
+    }
+
+    //message is left in the frame buffer, only valid for the duration of the call
+    public interface ErrorHandler {
+        public void deviceError(int code, byte[] buffer, int offset, int length);
+    }
+
+    public interface RomRequestHandler {
+        public void serveRom(int address);
+    }
+
+    //Rare commands that are not worth a typed path, buffer holds the whole frame
+    public interface FallbackHandler {
+        public void unhandled(int id, byte[] buffer, int length);
+    }
+}
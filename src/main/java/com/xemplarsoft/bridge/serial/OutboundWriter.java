@@ -0,0 +1,187 @@
+package com.xemplarsoft.bridge.serial;
+
+//Batches outgoing frames into as few link writes as possible. Frames are copied whole into one of two lanes and
+//the writer thread sends the urgent lane first, then the normal lane, in one write. Normal frames wait at most
+//one tick or until FLUSH_THRESHOLD bytes are queued, urgent frames such as ROM replies wake the writer straight
+//away and jump ahead of anything still queued. A write carries at most MAX_BATCH normal bytes, cut on a frame
+//boundary, so an urgent frame never waits behind a long backlog or lands inside another frame.
+public class OutboundWriter implements Runnable {
+    public static final int LANE_SIZE = 1 << 14;
+    public static final int FLUSH_THRESHOLD = 1024;
+    public static final int MAX_BATCH = 4096;
+    public static final int MAX_FRAMES = 1024;
+    public static final int TICK = 2;
+
+    protected final SerialLink link;
+    protected final byte[] normal = new byte[LANE_SIZE];
+    protected final byte[] urgent = new byte[LANE_SIZE];
+    protected final byte[] batch = new byte[LANE_SIZE + MAX_BATCH];
+    protected final int[] normalEnds = new int[MAX_FRAMES];
+    protected final Object lock = new Object();
+
+    protected int normalUsed, normalFrames, urgentUsed;
+    protected long normalSince;
+    protected volatile boolean running = false;
+    protected Thread thread;
+
+    //Written under the lock or by the writer thread only, read for display
+    protected volatile long writes, bytesWritten, framesQueued, urgentFrames, producerStalls;
+    protected volatile int queuedHighWater;
+
+    public OutboundWriter(SerialLink link){
+        this.link = link;
+    }
+
+    public synchronized void start(){
+        if(running) return;
+        running = true;
+        thread = new Thread(this, "Serial Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Whatever is still queued gets written before the thread exits
+    public synchronized void stop(){
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        thread = null;
+    }
+
+    public void send(byte[] data, int offset, int length){
+        send(data, offset, length, false);
+    }
+
+    public void send(byte[] data, int offset, int length, boolean priority){
+        if(length <= 0) return;
+        if(!running || length > LANE_SIZE){ //Nothing to batch with, or too big to ever fit a lane
+            link.write(data, offset, length);
+            return;
+        }
+
+        synchronized (lock) {
+            while(running && (priority ? urgentUsed + length > LANE_SIZE : normalUsed + length > LANE_SIZE || normalFrames == MAX_FRAMES)){
+                producerStalls++;
+                try {
+                    lock.wait();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if(!running){
+                link.write(data, offset, length);
+                return;
+            }
+
+            if(priority){
+                System.arraycopy(data, offset, urgent, urgentUsed, length);
+                urgentUsed += length;
+                urgentFrames++;
+                lock.notifyAll();
+            } else {
+                if(normalUsed == 0) normalSince = System.currentTimeMillis();
+                System.arraycopy(data, offset, normal, normalUsed, length);
+                normalUsed += length;
+                normalEnds[normalFrames++] = normalUsed;
+                if(normalUsed == length || normalUsed >= FLUSH_THRESHOLD) lock.notifyAll();
+            }
+
+            framesQueued++;
+            int queued = normalUsed + urgentUsed;
+            if(queued > queuedHighWater) queuedHighWater = queued;
+        }
+    }
+
+    public void run(){
+        while(true){
+            int length;
+            boolean last;
+            synchronized (lock) {
+                try {
+                    waitForBatch();
+                } catch (InterruptedException e){
+                    running = false;
+                }
+
+                int frames = 0;
+                while(frames < normalFrames && (frames == 0 || normalEnds[frames] <= MAX_BATCH)) frames++;
+                int cut = frames == 0 ? 0 : normalEnds[frames - 1];
+
+                System.arraycopy(urgent, 0, batch, 0, urgentUsed);
+                System.arraycopy(normal, 0, batch, urgentUsed, cut);
+                length = urgentUsed + cut;
+                urgentUsed = 0;
+
+                //Shift the backlog down, it goes out with the next write without waiting for a tick
+                normalUsed -= cut;
+                normalFrames -= frames;
+                System.arraycopy(normal, cut, normal, 0, normalUsed);
+                for(int i = 0; i < normalFrames; i++) normalEnds[i] = normalEnds[i + frames] - cut;
+                normalSince = 0;
+                last = !running && normalUsed == 0;
+                lock.notifyAll(); //Producers waiting on a full lane
+            }
+
+            if(length > 0){
+                link.write(batch, 0, length);
+                writes++;
+                bytesWritten += length;
+            }
+            if(last) break;
+        }
+    }
+
+    private void waitForBatch() throws InterruptedException {
+        while(running && urgentUsed == 0 && normalUsed < FLUSH_THRESHOLD){
+            if(normalUsed == 0){
+                lock.wait();
+                continue;
+            }
+            long left = TICK - (System.currentTimeMillis() - normalSince);
+            if(left <= 0) return;
+            lock.wait(left);
+        }
+    }
+
+    public long getWrites(){
+        return writes;
+    }
+
+    public long getBytesWritten(){
+        return bytesWritten;
+    }
+
+    public long getFramesQueued(){
+        return framesQueued;
+    }
+
+    public long getUrgentFrames(){
+        return urgentFrames;
+    }
+
+    public long getProducerStalls(){
+        return producerStalls;
+    }
+
+    public double getBytesPerWrite(){
+        long w = writes;
+        return w == 0 ? 0 : (double) bytesWritten / w;
+    }
+
+    public double getFramesPerWrite(){
+        long w = writes;
+        return w == 0 ? 0 : (double) framesQueued / w;
+    }
+
+    public int getQueuedBytes(){
+        synchronized (lock) {
+            return normalUsed + urgentUsed;
+        }
+    }
+
+    public int getQueuedHighWater(){
+        return queuedHighWater;
+    }
+}
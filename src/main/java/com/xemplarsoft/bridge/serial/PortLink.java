@@ -0,0 +1,28 @@
+package com.xemplarsoft.bridge.serial;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+public class PortLink implements SerialLink {
+    public static final int READ_TIMEOUT = 50;
+
+    protected final SerialPort port;
+
+    public PortLink(SerialPort port){
+        this.port = port;
+        port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, READ_TIMEOUT, 0);
+    }
+
+    public synchronized void write(byte[] data, int offset, int length){
+        port.writeBytes(data, length, offset);
+    }
+
+    public int read(byte[] data, int offset, int length){
+        if(!port.isOpen()) return -1;
+        int read = port.readBytes(data, length, offset);
+        return read < 0 ? (port.isOpen() ? 0 : -1) : read;
+    }
+
+    public SerialPort getPort(){
+        return port;
+    }
+}
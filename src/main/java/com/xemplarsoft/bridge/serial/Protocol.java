@@ -0,0 +1,59 @@
+package com.xemplarsoft.bridge.serial;
+
+public final class Protocol {
+    private Protocol(){}
+
+    //Capability flags sent as the AWAKE payload, old firmware ignores them and answers "!{AWAKE,0}"
+    public static final String CAPABILITIES = "BPIEV";
+    public static final char CAP_BINARY = 'B';
+    public static final char CAP_PREFETCH = 'P'; //Firmware keeps a ROM cache the host can push bursts into, needs binary frames
+    public static final char CAP_ROM_IMAGE = 'I'; //Firmware holds the whole ROM image and serves fetches itself, needs binary frames
+    public static final char CAP_EEPROM = 'E'; //Firmware can program the device EEPROM a page at a time, needs binary frames
+    public static final char CAP_VERIFY = 'V'; //Firmware answers block CRC and block read requests, needs binary frames
+
+    //Largest payload either side will accept, matches the firmware read buffer
+    public static final int MAX_PAYLOAD = 500;
+    public static final int MAX_FRAME = 1 + 2 + MAX_PAYLOAD + 2;
+
+    //Binary opcodes always have the high bit set so they can never be mistaken for '!' or '?'.
+    //Bit 6 marks a request, the same way '?' does for the ASCII frames.
+    public static final int OP_MESSAGE_FLAG = 0x80;
+    public static final int OP_REQUEST_FLAG = 0xC0;
+
+    public static final int OP_ERROR = 0x80;  //code (1, signed), message
+    public static final int OP_ROM   = 0x81;  //addr lo, addr hi, data
+    public static final int OP_RAM   = 0x82;  //addr lo, addr hi, data
+    public static final int OP_RAMR  = 0x83;  //addr lo, addr hi
+    public static final int OP_6502  = 0x84;  //addr lo, addr hi, data, flags (bit 0 RW, bit 1 Reset)
+    public static final int OP_ROM_BURST = 0x85; //addr lo, addr hi, data... for the firmware ROM cache, no data clears the cache
+    public static final int OP_ROM_IMAGE = 0x86; //addr lo, addr hi, data... written into the firmware ROM image
+    public static final int OP_ROM_IMAGE_ACK = 0x87; //addr lo, addr hi, crc lo, crc hi of the bytes the firmware stored
+    public static final int OP_EEPROM_PAGE = 0x88; //addr lo, addr hi, data... written to the device EEPROM
+    public static final int OP_EEPROM_PAGE_ACK = 0x89; //addr lo, addr hi, crc lo, crc hi read back from the EEPROM
+    public static final int OP_BLOCK_HASHES = 0x8A; //addr lo, addr hi, space, crc lo, crc hi... one per BLOCK_SIZE bytes
+    public static final int OP_BLOCK_DATA = 0x8B; //addr lo, addr hi, space, data...
+
+    public static final int OP_REQ_ROM = 0xC1; //addr lo, addr hi, [cache hits lo, cache hits hi] when prefetching
+    public static final int OP_REQ_EEPROM_CRC = 0xC2; //addr lo, addr hi, len lo, len hi, answered with OP_EEPROM_PAGE_ACK
+    public static final int OP_REQ_BLOCK_HASHES = 0xC3; //addr lo, addr hi, block count, space, answered with OP_BLOCK_HASHES
+    public static final int OP_REQ_BLOCK_READ = 0xC4; //addr lo, addr hi, len lo, len hi, space, answered with OP_BLOCK_DATA
+
+    //Memory spaces for the block requests, blocks are hashed BLOCK_SIZE bytes at a time and at most
+    //MAX_BLOCK_HASHES are answered per request
+    public static final int SPACE_ROM = 0;
+    public static final int SPACE_RAM = 1;
+    public static final int BLOCK_SIZE = 256;
+    public static final int MAX_BLOCK_HASHES = 32;
+
+    public static boolean isOpcode(int b){
+        return (b & OP_MESSAGE_FLAG) != 0;
+    }
+
+    public static boolean isRequest(int op){
+        return (op & OP_REQUEST_FLAG) == OP_REQUEST_FLAG;
+    }
+
+    public static boolean hasCapability(String caps, char cap){
+        return caps != null && caps.indexOf(cap) != -1;
+    }
+}
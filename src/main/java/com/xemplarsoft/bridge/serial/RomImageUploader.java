@@ -0,0 +1,269 @@
+package com.xemplarsoft.bridge.serial;
+
+import com.xemplarsoft.bridge.util.DataCRC;
+
+//Streams the laptop ROM image into device memory so the device can serve fetches itself. The image is cut into
+//pages, up to WINDOW pages are in flight at once and every page is acked with the CRC of what the device actually
+//stored. A shadow copy holds what the device is known to have, after the first push only pages that differ from
+//it are sent again.
+//
+//When a query opcode is given, pages the shadow knows nothing about are first asked for their CRC and only
+//written if it does not match, that is how EepromProgrammer skips pages already on the chip.
+public class RomImageUploader implements Runnable {
+    public static final int PAGE_SIZE = 256;
+    public static final int WINDOW = 8;
+    public static final int ACK_TIMEOUT = 500;
+    public static final int MAX_TRIES = 5;
+
+    public interface Sender {
+        public void sendFrame(int op, byte[] payload, int length);
+    }
+
+    public interface Listener {
+        public void uploadProgress(RomImageUploader source, int pagesDone, int pagesTotal);
+        //Called once the uploader goes idle, covers every image queued since it started
+        public void uploadFinished(RomImageUploader source, boolean success, int pagesSent, int retries);
+    }
+
+    protected final Sender sender;
+    protected final Listener listener;
+    protected final int base, pages, writeOp, queryOp, ackTimeout;
+    protected final byte[] shadow;
+    protected final boolean[] valid;
+    protected final byte[] payload = new byte[2 + PAGE_SIZE];
+
+    //Per page transfer state, acks are written by the dispatcher thread under the lock
+    protected final int[] expectedCrc, tries, ackCrc;
+    protected final long[] sentAt;
+    protected final boolean[] inFlight, acked, querying;
+    protected final Object lock = new Object();
+
+    protected byte[] pending;
+    protected boolean pendingFull;
+    protected Thread worker;
+    protected volatile boolean busy;
+    protected volatile int sentPages, retriedPages, skippedPages;
+    protected volatile long startedAt, bytesWritten;
+
+    public RomImageUploader(int base, int size, Sender sender, Listener listener){
+        this(base, size, Protocol.OP_ROM_IMAGE, -1, ACK_TIMEOUT, sender, listener);
+    }
+
+    protected RomImageUploader(int base, int size, int writeOp, int queryOp, int ackTimeout, Sender sender, Listener listener){
+        this.base = base;
+        this.pages = size / PAGE_SIZE;
+        this.writeOp = writeOp;
+        this.queryOp = queryOp;
+        this.ackTimeout = ackTimeout;
+        this.sender = sender;
+        this.listener = listener;
+
+        shadow = new byte[size];
+        valid = new boolean[pages];
+        expectedCrc = new int[pages];
+        tries = new int[pages];
+        ackCrc = new int[pages];
+        sentAt = new long[pages];
+        inFlight = new boolean[pages];
+        acked = new boolean[pages];
+        querying = new boolean[pages];
+    }
+
+    //Forget what the device holds, the next sync sends every page
+    public void invalidate(){
+        synchronized (lock) {
+            for(int i = 0; i < pages; i++) valid[i] = false;
+        }
+    }
+
+    public boolean isBusy(){
+        return busy;
+    }
+
+    //Queues the image for upload, if an upload is already running the newest image is picked up once it is done
+    public void sync(byte[] image, boolean full){
+        synchronized (lock) {
+            pending = image;
+            pendingFull |= full;
+            if(worker != null) return;
+
+            busy = true;
+            worker = new Thread(this, "ROM Upload");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    //Returns how many pages of image differ from what the device is known to hold
+    public int countDirty(byte[] image){
+        synchronized (lock) {
+            int dirty = 0;
+            for(int i = 0; i < pages; i++){
+                if(isDirty(image, i)) dirty++;
+            }
+            return dirty;
+        }
+    }
+
+    private boolean isDirty(byte[] image, int page){
+        if(!valid[page]) return true;
+        int off = page * PAGE_SIZE;
+        for(int i = off; i < off + PAGE_SIZE; i++){
+            if(image[i] != shadow[i]) return true;
+        }
+        return false;
+    }
+
+    public void ackReceived(int address, int crc){
+        int page = (address - base) / PAGE_SIZE;
+        if(page < 0 || page >= pages) return;
+        synchronized (lock) {
+            if(!inFlight[page]) return;
+            ackCrc[page] = crc;
+            acked[page] = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void run(){
+        boolean success = true;
+        sentPages = 0;
+        retriedPages = 0;
+        skippedPages = 0;
+        bytesWritten = 0;
+        startedAt = System.currentTimeMillis();
+        while(true){
+            byte[] image;
+            boolean full;
+            synchronized (lock) {
+                image = pending;
+                full = pendingFull;
+                pending = null;
+                pendingFull = false;
+                if(image == null){
+                    worker = null;
+                    busy = false;
+                    break;
+                }
+            }
+            success &= upload(image, full);
+        }
+        listener.uploadFinished(this, success, sentPages, retriedPages);
+    }
+
+    private boolean upload(byte[] image, boolean full){
+        int[] queue = new int[pages];
+        int queued = 0;
+        synchronized (lock) {
+            for(int i = 0; i < pages; i++){
+                if(full || isDirty(image, i)){
+                    queue[queued++] = i;
+                    tries[i] = 0;
+                    acked[i] = false;
+                    inFlight[i] = false;
+                    querying[i] = queryOp != -1 && !full && !valid[i];
+                    valid[i] = false;
+                }
+            }
+        }
+
+        int total = queued, done = 0, head = 0, flying = 0;
+        boolean failed = false;
+        listener.uploadProgress(this, 0, total);
+
+        while(done < total && !failed){
+            while(flying < WINDOW && head < queued){
+                int page = queue[head++ % pages];
+                sendPage(image, page);
+                flying++;
+            }
+
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                for(int i = 0; i < pages; i++){
+                    if(!inFlight[i]) continue;
+
+                    if(acked[i]){
+                        inFlight[i] = false;
+                        flying--;
+                        if(ackCrc[i] == expectedCrc[i]){
+                            System.arraycopy(image, i * PAGE_SIZE, shadow, i * PAGE_SIZE, PAGE_SIZE);
+                            valid[i] = true;
+                            if(querying[i]) skippedPages++;
+                            done++;
+                            listener.uploadProgress(this, done, total);
+                            continue;
+                        }
+                        if(querying[i]){ //Device holds something else, write it for real
+                            querying[i] = false;
+                            tries[i] = 0;
+                            queue[queued++ % pages] = i;
+                            continue;
+                        }
+                    } else if(now - sentAt[i] > ackTimeout){
+                        inFlight[i] = false;
+                        flying--;
+                    } else {
+                        continue;
+                    }
+
+                    //Bad CRC or no ack, put the page back in line
+                    if(tries[i] >= MAX_TRIES){
+                        failed = true;
+                        break;
+                    }
+                    retriedPages++;
+                    queue[queued++ % pages] = i;
+                }
+
+                if(!failed && done < total && (flying >= WINDOW || head >= queued)){
+                    try {
+                        lock.wait(ackTimeout / 4);
+                    } catch (InterruptedException e){
+                        failed = true;
+                    }
+                }
+            }
+        }
+
+        return !failed;
+    }
+
+    private void sendPage(byte[] image, int page){
+        int off = page * PAGE_SIZE;
+        boolean query;
+        synchronized (lock) {
+            query = querying[page];
+            expectedCrc[page] = DataCRC.calculateCRC(image, off, PAGE_SIZE);
+            tries[page]++;
+            acked[page] = false;
+            inFlight[page] = true;
+            sentAt[page] = System.currentTimeMillis();
+        }
+
+        FrameEncoder.putAddress(payload, 0, base + off);
+        if(query){
+            FrameEncoder.putAddress(payload, 2, PAGE_SIZE);
+            sender.sendFrame(queryOp, payload, 4);
+            return;
+        }
+        System.arraycopy(image, off, payload, 2, PAGE_SIZE);
+        sender.sendFrame(writeOp, payload, payload.length);
+        sentPages++;
+        bytesWritten += PAGE_SIZE;
+    }
+
+    public int getPageCount(){
+        return pages;
+    }
+
+    public int getSkippedPages(){
+        return skippedPages;
+    }
+
+    //Bytes written per second since the current run started
+    public long getThroughput(){
+        long elapsed = System.currentTimeMillis() - startedAt;
+        return elapsed <= 0 ? 0 : bytesWritten * 1000 / elapsed;
+    }
+}
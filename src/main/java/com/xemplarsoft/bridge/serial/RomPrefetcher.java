@@ -0,0 +1,127 @@
+package com.xemplarsoft.bridge.serial;
+
+import java.util.Arrays;
+
+//Predicts which ROM bytes the 6502 will fetch after a cache miss so they can be pushed to the firmware cache in
+//one burst. The main prediction is sequential, on top of that jumps seen before are remembered in a small
+//direct mapped table and their target is pushed too when the sequential window runs over the jump source.
+//
+//The firmware reports how many fetches it served from cache since its last request, the bytes fetched since the
+//last miss are assumed to be sequential from it, so a miss anywhere else is recorded as a jump from the last of those.
+public class RomPrefetcher {
+    public static final int MAX_DEPTH = 64;
+    public static final int DEFAULT_DEPTH = 16;
+    public static final int HISTORY_SIZE = 256;
+
+    protected final int romStart, romEnd;
+    protected final int[] jumpFrom = new int[HISTORY_SIZE];
+    protected final int[] jumpTo = new int[HISTORY_SIZE];
+    protected final int[] rangeStart = new int[2];
+    protected final int[] rangeLength = new int[2];
+
+    protected volatile int depth = DEFAULT_DEPTH;
+    protected int lastMiss = -1;
+    protected volatile long misses, hits, pushed, jumpsPushed;
+
+    public RomPrefetcher(int romStart, int romEnd){
+        this.romStart = romStart;
+        this.romEnd = romEnd;
+        reset();
+    }
+
+    public void reset(){
+        Arrays.fill(jumpFrom, -1);
+        lastMiss = -1;
+        misses = hits = pushed = jumpsPushed = 0;
+    }
+
+    public void setDepth(int depth){
+        this.depth = Math.max(0, Math.min(MAX_DEPTH, depth));
+    }
+
+    public int getDepth(){
+        return depth;
+    }
+
+    //Records a miss at address, returns how many ranges to push, see getRangeStart and getRangeLength
+    public int miss(int address, int hitsSinceLast){
+        misses++;
+        hits += hitsSinceLast;
+
+        if(lastMiss != -1){
+            int lastFetched = lastMiss + hitsSinceLast;
+            if(address != lastFetched + 1 && address != lastMiss){
+                int slot = lastFetched & (HISTORY_SIZE - 1);
+                jumpFrom[slot] = lastFetched;
+                jumpTo[slot] = address;
+            }
+        }
+        lastMiss = address;
+
+        int d = depth;
+        if(d == 0 || address < romStart || address >= romEnd) return 0;
+
+        int count = 0;
+        int start = address + 1;
+        int length = Math.min(d, romEnd - start);
+        if(length > 0){
+            rangeStart[count] = start;
+            rangeLength[count] = length;
+            pushed += length;
+            count++;
+        }
+
+        for(int i = address; i < start + Math.max(length, 0); i++){
+            int slot = i & (HISTORY_SIZE - 1);
+            if(jumpFrom[slot] != i) continue;
+
+            int target = jumpTo[slot];
+            if(target >= start && target < start + length) break; //Short forward branch, already in the window
+            if(target < romStart || target >= romEnd) break;
+
+            int targetLength = Math.min(Math.max(d >> 1, 1), romEnd - target);
+            rangeStart[count] = target;
+            rangeLength[count] = targetLength;
+            pushed += targetLength;
+            jumpsPushed++;
+            count++;
+            break;
+        }
+
+        return count;
+    }
+
+    public int getRangeStart(int range){
+        return rangeStart[range];
+    }
+
+    public int getRangeLength(int range){
+        return rangeLength[range];
+    }
+
+    public long getMisses(){
+        return misses;
+    }
+
+    public long getHits(){
+        return hits;
+    }
+
+    public long getPushed(){
+        return pushed;
+    }
+
+    public long getJumpsPushed(){
+        return jumpsPushed;
+    }
+
+    //Bytes pushed that have not been reported back as a hit, includes whatever still sits in the cache
+    public long getWasted(){
+        return Math.max(0, pushed - hits);
+    }
+
+    public double getHitRate(){
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
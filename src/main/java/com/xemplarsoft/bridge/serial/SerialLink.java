@@ -0,0 +1,8 @@
+package com.xemplarsoft.bridge.serial;
+
+public interface SerialLink {
+    public void write(byte[] data, int offset, int length);
+
+    //Blocks for at most a short timeout, returns 0 when nothing arrived and -1 once the link is closed
+    public int read(byte[] data, int offset, int length);
+}
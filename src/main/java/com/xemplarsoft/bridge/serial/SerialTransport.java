@@ -0,0 +1,227 @@
+package com.xemplarsoft.bridge.serial;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//Moves serial work off the jSerialComm callback thread. The reader thread pulls bytes into a preallocated ring
+//and splits them into frames, completed frames are copied into pooled slots and handed to the dispatcher thread
+//through a bounded queue. The reader never blocks on the dispatcher, parsing stops as soon as the last free slot
+//is used and the unparsed bytes wait in the ring. Once the ring is full too the reader stops reading and the
+//port's own buffer takes over. Writes go through an OutboundWriter so small frames share one write to the port.
+public class SerialTransport implements FrameListener, ByteRing.Consumer {
+    public static final int RING_SIZE = 1 << 16;
+    public static final int QUEUE_SIZE = 64;
+    public static final int FRAME_SIZE = 4096;
+
+    protected static final int KIND_ASCII = 0;
+    protected static final int KIND_BINARY = 1;
+    protected static final int KIND_ERROR = 2;
+
+    protected final SerialLink link;
+    protected final FrameListener handler;
+    protected final ByteRing ring = new ByteRing(RING_SIZE);
+    protected final FrameDecoder decoder = new FrameDecoder(this, FRAME_SIZE);
+    protected final ArrayBlockingQueue<Frame> pool = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    protected final ArrayBlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    protected final OutboundWriter writer;
+
+    protected volatile boolean running = false;
+    protected Thread reader, dispatcher;
+
+    //Backpressure counters, written by one thread each and only read for display
+    protected volatile long rxBytes, framesQueued, framesDispatched, framesDropped, queueStalls, ringStalls;
+    protected volatile int queueHighWater;
+
+    public SerialTransport(SerialLink link, FrameListener handler){
+        this.link = link;
+        this.handler = handler;
+        this.writer = new OutboundWriter(link);
+        for(int i = 0; i < QUEUE_SIZE; i++){
+            pool.add(new Frame(FRAME_SIZE));
+        }
+    }
+
+    public synchronized void start(){
+        if(running) return;
+        running = true;
+
+        reader = new Thread(this::readLoop, "Serial Reader");
+        reader.setDaemon(true);
+        dispatcher = new Thread(this::dispatchLoop, "Serial Dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        reader.start();
+        writer.start();
+    }
+
+    public synchronized void stop(){
+        running = false;
+        writer.stop();
+        if(reader != null) reader.interrupt();
+        if(dispatcher != null) dispatcher.interrupt();
+        reader = null;
+        dispatcher = null;
+    }
+
+    public boolean isRunning(){
+        return running;
+    }
+
+    public void write(byte[] data, int offset, int length){
+        writer.send(data, offset, length, false);
+    }
+
+    //Jumps ahead of queued writes, for replies the device is stalled on
+    public void writeUrgent(byte[] data, int offset, int length){
+        writer.send(data, offset, length, true);
+    }
+
+    public OutboundWriter getWriter(){
+        return writer;
+    }
+
+    public SerialLink getLink(){
+        return link;
+    }
+
+    private void readLoop(){
+        while(running){
+            if(ring.free() > 0){
+                int read = ring.readFrom(link);
+                if(read < 0) break;
+                rxBytes += read;
+            } else {
+                ringStalls++;
+            }
+
+            if(ring.available() == 0) continue;
+            if(pool.isEmpty()){ //Dispatcher is behind, keep buffering and try again after the next read
+                queueStalls++;
+                if(ring.free() == 0) waitForFrame();
+                continue;
+            }
+            ring.drainTo(this);
+        }
+        running = false;
+    }
+
+    private void waitForFrame(){
+        try {
+            Frame f = pool.poll(PortLink.READ_TIMEOUT, TimeUnit.MILLISECONDS);
+            if(f != null) pool.add(f);
+        } catch (InterruptedException e){
+            running = false;
+        }
+    }
+
+    private void dispatchLoop(){
+        while(running){
+            Frame f;
+            try {
+                f = queue.take();
+            } catch (InterruptedException e){
+                break;
+            }
+
+            try {
+                switch (f.kind){
+                    case KIND_ASCII: handler.asciiFrame(f.data, f.length); break;
+                    case KIND_BINARY: handler.binaryFrame(f.op, f.data, 0, f.length); break;
+                    case KIND_ERROR: handler.decodeError(f.op, f.data, f.length); break;
+                }
+            } catch (Exception e){
+                e.printStackTrace();
+            }
+
+            framesDispatched++;
+            pool.add(f);
+        }
+    }
+
+    //Set by the reader when it takes the last free slot, parsing stops there until the dispatcher hands one back
+    private boolean poolDry;
+    public int accept(byte[] buffer, int offset, int length){
+        poolDry = false;
+        for(int i = 0; i < length; i++){
+            decoder.feed(buffer[offset + i]);
+            if(poolDry) return i + 1;
+        }
+        return length;
+    }
+
+    public void asciiFrame(byte[] buffer, int length){
+        enqueue(KIND_ASCII, buffer[0], buffer, 0, length);
+    }
+
+    public void binaryFrame(int op, byte[] buffer, int offset, int length){
+        enqueue(KIND_BINARY, op, buffer, offset, length);
+    }
+
+    public void decodeError(int error, byte[] buffer, int length){
+        enqueue(KIND_ERROR, error, buffer, 0, length);
+    }
+
+    private void enqueue(int kind, int op, byte[] buffer, int offset, int length){
+        Frame f = pool.poll();
+        if(f == null){ //Parsing stops on the last slot so this should not happen, never hold up the reader for it
+            framesDropped++;
+            poolDry = true;
+            return;
+        }
+        if(pool.isEmpty()) poolDry = true;
+        f.kind = kind;
+        f.op = op;
+        f.length = Math.min(length, f.data.length);
+        System.arraycopy(buffer, offset, f.data, 0, f.length);
+        queue.add(f);
+
+        framesQueued++;
+        int depth = queue.size();
+        if(depth > queueHighWater) queueHighWater = depth;
+    }
+
+    public long getRxBytes(){
+        return rxBytes;
+    }
+
+    public long getFramesDispatched(){
+        return framesDispatched;
+    }
+
+    public long getFramesDropped(){
+        return framesDropped;
+    }
+
+    public long getQueueStalls(){
+        return queueStalls;
+    }
+
+    public long getRingStalls(){
+        return ringStalls;
+    }
+
+    public int getQueueDepth(){
+        return queue.size();
+    }
+
+    public int getQueueHighWater(){
+        return queueHighWater;
+    }
+
+    public int getRingUsed(){
+        return ring.available();
+    }
+
+    public FrameDecoder getDecoder(){
+        return decoder;
+    }
+
+    protected static final class Frame {
+        protected final byte[] data;
+        protected int kind, op, length;
+
+        protected Frame(int size){
+            data = new byte[size];
+        }
+    }
+}
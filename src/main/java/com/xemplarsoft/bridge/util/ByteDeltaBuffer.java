@@ -0,0 +1,55 @@
+package com.xemplarsoft.bridge.util;
+
+import java.util.Arrays;
+
+//Collects byte writes from one thread so another can apply them in batches. Only the last value per address is
+//kept, a location written a thousand times between drains is applied once. put is cheap enough to call for every
+//device write, drain hands the touched addresses over in the order they were first written.
+public class ByteDeltaBuffer {
+    protected final int[] values;
+    protected final int[] touched;
+    protected int count, last = -1;
+    protected long puts, applied;
+
+    public ByteDeltaBuffer(int size){
+        values = new int[size];
+        touched = new int[size];
+        Arrays.fill(values, -1);
+    }
+
+    public synchronized void put(int address, int data){
+        if(address < 0 || address >= values.length) return;
+        if(values[address] < 0) touched[count++] = address;
+        values[address] = data & 0xFF;
+        last = address;
+        puts++;
+    }
+
+    //Moves pending writes into addresses and data, both at least size long, returns how many were moved
+    public synchronized int drain(int[] addresses, int[] data){
+        int n = count;
+        for(int i = 0; i < n; i++){
+            int a = touched[i];
+            addresses[i] = a;
+            data[i] = values[a];
+            values[a] = -1;
+        }
+        count = 0;
+        applied += n;
+        return n;
+    }
+
+    //Address of the most recent put, -1 before the first
+    public synchronized int getLast(){
+        return last;
+    }
+
+    public synchronized int pending(){
+        return count;
+    }
+
+    //Writes folded into an earlier write to the same address before it was drained
+    public synchronized long getCoalesced(){
+        return puts - applied - count;
+    }
+}
@@ -0,0 +1,136 @@
+package com.xemplarsoft.bridge.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Search pattern for memory images. Queries are written three ways:
+//  A9 ?? 8D 00      hex bytes, ?? matches any byte, spaces are optional
+//  "HELLO           ASCII text, the closing quote is optional
+//  $FFFA $8000      16 bit words, stored little endian the way the 6502 reads them
+//Patterns without wildcards are matched with Boyer-Moore-Horspool. With wildcards the Horspool skips shrink to the
+//last wildcard, so patterns up to 64 bytes are run through a bit parallel shift-and instead, O(n) whatever the
+//pattern holds.
+public final class BytePattern {
+    public final String query;
+    protected final byte[] bytes;
+    protected final boolean[] wild;
+    protected final boolean hasWild;
+    protected final int[] skip = new int[256];
+    protected final long[] masks; //Shift-and, bit j set where pattern byte j accepts the value
+
+    private BytePattern(String query, byte[] bytes, boolean[] wild){
+        this.query = query;
+        this.bytes = bytes;
+        this.wild = wild;
+
+        boolean any = false;
+        for(boolean w : wild) any |= w;
+        hasWild = any;
+
+        int m = bytes.length;
+        int last = -1;
+        for(int j = 0; j < m - 1; j++) if(wild[j]) last = j;
+        Arrays.fill(skip, m - 1 - last);
+        for(int j = 0; j < m - 1; j++){
+            if(wild[j]) continue;
+            skip[bytes[j] & 0xFF] = Math.min(skip[bytes[j] & 0xFF], m - 1 - j);
+        }
+
+        if(hasWild && m <= 64){
+            masks = new long[256];
+            for(int j = 0; j < m; j++){
+                if(wild[j]){
+                    for(int b = 0; b < 256; b++) masks[b] |= 1L << j;
+                } else {
+                    masks[bytes[j] & 0xFF] |= 1L << j;
+                }
+            }
+        } else {
+            masks = null;
+        }
+    }
+
+    public static BytePattern parse(String query){
+        String q = query.trim();
+        if(q.isEmpty()) throw new IllegalArgumentException("Empty search");
+
+        if(q.charAt(0) == '"'){
+            String text = q.length() > 1 && q.endsWith("\"") ? q.substring(1, q.length() - 1) : q.substring(1);
+            if(text.isEmpty()) throw new IllegalArgumentException("Empty text");
+            byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+            return new BytePattern(query, b, new boolean[b.length]);
+        }
+
+        if(q.charAt(0) == '$'){
+            String[] words = q.split("\\s+");
+            byte[] b = new byte[words.length * 2];
+            for(int i = 0; i < words.length; i++){
+                String w = words[i].startsWith("$") ? words[i].substring(1) : words[i];
+                int value;
+                try {
+                    value = Integer.parseInt(w, 16);
+                } catch (NumberFormatException e){
+                    throw new IllegalArgumentException("Bad word \"" + words[i] + "\"");
+                }
+                if(value < 0 || value > 0xFFFF) throw new IllegalArgumentException("Word out of range \"" + words[i] + "\"");
+                b[i * 2] = (byte) value;
+                b[i * 2 + 1] = (byte)(value >> 8);
+            }
+            return new BytePattern(query, b, new boolean[b.length]);
+        }
+
+        String hex = q.replaceAll("\\s+", "");
+        if((hex.length() & 1) != 0) throw new IllegalArgumentException("Odd number of hex digits");
+        byte[] b = new byte[hex.length() >> 1];
+        boolean[] w = new boolean[b.length];
+        for(int i = 0; i < b.length; i++){
+            char hi = hex.charAt(i << 1), lo = hex.charAt((i << 1) + 1);
+            if(hi == '?' && lo == '?'){
+                w[i] = true;
+                continue;
+            }
+            int h = Character.digit(hi, 16), l = Character.digit(lo, 16);
+            if(h < 0 || l < 0) throw new IllegalArgumentException("Bad hex byte \"" + hi + lo + "\"");
+            b[i] = (byte)((h << 4) | l);
+        }
+        return new BytePattern(query, b, w);
+    }
+
+    public int length(){
+        return bytes.length;
+    }
+
+    //First match starting in [from, to) with the whole match inside data's limit, -1 if none. Absolute gets only,
+    //the buffer's position is left alone.
+    public int indexOf(ByteBuffer data, int from, int to){
+        int m = bytes.length;
+        int limit = Math.min(to, data.limit() - m + 1);
+        if(from < 0) from = 0;
+        if(from >= limit) return -1;
+        return masks != null ? shiftAnd(data, from, limit) : horspool(data, from, limit);
+    }
+
+    private int horspool(ByteBuffer data, int from, int limit){
+        int m = bytes.length;
+        int i = from;
+        while(i < limit){
+            int j = m - 1;
+            while(j >= 0 && (wild[j] || data.get(i + j) == bytes[j])) j--;
+            if(j < 0) return i;
+            i += skip[data.get(i + m - 1) & 0xFF];
+        }
+        return -1;
+    }
+
+    private int shiftAnd(ByteBuffer data, int from, int limit){
+        int m = bytes.length;
+        long state = 0, found = 1L << (m - 1);
+        int end = limit + m - 1;
+        for(int i = from; i < end; i++){
+            state = ((state << 1) | 1) & masks[data.get(i) & 0xFF];
+            if((state & found) != 0) return i - m + 1;
+        }
+        return -1;
+    }
+}
@@ -1,23 +1,53 @@
 package com.xemplarsoft.bridge.util;
 
+import java.nio.ByteBuffer;
+
+//CRC-16/CCITT-FALSE, the same checksum the sketches compute. Table driven, one lookup per byte. update() can be
+//fed a frame, page or image in pieces, start from INITIAL_VALUE and pass the returned state back in.
 public final class DataCRC {
     private DataCRC(){}
 
     private static final int POLYNOMIAL = 0x1021;
-    private static final int INITIAL_VALUE = 0xFFFF;
+    public static final int INITIAL_VALUE = 0xFFFF;
 
-    public static int calculateCRC(byte[] bytes, int offset, int len) {
-        int crc = INITIAL_VALUE;
-        for (int j = offset; j < len; j++) {
-            byte b = bytes[j];
-            crc ^= (b & 0xFF) << 8;
-            for (int i = 0; i < 8; i++) {
-                if ((crc & 0x8000) != 0) {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for(int b = 0; b < 256; b++){
+            int crc = b << 8;
+            for(int i = 0; i < 8; i++){
+                if((crc & 0x8000) != 0){
                     crc = (crc << 1) ^ POLYNOMIAL;
                 } else {
                     crc <<= 1;
                 }
             }
+            TABLE[b] = crc & 0xFFFF;
+        }
+    }
+
+    //CRC of len bytes starting at offset
+    public static int calculateCRC(byte[] bytes, int offset, int len) {
+        return update(INITIAL_VALUE, bytes, offset, len);
+    }
+
+    public static int update(int crc, byte[] bytes, int offset, int len){
+        for(int i = offset, end = offset + len; i < end; i++){
+            crc = (crc << 8) ^ TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF];
+        }
+        return crc & 0xFFFF;
+    }
+
+    //Consumes the remaining bytes of buffer, its position ends up at the limit
+    public static int update(int crc, ByteBuffer buffer){
+        if(buffer.hasArray()){
+            int pos = buffer.position();
+            crc = update(crc, buffer.array(), buffer.arrayOffset() + pos, buffer.limit() - pos);
+            buffer.position(buffer.limit());
+            return crc;
+        }
+        while(buffer.hasRemaining()){
+            crc = (crc << 8) ^ TABLE[((crc >>> 8) ^ buffer.get()) & 0xFF];
         }
         return crc & 0xFFFF;
     }
@@ -0,0 +1,84 @@
+package com.xemplarsoft.bridge.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+//Binary image loading and saving for the ROM, RAM and VRAM views. Reads size the buffer from the file and fill it
+//with bulk channel reads, files of MAP_THRESHOLD or more are mapped instead. Saves go to a temp file next to the
+//target which is forced to disk and renamed over it, a failed save leaves the old file as it was.
+public final class ImageFiles {
+    private ImageFiles(){}
+
+    public static final int MAP_THRESHOLD = 1 << 20;
+
+    //Whole file in one array
+    public static byte[] read(File f) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(f, "r"); FileChannel channel = file.getChannel()){
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE) throw new IOException("File is too large to load: " + f.getName());
+            byte[] data = new byte[(int) size];
+            read(channel, data, 0, data.length);
+            return data;
+        }
+    }
+
+    //Fills dst from the start of the file and returns how many bytes were read, at most length
+    public static int read(File f, byte[] dst, int offset, int length) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(f, "r"); FileChannel channel = file.getChannel()){
+            int count = (int) Math.min(length, channel.size());
+            read(channel, dst, offset, count);
+            return count;
+        }
+    }
+
+    //Read only mapping of the whole file, stays valid after the channel is closed
+    public static MappedByteBuffer map(File f) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(f, "r"); FileChannel channel = file.getChannel()){
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static void read(FileChannel channel, byte[] dst, int offset, int length) throws IOException {
+        if(length >= MAP_THRESHOLD){
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, length).get(dst, offset, length);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0) throw new IOException("File ended early");
+        }
+    }
+
+    public static void write(File f, byte[] data, int offset, int length) throws IOException {
+        write(f, ByteBuffer.wrap(data, offset, length));
+    }
+
+    //Writes the remaining bytes of data, its position is left alone
+    public static void write(File f, ByteBuffer data) throws IOException {
+        File target = f.getAbsoluteFile();
+        File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        boolean done = false;
+        try {
+            try(RandomAccessFile file = new RandomAccessFile(temp, "rw"); FileChannel channel = file.getChannel()){
+                ByteBuffer src = data.duplicate();
+                while(src.hasRemaining()) channel.write(src);
+                channel.force(true);
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e){
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if(!done) temp.delete();
+        }
+    }
+}
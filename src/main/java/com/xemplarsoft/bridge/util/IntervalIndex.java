@@ -0,0 +1,138 @@
+package com.xemplarsoft.bridge.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Half open [start, end) ranges that can be asked which of them overlap a window or hold a point. The ranges are
+//kept sorted by start as an implicit binary tree, every node holding the largest end below it, so a query only
+//walks the branches that can still overlap and costs O(log n + hits). Adding marks the tree stale, it is rebuilt
+//on the next query so adding many ranges in a row costs one sort.
+public class IntervalIndex<T> {
+    private static final int SCAN_LEVEL = 3; //Subtrees this small are scanned straight through
+
+    protected final ArrayList<T> values = new ArrayList<>();
+    protected int[] addedStart = new int[16], addedEnd = new int[16];
+
+    //Sorted view, rebuilt when stale
+    protected int[] start = new int[0], end = new int[0], max = new int[0], id = new int[0];
+    protected int levels;
+    protected boolean stale = false;
+
+    protected int[] hits = new int[16];
+    protected final int[] stack = new int[64 * 3];
+
+    public void add(int start, int end, T value){
+        int n = values.size();
+        if(n == addedStart.length){
+            addedStart = Arrays.copyOf(addedStart, n << 1);
+            addedEnd = Arrays.copyOf(addedEnd, n << 1);
+        }
+        addedStart[n] = Math.min(start, end);
+        addedEnd[n] = Math.max(start, end);
+        values.add(value);
+        stale = true;
+    }
+
+    public void clear(){
+        values.clear();
+        stale = true;
+    }
+
+    public int size(){
+        return values.size();
+    }
+
+    //Adds the values overlapping [from, to) to out in the order they were added, returns how many
+    public int query(int from, int to, List<T> out){
+        int count = collect(from, to);
+        for(int i = 0; i < count; i++) out.add(values.get(hits[i]));
+        return count;
+    }
+
+    //Last added value holding point, the one painted on top, null if none does
+    public T find(int point){
+        int count = collect(point, point + 1);
+        return count == 0 ? null : values.get(hits[count - 1]);
+    }
+
+    private int collect(int from, int to){
+        if(stale) build();
+        int n = start.length;
+        if(n == 0 || from >= to) return 0;
+
+        int count = 0, t = 0;
+        stack[t++] = levels;
+        stack[t++] = (1 << levels) - 1;
+        stack[t++] = 0;
+        while(t > 0){
+            int visited = stack[--t], x = stack[--t], k = stack[--t];
+            if(k <= SCAN_LEVEL){
+                int i0 = x >> k << k, i1 = Math.min(i0 + (1 << (k + 1)) - 1, n);
+                for(int i = i0; i < i1 && start[i] < to; i++){
+                    if(from < end[i]) count = hit(count, id[i]);
+                }
+            } else if(visited == 0){
+                int left = x - (1 << (k - 1));
+                stack[t++] = k;
+                stack[t++] = x;
+                stack[t++] = 1;
+                if(left >= n || max[left] > from){
+                    stack[t++] = k - 1;
+                    stack[t++] = left;
+                    stack[t++] = 0;
+                }
+            } else if(x < n && start[x] < to){
+                if(from < end[x]) count = hit(count, id[x]);
+                stack[t++] = k - 1;
+                stack[t++] = x + (1 << (k - 1));
+                stack[t++] = 0;
+            }
+        }
+        Arrays.sort(hits, 0, count);
+        return count;
+    }
+
+    private int hit(int count, int index){
+        if(count == hits.length) hits = Arrays.copyOf(hits, count << 1);
+        hits[count] = index;
+        return count + 1;
+    }
+
+    private void build(){
+        int n = values.size();
+        long[] keys = new long[n];
+        for(int i = 0; i < n; i++) keys[i] = ((long) addedStart[i] << 32) | i;
+        Arrays.sort(keys);
+
+        start = new int[n];
+        end = new int[n];
+        max = new int[n];
+        id = new int[n];
+        for(int i = 0; i < n; i++){
+            int index = (int) keys[i];
+            id[i] = index;
+            start[i] = addedStart[index];
+            end[i] = max[i] = addedEnd[index];
+        }
+
+        //Odd indexes are inner nodes, level k nodes sit at (2^k - 1) + j * 2^(k + 1)
+        int lastIndex = 0, last = 0, k;
+        for(int i = 0; i < n; i += 2){
+            lastIndex = i;
+            last = max[i];
+        }
+        for(k = 1; (1 << k) <= n; k++){
+            int x = 1 << (k - 1), i0 = (x << 1) - 1, step = x << 2;
+            for(int i = i0; i < n; i += step){
+                int left = max[i - x];
+                int right = i + x < n ? max[i + x] : last;
+                max[i] = Math.max(end[i], Math.max(left, right));
+            }
+            lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x; //Parent of the last node
+            if(lastIndex < n && max[lastIndex] > last) last = max[lastIndex];
+        }
+        levels = n == 0 ? 0 : k - 1;
+        stale = false;
+    }
+}
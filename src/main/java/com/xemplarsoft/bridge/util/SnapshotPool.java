@@ -0,0 +1,236 @@
+package com.xemplarsoft.bridge.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Named memory snapshots cut into PAGE_SIZE pages. A page is never written after it is taken, so snapshots holding
+//the same bytes share one copy: a page unchanged since the last snapshot is reused straight away and any other page
+//is looked up by content before a copy is made. Taking a snapshot of mostly idle memory costs a compare per page,
+//diffing two snapshots skips every page they share. The pool keeps at most maxSnapshots snapshots and maxBytes of
+//distinct pages, the least recently taken, restored or diffed snapshot is dropped first.
+public class SnapshotPool {
+    public static final int PAGE_SIZE = 256;
+    public static final int DEFAULT_SNAPSHOTS = 64;
+    public static final int DEFAULT_BYTES = 16 << 20;
+
+    public static class Snapshot {
+        public final String name;
+        public final long taken;
+        protected final Page[][] regions;
+        protected final int[] lengths;
+
+        protected Snapshot(String name, int regions){
+            this.name = name;
+            this.taken = System.currentTimeMillis();
+            this.regions = new Page[regions][];
+            this.lengths = new int[regions];
+        }
+
+        public int getRegionCount(){
+            return regions.length;
+        }
+
+        public int getLength(int region){
+            return lengths[region];
+        }
+    }
+
+    //Stored pages own their array from 0, a probe looks at a page of the memory being captured
+    protected static class Page {
+        protected byte[] data;
+        protected int offset, length, hash, refs;
+
+        protected Page set(byte[] data, int offset, int length){
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            int h = length;
+            for(int i = offset; i < offset + length; i++) h = h * 31 + data[i];
+            hash = h;
+            return this;
+        }
+
+        protected boolean matches(byte[] src, int from, int count){
+            if(count != length) return false;
+            for(int i = 0; i < count; i++){
+                if(data[offset + i] != src[from + i]) return false;
+            }
+            return true;
+        }
+
+        public int hashCode(){
+            return hash;
+        }
+
+        public boolean equals(Object o){
+            if(!(o instanceof Page)) return false;
+            Page p = (Page) o;
+            return p.hash == hash && matches(p.data, p.offset, p.length);
+        }
+    }
+
+    protected final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75F, true);
+    protected final HashMap<Page, Page> pages = new HashMap<>();
+    protected final Page probe = new Page();
+    protected final int maxSnapshots;
+    protected final long maxBytes;
+    protected Snapshot latest;
+    protected long bytes;
+    protected int shared, copied; //Pages reused and pages copied by the last take
+
+    public SnapshotPool(){
+        this(DEFAULT_SNAPSHOTS, DEFAULT_BYTES);
+    }
+
+    public SnapshotPool(int maxSnapshots, long maxBytes){
+        this.maxSnapshots = Math.max(1, maxSnapshots);
+        this.maxBytes = maxBytes;
+    }
+
+    //Takes a snapshot of each region, a snapshot already under that name is replaced
+    public synchronized Snapshot take(String name, byte[]... regions){
+        Snapshot s = new Snapshot(name, regions.length);
+        shared = copied = 0;
+        for(int r = 0; r < regions.length; r++){
+            byte[] src = regions[r];
+            Page[] before = latest != null && r < latest.regions.length && latest.lengths[r] == src.length ? latest.regions[r] : null;
+            Page[] taken = new Page[(src.length + PAGE_SIZE - 1) / PAGE_SIZE];
+            for(int i = 0; i < taken.length; i++){
+                int from = i * PAGE_SIZE, count = Math.min(PAGE_SIZE, src.length - from);
+                Page page = before != null && before[i].matches(src, from, count) ? before[i] : pages.get(probe.set(src, from, count));
+                if(page == null){
+                    page = new Page().set(Arrays.copyOfRange(src, from, from + count), 0, count);
+                    pages.put(page, page);
+                    bytes += count;
+                    copied++;
+                } else {
+                    shared++;
+                }
+                page.refs++;
+                taken[i] = page;
+            }
+            s.regions[r] = taken;
+            s.lengths[r] = src.length;
+        }
+        probe.data = null;
+
+        Snapshot old = snapshots.remove(name);
+        if(old != null) release(old);
+        snapshots.put(name, s);
+        latest = s;
+        trim();
+        return s;
+    }
+
+    //Touches the snapshot for the LRU order, null if it was never taken or has been dropped
+    public synchronized Snapshot get(String name){
+        return snapshots.get(name);
+    }
+
+    //Copies a region back into dst, returns how many bytes were written
+    public synchronized int restore(Snapshot s, int region, byte[] dst){
+        snapshots.get(s.name);
+        int count = Math.min(dst.length, s.lengths[region]);
+        Page[] src = s.regions[region];
+        for(int i = 0; i * PAGE_SIZE < count; i++){
+            System.arraycopy(src[i].data, 0, dst, i * PAGE_SIZE, Math.min(PAGE_SIZE, count - i * PAGE_SIZE));
+        }
+        return count;
+    }
+
+    public byte[] read(Snapshot s, int region){
+        byte[] data = new byte[s.lengths[region]];
+        restore(s, region, data);
+        return data;
+    }
+
+    //Runs of bytes that differ between two snapshots of a region as start and end (exclusive) pairs in ranges,
+    //grown as needed and returned. Shared pages are skipped without being looked at, count[0] gets the run count.
+    public synchronized int[] diff(Snapshot a, Snapshot b, int region, int[] ranges, int[] count){
+        snapshots.get(a.name);
+        snapshots.get(b.name);
+        Page[] pa = a.regions[region], pb = b.regions[region];
+        int length = Math.max(a.lengths[region], b.lengths[region]);
+        int n = 0;
+        for(int i = 0; i * PAGE_SIZE < length; i++){
+            Page x = i < pa.length ? pa[i] : null, y = i < pb.length ? pb[i] : null;
+            if(x == y) continue;
+            int end = Math.min(PAGE_SIZE, length - i * PAGE_SIZE);
+            for(int j = 0; j < end; j++){
+                boolean same = x != null && y != null && j < x.length && j < y.length && x.data[j] == y.data[j];
+                if(same) continue;
+                int at = i * PAGE_SIZE + j;
+                if(n > 0 && ranges[n - 1] == at){
+                    ranges[n - 1]++;
+                    continue;
+                }
+                if(n + 2 > ranges.length) ranges = Arrays.copyOf(ranges, Math.max(16, ranges.length << 1));
+                ranges[n++] = at;
+                ranges[n++] = at + 1;
+            }
+        }
+        count[0] = n >> 1;
+        return ranges;
+    }
+
+    public synchronized boolean remove(String name){
+        Snapshot s = snapshots.remove(name);
+        if(s == null) return false;
+        release(s);
+        return true;
+    }
+
+    public synchronized void clear(){
+        snapshots.clear();
+        pages.clear();
+        latest = null;
+        bytes = 0;
+    }
+
+    //Names from least to most recently used, does not touch the order
+    public synchronized List<String> getNames(){
+        return new ArrayList<>(snapshots.keySet());
+    }
+
+    public synchronized int size(){
+        return snapshots.size();
+    }
+
+    //Bytes held by distinct pages
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    public synchronized int getSharedPages(){
+        return shared;
+    }
+
+    public synchronized int getCopiedPages(){
+        return copied;
+    }
+
+    private void trim(){
+        Iterator<Map.Entry<String, Snapshot>> it = snapshots.entrySet().iterator();
+        while(snapshots.size() > 1 && (snapshots.size() > maxSnapshots || bytes > maxBytes) && it.hasNext()){
+            Snapshot s = it.next().getValue();
+            it.remove();
+            release(s);
+        }
+    }
+
+    private void release(Snapshot s){
+        for(Page[] region : s.regions){
+            for(Page page : region){
+                if(--page.refs > 0) continue;
+                pages.remove(page);
+                bytes -= page.length;
+            }
+        }
+        if(s == latest) latest = null;
+    }
+}
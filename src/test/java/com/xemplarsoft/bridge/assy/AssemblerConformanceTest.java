@@ -0,0 +1,51 @@
+package com.xemplarsoft.bridge.assy;
+
+import com.xemplarsoft.bridge.util.ImageFiles;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Assembles every sample in assets/conformance and compares it with the goldens AssemblerConformance wrote from vasm,
+//byte for byte for a clean source and line for line for one with errors
+public class AssemblerConformanceTest {
+    static final File SAMPLES = new File("assets/conformance");
+
+    @TestFactory
+    List<DynamicTest> samplesMatchGoldens(){
+        List<File> sources = AssemblerConformance.sources(SAMPLES.getPath());
+        assertFalse(sources.isEmpty(), "no samples in " + SAMPLES.getAbsolutePath());
+        ArrayList<DynamicTest> tests = new ArrayList<>();
+        for(File source : sources) tests.add(DynamicTest.dynamicTest(source.getName(), () -> check(source)));
+        return tests;
+    }
+
+    static void check(File source) throws Exception {
+        Assembler6502 assembler = new Assembler6502();
+        assembler.assemble(new String(ImageFiles.read(source), StandardCharsets.ISO_8859_1), source);
+        TreeSet<Integer> errors = AssemblerConformance.errorLines(assembler.getErrors(), source);
+
+        File errorFile = AssemblerConformance.errorFile(source);
+        if(errorFile.isFile()){
+            assertEquals(AssemblerConformance.readErrors(errorFile), errors, "error lines");
+            return;
+        }
+        assertTrue(errors.isEmpty(), "unexpected errors on lines " + errors);
+
+        File imageFile = AssemblerConformance.imageFile(source);
+        assertTrue(imageFile.isFile(), "no golden " + imageFile.getName());
+        byte[] expected = ImageFiles.read(imageFile), actual = assembler.getImage();
+        for(int i = 0; i < Math.min(expected.length, actual.length); i++){
+            if(expected[i] != actual[i]){
+                fail(String.format("byte %d ($%04X) is %02X, golden has %02X", i, assembler.getOrigin() + i, actual[i] & 0xFF, expected[i] & 0xFF));
+            }
+        }
+        assertEquals(expected.length, actual.length, "image length");
+    }
+}
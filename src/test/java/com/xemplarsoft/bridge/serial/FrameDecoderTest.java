@@ -0,0 +1,171 @@
+package com.xemplarsoft.bridge.serial;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameDecoderTest {
+    //Everything the decoder reports, in order
+    static class Recorder implements FrameListener {
+        final List<String> ascii = new ArrayList<>();
+        final List<int[]> binary = new ArrayList<>();
+        final List<Integer> errors = new ArrayList<>();
+
+        public void asciiFrame(byte[] buffer, int length){
+            ascii.add(new String(buffer, 0, length, StandardCharsets.ISO_8859_1));
+        }
+
+        public void binaryFrame(int op, byte[] buffer, int offset, int length){
+            int[] frame = new int[length + 1];
+            frame[0] = op;
+            for(int i = 0; i < length; i++) frame[i + 1] = buffer[offset + i] & 0xFF;
+            binary.add(frame);
+        }
+
+        public void decodeError(int error, byte[] buffer, int length){
+            errors.add(error);
+        }
+    }
+
+    Recorder recorder;
+    FrameDecoder decoder;
+
+    @BeforeEach
+    void setUp(){
+        recorder = new Recorder();
+        decoder = new FrameDecoder(recorder);
+    }
+
+    static byte[] frame(int op, int... payload){
+        byte[] data = new byte[payload.length];
+        for(int i = 0; i < payload.length; i++) data[i] = (byte) payload[i];
+        byte[] out = new byte[Protocol.MAX_FRAME];
+        int len = FrameEncoder.encode(op, data, 0, data.length, out, 0);
+        byte[] ret = new byte[len];
+        System.arraycopy(out, 0, ret, 0, len);
+        return ret;
+    }
+
+    void feed(String ascii){
+        byte[] data = ascii.getBytes(StandardCharsets.ISO_8859_1);
+        decoder.feed(data, 0, data.length);
+    }
+
+    void feed(byte[] data){
+        decoder.feed(data, 0, data.length);
+    }
+
+    @Test
+    void asciiFramesAreSplitOutOfNoise(){
+        feed("junk!{RESET,0}\r\n!{MESSAGE,5}hello\r\n");
+        assertEquals(2, recorder.ascii.size());
+        assertEquals("!{RESET,0}", recorder.ascii.get(0));
+        assertEquals("!{MESSAGE,5}hello", recorder.ascii.get(1));
+    }
+
+    @Test
+    void highBytesAreNoiseUntilBinaryIsNegotiated(){
+        //Old ASCII firmware, a stray opcode byte must not swallow the reply that follows it
+        feed(new byte[]{(byte) 0x81, (byte) 0xFF});
+        feed("!{AWAKE,0}");
+        assertFalse(decoder.isBinaryFrames());
+        assertEquals(1, recorder.ascii.size());
+        assertEquals("!{AWAKE,0}", recorder.ascii.get(0));
+
+        feed(frame(Protocol.OP_ROM, 0x34, 0x12, 0xEA));
+        assertTrue(recorder.binary.isEmpty());
+    }
+
+    @Test
+    void awakeReplyWithBinaryTurnsFramesOn(){
+        feed("!{AWAKE,2}BP");
+        assertTrue(decoder.isBinaryFrames());
+        feed(frame(Protocol.OP_ROM, 0x34, 0x12, 0xEA));
+        assertEquals(1, recorder.binary.size());
+        assertArrayEquals(new int[]{Protocol.OP_ROM, 0x34, 0x12, 0xEA}, recorder.binary.get(0));
+
+        feed("!{AWAKE,1}P"); //Renegotiated without binary
+        assertFalse(decoder.isBinaryFrames());
+    }
+
+    @Test
+    void corruptFrameIsRejectedAndTheNextOneDecodes(){
+        decoder.setBinaryFrames(true);
+        byte[] bad = frame(Protocol.OP_RAM, 0x00, 0x02, 0x55);
+        bad[bad.length - 3] ^= 0x01; //Flip a payload bit, the CRC no longer matches
+        feed(bad);
+        feed(frame(Protocol.OP_RAM, 0x00, 0x02, 0x56));
+
+        assertEquals(1, recorder.errors.size());
+        assertEquals(FrameDecoder.ERROR_CRC, (int) recorder.errors.get(0));
+        assertEquals(1, decoder.getCrcErrors());
+        assertEquals(1, recorder.binary.size());
+        assertArrayEquals(new int[]{Protocol.OP_RAM, 0x00, 0x02, 0x56}, recorder.binary.get(0));
+    }
+
+    @Test
+    void oversizedLengthResyncs(){
+        decoder.setBinaryFrames(true);
+        byte[] head = new byte[4];
+        head[0] = (byte) Protocol.OP_ROM_IMAGE;
+        int n = FrameEncoder.writeVarint(Protocol.MAX_PAYLOAD + 1, head, 1);
+        decoder.feed(head, 0, n);
+        feed("!{RESET,0}");
+        feed(frame(Protocol.OP_ROM, 1, 2, 3));
+
+        assertEquals(1, decoder.getLengthErrors());
+        assertEquals(1, recorder.ascii.size());
+        assertEquals(1, recorder.binary.size());
+    }
+
+    @Test
+    void interleavedAsciiAndBinaryFedByteByByte(){
+        decoder.setBinaryFrames(true);
+        byte[] a = frame(Protocol.OP_6502, 0xFC, 0xFF, 0x00, 0x01);
+        byte[] b = "!{MESSAGE,2}ok".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] c = frame(Protocol.OP_ROM_IMAGE_ACK, 0x00, 0x80, 0x12, 0x34);
+        for(byte[] part : new byte[][]{a, b, c}){
+            for(byte x : part) decoder.feed(x);
+        }
+        assertEquals(2, recorder.binary.size());
+        assertEquals(Protocol.OP_6502, recorder.binary.get(0)[0]);
+        assertEquals(Protocol.OP_ROM_IMAGE_ACK, recorder.binary.get(1)[0]);
+        assertEquals("!{MESSAGE,2}ok", recorder.ascii.get(0));
+    }
+
+    @Test
+    void loopbackNegotiatesAndServesBinaryFrames(){
+        LoopbackDevice device = new LoopbackDevice(true);
+        byte[] awake = ("?{AWAKE," + Protocol.CAPABILITIES.length() + "}" + Protocol.CAPABILITIES).getBytes(StandardCharsets.ISO_8859_1);
+        device.write(awake, 0, awake.length);
+        device.requestRom(0xFFFC);
+
+        byte[] in = new byte[256];
+        int n = device.read(in, 0, in.length);
+        decoder.feed(in, 0, n);
+
+        assertTrue(device.isBinaryFrames());
+        assertTrue(decoder.isBinaryFrames());
+        assertEquals(1, recorder.ascii.size());
+        assertEquals(1, recorder.binary.size());
+        assertArrayEquals(new int[]{Protocol.OP_REQ_ROM, 0xFC, 0xFF, 0x00, 0x00}, recorder.binary.get(0));
+    }
+
+    @Test
+    void loopbackAsciiDeviceIgnoresBinaryFrames(){
+        LoopbackDevice device = new LoopbackDevice(false);
+        byte[] awake = ("?{AWAKE,1}" + Protocol.CAP_BINARY).getBytes(StandardCharsets.ISO_8859_1);
+        device.write(awake, 0, awake.length);
+        byte[] rom = frame(Protocol.OP_ROM, 0xFC, 0xFF, 0xEA);
+        device.write(rom, 0, rom.length);
+
+        assertFalse(device.isBinaryFrames());
+        assertEquals(0, device.getUnknownFrames());
+        assertEquals(0, device.getRomReplies());
+    }
+}
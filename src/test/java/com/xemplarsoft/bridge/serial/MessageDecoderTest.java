@@ -0,0 +1,108 @@
+package com.xemplarsoft.bridge.serial;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageDecoderTest {
+    MessageDecoder decoder;
+    final List<String> calls = new ArrayList<>();
+
+    @BeforeEach
+    void setUp(){
+        decoder = new MessageDecoder();
+        decoder.setRomEchoHandler((a, d) -> calls.add(String.format("rom %04X %02X", a, d)));
+        decoder.setRamWriteHandler((a, d) -> calls.add(String.format("ram %04X %02X", a, d)));
+        decoder.setRamReadHandler(a -> calls.add(String.format("ramr %04X", a)));
+        decoder.setCpuStatusHandler((a, d, rw, rst) -> calls.add(String.format("cpu %04X %02X %b %b", a, d, rw, rst)));
+        decoder.setErrorHandler((code, buffer, offset, length) ->
+                calls.add("error " + code + " " + new String(buffer, offset, length, StandardCharsets.US_ASCII)));
+        decoder.setRomRequestHandler(a -> calls.add(String.format("serve %04X", a)));
+        decoder.setFallbackHandler((id, buffer, length) ->
+                calls.add("other " + MessageDecoder.getName(id) + " " + new String(buffer, 0, length, StandardCharsets.US_ASCII)));
+    }
+
+    boolean decode(String frame){
+        byte[] data = frame.getBytes(StandardCharsets.US_ASCII);
+        //Frames sit at the start of a larger buffer, nothing past length may be read
+        byte[] buffer = new byte[data.length + 8];
+        java.util.Arrays.fill(buffer, (byte) 'F');
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        return decoder.decode(buffer, data.length);
+    }
+
+    String only(){
+        assertEquals(1, calls.size(), calls.toString());
+        return calls.remove(0);
+    }
+
+    @Test
+    void highRateMessages(){
+        assertTrue(decode("!{ROM,7}FFFC,00"));
+        assertEquals("rom FFFC 00", only());
+        assertTrue(decode("!{RAM,6}0200,a9"));
+        assertEquals("ram 0200 A9", only());
+        assertTrue(decode("!{RAMR,4}01FF"));
+        assertEquals("ramr 01FF", only());
+        assertTrue(decode("!{6502,9}E000,EA,10"));
+        assertEquals("cpu E000 EA true false", only());
+        assertTrue(decode("!{6502,9}0001,00,01"));
+        assertEquals("cpu 0001 00 false true", only());
+        assertTrue(decode("?{ROM,4}8000"));
+        assertEquals("serve 8000", only());
+        assertEquals(0, decoder.getMalformed());
+    }
+
+    @Test
+    void shortAddressesAndPaddedNames(){
+        assertTrue(decode("!{ RAM ,4}2,5"));
+        assertEquals("ram 0002 05", only());
+        assertTrue(decode("?{ROM,2}FC"));
+        assertEquals("serve 00FC", only());
+    }
+
+    @Test
+    void errorKeepsItsMessage(){
+        assertTrue(decode("!{ERROR,7}2,hello"));
+        assertEquals("error 2 hello", only());
+        assertTrue(decode("!{ERROR,3}-1,"));
+        assertEquals("error -1 ", only());
+    }
+
+    @Test
+    void rareCommandsGoToTheFallback(){
+        assertTrue(decode("!{AWAKE,2}BP"));
+        assertEquals("other AWAKE !{AWAKE,2}BP", only());
+        assertTrue(decode("!{NOPE,0}"));
+        assertEquals("other null !{NOPE,0}", only());
+        assertTrue(decode("?{RAM,4}0200"));
+        assertEquals("other RAM ?{RAM,4}0200", only());
+    }
+
+    @Test
+    void malformedFramesAreCounted(){
+        assertFalse(decode("!{ROM,4}FFFC"));
+        assertFalse(decode("!{RAM,7}02G0,A9"));
+        assertFalse(decode("!{6502,6}E000,EA"));
+        assertFalse(decode("!{ERROR,3}x,y"));
+        assertFalse(decode("!ROM,0}"));
+        assertFalse(decode("#{ROM,0}"));
+        assertTrue(calls.isEmpty(), calls.toString());
+        assertEquals(6, decoder.getMalformed());
+    }
+
+    @Test
+    void everyNameLooksUpToItself(){
+        for(int id = 0; MessageDecoder.getName(id) != null; id++){
+            byte[] name = MessageDecoder.getName(id).getBytes(StandardCharsets.US_ASCII);
+            assertEquals(id, MessageDecoder.lookup(name, 0, name.length));
+        }
+        byte[] name = "ROMS".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(MessageDecoder.CMD_UNKNOWN, MessageDecoder.lookup(name, 0, name.length));
+    }
+}
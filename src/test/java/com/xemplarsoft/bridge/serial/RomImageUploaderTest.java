@@ -0,0 +1,161 @@
+package com.xemplarsoft.bridge.serial;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Both uploaders run against the loopback device with dropped and corrupted page writes, a pump thread carries the
+//device's acks back the way Main's dispatcher does
+public class RomImageUploaderTest {
+    static final int BASE = 0x8000, SIZE = 0x2000, PAGES = SIZE / RomImageUploader.PAGE_SIZE;
+
+    LoopbackDevice device;
+    RomImageUploader uploader;
+    final LinkedBlockingQueue<int[]> finished = new LinkedBlockingQueue<>();
+    volatile boolean pumping = true;
+    Thread pump;
+
+    final RomImageUploader.Sender sender = (op, payload, length) -> {
+        byte[] out = new byte[Protocol.MAX_FRAME];
+        device.write(out, 0, FrameEncoder.encode(op, payload, 0, length, out, 0));
+    };
+
+    final RomImageUploader.Listener listener = new RomImageUploader.Listener() {
+        public void uploadProgress(RomImageUploader source, int pagesDone, int pagesTotal){}
+
+        public void uploadFinished(RomImageUploader source, boolean success, int pagesSent, int retries){
+            finished.add(new int[]{success ? 1 : 0, pagesSent, retries});
+        }
+    };
+
+    final FrameListener acks = new FrameListener() {
+        public void asciiFrame(byte[] buffer, int length){}
+
+        public void binaryFrame(int op, byte[] buffer, int offset, int length){
+            if(op != Protocol.OP_ROM_IMAGE_ACK && op != Protocol.OP_EEPROM_PAGE_ACK) return;
+            uploader.ackReceived(FrameEncoder.getAddress(buffer, offset), FrameEncoder.getAddress(buffer, offset + 2));
+        }
+
+        public void decodeError(int error, byte[] buffer, int length){}
+    };
+
+    @BeforeEach
+    void setUp(){
+        device = new LoopbackDevice(Protocol.CAPABILITIES);
+        byte[] awake = ("?{AWAKE," + Protocol.CAPABILITIES.length() + "}" + Protocol.CAPABILITIES).getBytes(StandardCharsets.ISO_8859_1);
+        device.write(awake, 0, awake.length);
+
+        FrameDecoder decoder = new FrameDecoder(acks);
+        pump = new Thread(() -> {
+            byte[] in = new byte[1024];
+            while(pumping){
+                int n = device.read(in, 0, in.length);
+                if(n > 0) decoder.feed(in, 0, n);
+            }
+        }, "Loopback Pump");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        pumping = false;
+        pump.join(2000);
+    }
+
+    static byte[] image(long seed){
+        byte[] image = new byte[SIZE];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    //Waits for the uploader to go idle, returns success, pages sent and retries
+    int[] sync(byte[] image, boolean full) throws InterruptedException {
+        uploader.sync(image, full);
+        int[] result = finished.poll(60, TimeUnit.SECONDS);
+        assertNotNull(result, "upload did not finish");
+        return result;
+    }
+
+    static void dirty(byte[] image, int... pages){
+        for(int page : pages) image[page * RomImageUploader.PAGE_SIZE + 17] ^= 0x5A;
+    }
+
+    void assertRom(byte[] image){
+        for(int i = 0; i < SIZE; i++) assertEquals(image[i] & 0xFF, device.getRomAt(BASE + i), "ROM byte " + i);
+    }
+
+    void assertEeprom(byte[] image){
+        for(int i = 0; i < SIZE; i++) assertEquals(image[i] & 0xFF, device.getEepromAt(BASE + i), "EEPROM byte " + i);
+    }
+
+    @Test
+    void romImageSurvivesFaultsAndResendsOnlyDirtyPages() throws InterruptedException {
+        uploader = new RomImageUploader(BASE, SIZE, sender, listener);
+        device.setFaults(10, 10, 6502);
+        byte[] image = image(1);
+        int[] result = sync(image, false);
+        assertEquals(1, result[0]);
+        assertTrue(device.getImageDropped() + device.getImageCorrupted() > 0, "no faults were injected");
+        assertTrue(result[2] > 0, "faults were not retried");
+        assertRom(image);
+
+        device.setFaults(0, 0, 0);
+        long writes = device.getImageWrites();
+        dirty(image, 3, 30);
+        result = sync(image, false);
+        assertEquals(1, result[0]);
+        assertEquals(2, result[1]);
+        assertEquals(writes + 2, device.getImageWrites());
+        assertRom(image);
+
+        result = sync(image, false);
+        assertEquals(0, result[1]);
+        assertEquals(writes + 2, device.getImageWrites());
+    }
+
+    @Test
+    void eepromSurvivesFaultsAndSkipsPagesAlreadyOnTheChip() throws InterruptedException {
+        uploader = new EepromProgrammer(BASE, SIZE, sender, listener);
+        byte[] image = image(2);
+        for(int i = 0; i < SIZE / 2; i++) device.setEepromAt(BASE + i, image[i]); //First half is already programmed
+
+        device.setFaults(10, 10, 6502);
+        int[] result = sync(image, false);
+        assertEquals(1, result[0]);
+        assertTrue(device.getEepromDropped() + device.getEepromCorrupted() > 0, "no faults were injected");
+        assertEquals(PAGES / 2, uploader.getSkippedPages());
+        assertEquals(PAGES / 2 + result[2], result[1], "only the second half is written, plus retries");
+        assertEeprom(image);
+
+        device.setFaults(0, 0, 0);
+        long writes = device.getEepromWrites();
+        dirty(image, 0, PAGES - 1);
+        result = sync(image, false);
+        assertEquals(1, result[0]);
+        assertEquals(2, result[1]);
+        assertEquals(writes + 2, device.getEepromWrites());
+        assertEeprom(image);
+    }
+
+    @Test
+    void fullProgramRewritesEveryPage() throws InterruptedException {
+        uploader = new EepromProgrammer(BASE, SIZE, sender, listener);
+        byte[] image = image(3);
+        assertEquals(1, sync(image, false)[0]);
+        long writes = device.getEepromWrites();
+
+        int[] result = sync(image, true);
+        assertEquals(1, result[0]);
+        assertEquals(PAGES, result[1]);
+        assertEquals(writes + PAGES, device.getEepromWrites());
+        assertEeprom(image);
+    }
+}
@@ -0,0 +1,61 @@
+package com.xemplarsoft.bridge.util;
+
+import com.xemplarsoft.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+//Golden values are CRC-16/CCITT-FALSE, the same the sketches put on the wire
+public class DataCRCTest {
+    static final int CRC_INPUT_GOLDEN = 0xA9E4;
+    static final int CRC_CHECK_GOLDEN = 0x29B1;
+
+    static byte[] input(){
+        byte[] data = new byte[Test.crcInput.length];
+        for(int i = 0; i < data.length; i++) data[i] = (byte) Test.crcInput[i];
+        return data;
+    }
+
+    @org.junit.jupiter.api.Test
+    void goldenVectors(){
+        byte[] data = input();
+        assertEquals(CRC_INPUT_GOLDEN, DataCRC.calculateCRC(data, 0, data.length));
+        assertEquals(CRC_CHECK_GOLDEN, DataCRC.calculateCRC("123456789".getBytes(StandardCharsets.US_ASCII), 0, 9));
+    }
+
+    @org.junit.jupiter.api.Test
+    void lengthIsCountedFromOffset(){
+        byte[] data = input();
+        byte[] padded = new byte[data.length + 7];
+        System.arraycopy(data, 0, padded, 7, data.length);
+        assertEquals(CRC_INPUT_GOLDEN, DataCRC.calculateCRC(padded, 7, data.length));
+    }
+
+    @org.junit.jupiter.api.Test
+    void incrementalUpdatesMatchOneShot(){
+        byte[] data = input();
+        for(int split = 0; split <= data.length; split++){
+            int crc = DataCRC.update(DataCRC.INITIAL_VALUE, data, 0, split);
+            crc = DataCRC.update(crc, data, split, data.length - split);
+            assertEquals(CRC_INPUT_GOLDEN, crc, "split at " + split);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void byteBuffers(){
+        byte[] data = input();
+        ByteBuffer heap = ByteBuffer.wrap(data);
+        assertEquals(CRC_INPUT_GOLDEN, DataCRC.update(DataCRC.INITIAL_VALUE, heap));
+        assertEquals(data.length, heap.position(), "the buffer is consumed");
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(CRC_INPUT_GOLDEN, DataCRC.update(DataCRC.INITIAL_VALUE, direct));
+
+        ByteBuffer slice = ByteBuffer.wrap(new byte[data.length + 10], 5, data.length).slice();
+        slice.put(data).flip();
+        assertEquals(CRC_INPUT_GOLDEN, DataCRC.update(DataCRC.INITIAL_VALUE, slice));
+    }
+}